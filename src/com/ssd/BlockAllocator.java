@@ -0,0 +1,142 @@
+package com.ssd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 数据区空闲块分配器：替代逐个扫描 freeBlocks 链表。
+ * <ul>
+ *   <li>全局 FIFO 队列：全部空闲块按释放先后排列（无同层级空闲块时取最早释放的块）</li>
+ *   <li>按层级的空闲队列：只含未写满的空闲块，同层级分配 O(1)</li>
+ *   <li>每块一个状态字（版本号*2 + 空闲位），以 CAS 认领；块被认领后其在另一队列中的条目因版本号/空闲位不符而失效，出队时丢弃</li>
+ * </ul>
+ * 不使用全局锁；空闲块数以原子计数维护，空闲比例 O(1)。
+ */
+public class BlockAllocator {
+
+    /**
+     * 队列条目：块 ID + 入队时的版本号
+     */
+    private static final class Slot {
+        final long blockId;
+        final long epoch;
+
+        Slot(long blockId, long epoch) {
+            this.blockId = blockId;
+            this.epoch = epoch;
+        }
+    }
+
+    private final Map<Long, KVSSD6.PhysicalBlock> blocks;
+    private final long totalBlocks;
+    private final AtomicLongArray states;     // 版本号 << 1 | 空闲位
+    private final ConcurrentLinkedDeque<Slot> freeQueue = new ConcurrentLinkedDeque<>();
+    private final Map<Integer, ConcurrentLinkedQueue<Slot>> freeByLevel = new ConcurrentHashMap<>();
+    private final AtomicLong freeCount = new AtomicLong();
+    private final AtomicLong releasesSincePurge = new AtomicLong();
+
+    public BlockAllocator(Map<Long, KVSSD6.PhysicalBlock> blocks, long totalBlocks) {
+        this.blocks = blocks;
+        this.totalBlocks = totalBlocks;
+        this.states = new AtomicLongArray((int) totalBlocks);
+    }
+
+    /**
+     * 把块登记为空闲（加载时的未分配块、擦除或归还的块）；块已是空闲时忽略
+     */
+    public void release(KVSSD6.PhysicalBlock block) {
+        int index = (int) block.blockId;
+        long state;
+        long epoch;
+        do {
+            state = states.get(index);
+            if ((state & 1) != 0) {
+                return;
+            }
+            epoch = (state >>> 1) + 1;
+        } while (!states.compareAndSet(index, state, epoch << 1 | 1));
+        Slot slot = new Slot(block.blockId, epoch);
+        freeQueue.addLast(slot);
+        if (!block.isFull()) {
+            freeByLevel.computeIfAbsent(block.level, k -> new ConcurrentLinkedQueue<>()).add(slot);
+        }
+        freeCount.incrementAndGet();
+        if (releasesSincePurge.incrementAndGet() >= totalBlocks) {
+            purgeStale();
+        }
+    }
+
+    /**
+     * 认领一个指定层级、未写满的空闲块，没有则返回 null
+     */
+    public KVSSD6.PhysicalBlock claimAtLevel(int level) {
+        ConcurrentLinkedQueue<Slot> queue = freeByLevel.get(level);
+        if (queue == null) {
+            return null;
+        }
+        Slot slot;
+        while ((slot = queue.poll()) != null) {
+            if (claim(slot)) {
+                return blocks.get(slot.blockId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 认领最早释放的空闲块，没有则返回 null
+     */
+    public KVSSD6.PhysicalBlock claimAny() {
+        Slot slot;
+        while ((slot = freeQueue.pollFirst()) != null) {
+            if (claim(slot)) {
+                return blocks.get(slot.blockId);
+            }
+        }
+        return null;
+    }
+
+    public long freeCount() {
+        return freeCount.get();
+    }
+
+    public boolean isEmpty() {
+        return freeCount.get() == 0;
+    }
+
+    /**
+     * 空闲块占总块数的比例（百分比）
+     */
+    public double freeRatio() {
+        return (double) freeCount.get() / totalBlocks * 100;
+    }
+
+    private boolean claim(Slot slot) {
+        int index = (int) slot.blockId;
+        long free = slot.epoch << 1 | 1;
+        if (states.compareAndSet(index, free, slot.epoch << 1)) {
+            freeCount.decrementAndGet();
+            return true;
+        }
+        return false; // 条目已失效（块已被另一队列认领或又被重新释放）
+    }
+
+    private boolean isCurrent(Slot slot) {
+        return states.get((int) slot.blockId) == (slot.epoch << 1 | 1);
+    }
+
+    /**
+     * 清除失效条目，防止只按层级分配时全局队列无限增长
+     */
+    private void purgeStale() {
+        releasesSincePurge.set(0);
+        freeQueue.removeIf(slot -> !isCurrent(slot));
+        for (ConcurrentLinkedQueue<Slot> queue : freeByLevel.values()) {
+            queue.removeIf(slot -> !isCurrent(slot));
+        }
+    }
+}
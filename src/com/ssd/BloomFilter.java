@@ -0,0 +1,95 @@
+package com.ssd;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * SSTable 布隆过滤器：get 在读取元数据页之前先判断 key 是否可能存在，避免对不存在的 key 访问闪存
+ */
+public class BloomFilter {
+    private static final int MAGIC = 0x4B56424C; // "KVBL"
+
+    private final long[] words;
+    private final int numBits;
+    private final int numHashes;
+
+    /**
+     * @param expectedKeys 预计插入的 key 数
+     * @param bitsPerKey   每个 key 分配的位数（10 位约 1% 误判率）
+     */
+    public BloomFilter(int expectedKeys, int bitsPerKey) {
+        int bits = Math.max(64, expectedKeys * bitsPerKey);
+        this.words = new long[(bits + 63) >>> 6];
+        this.numBits = words.length * 64;
+        // 最优哈希个数 k = bitsPerKey * ln2
+        this.numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    private BloomFilter(long[] words, int numHashes) {
+        this.words = words;
+        this.numBits = words.length * 64;
+        this.numHashes = numHashes;
+    }
+
+    public void add(String key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(numHashes);
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a bloom filter file (bad magic)");
+        }
+        int numHashes = in.readInt();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, numHashes);
+    }
+
+    /**
+     * 64 位 FNV-1a 哈希 + murmur3 末端混合
+     */
+    private static long hash64(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ssd;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * 并行子压缩基准：同一写入负载分别以 1 个和 N 个子压缩运行，比较多 SST 合并压缩的累计耗时。
+ * 每轮运行前清空 Constants.PERSIST_DIR，请勿指向保存有数据的目录。
+ */
+public class CompactionBenchmark {
+    public static void main(String[] args) {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        if (ops <= 0 || threads < 1 || rounds < 1) {
+            System.out.println("Usage: java CompactionBenchmark [ops] [threads] [rounds]");
+            System.out.println("Example: java CompactionBenchmark 200000 4 3");
+            return;
+        }
+
+        long[] serialMs = new long[rounds];
+        long[] parallelMs = new long[rounds];
+        long compactions = 0;
+        // 交替运行两种配置，减少 JIT 预热与页缓存对先运行者的影响
+        for (int round = 0; round < rounds; round++) {
+            KVSSD6.Stats serial = runOnce(ops, 1);
+            KVSSD6.Stats parallel = runOnce(ops, threads);
+            if (serial.compactionCount != parallel.compactionCount) {
+                System.err.println("Warning: compaction count differs (" + serial.compactionCount
+                        + " vs " + parallel.compactionCount + ")");
+            }
+            serialMs[round] = serial.compactionTimeMs;
+            parallelMs[round] = parallel.compactionTimeMs;
+            compactions = serial.compactionCount;
+            System.out.printf("Round %d: 1 thread %,d ms, %d threads %,d ms%n",
+                    round + 1, serialMs[round], threads, parallelMs[round]);
+        }
+
+        long bestSerial = min(serialMs);
+        long bestParallel = min(parallelMs);
+        System.out.println("\n==================================================");
+        System.out.println("            Sub-compaction Benchmark Result       ");
+        System.out.println("==================================================");
+        System.out.printf("Ops: %,d, Compactions per run: %,d, Rounds: %d%n", ops, compactions, rounds);
+        System.out.printf("1 thread (best): %,d ms%n", bestSerial);
+        System.out.printf("%d threads (best): %,d ms%n", threads, bestParallel);
+        System.out.printf("Speedup: %.2fx%n", bestParallel == 0 ? 0.0 : (double) bestSerial / bestParallel);
+    }
+
+    private static KVSSD6.Stats runOnce(int ops, int parallelism) {
+        deleteDirectory(Paths.get(Constants.PERSIST_DIR));
+        Constants.COMPACTION_PARALLELISM = parallelism;
+        KVSSD6 kvssd = KVSSD6.open(1024L * 1024 * 1024);
+        Random random = new Random(42); // 固定种子：两种配置写入完全相同的负载
+        String padding = "x".repeat(400);
+        for (int i = 0; i < ops; i++) {
+            kvssd.put("key" + random.nextInt(ops), "v" + i + "_" + padding);
+        }
+        kvssd.close();
+        return kvssd.getStats();
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static void deleteDirectory(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to clear " + dir + ": " + e.getMessage());
+        }
+    }
+}
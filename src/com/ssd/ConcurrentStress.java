@@ -0,0 +1,179 @@
+package com.ssd;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 多线程压力测试：多个写线程（各自独占一段 key）与多个读线程同时访问同一个 KVSSD6，期间后台刷盘、压缩与 GC 照常运行。
+ * <ul>
+ *   <li>写线程每次 put 后立即 get，必须读到刚写入的值（检测写路径丢失更新）</li>
+ *   <li>读线程读到的值必须属于所查的 key（检测无锁读路径读到被擦除/复用的页）</li>
+ *   <li>Stats 中的读写次数必须等于各线程实际发出的次数（检测计数器丢失更新）</li>
+ * </ul>
+ * 结束时逐个核对每个 key 的最终值：读不到或读到旧版本都判为失败。
+ * 设备默认 128MB（默认写入量约为容量的一半），并把 GC 水位提高到 {@link #GC_LOW_WATERMARK}/{@link #GC_HIGH_WATERMARK}，
+ * 使后台 GC 在容量仍充足时就与读写、压缩并发运行；压缩与 GC 都必须至少执行过一次、GC 必须回收过块，否则判为失败（未覆盖后台路径的运行不算通过）。
+ * 在临时目录中运行（通过 kvssd.persistDir 指定），不会触碰默认的 PERSIST_DIR。
+ */
+public class ConcurrentStress {
+    static final double GC_LOW_WATERMARK = 80;
+    static final double GC_HIGH_WATERMARK = 90;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int opsPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 40000;
+        int capacityMb = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+        String backend = args.length > 4 ? args[4].toUpperCase() : "MEMORY";
+        if (writers < 1 || readers < 0 || opsPerWriter < 1 || capacityMb < 8) {
+            System.out.println("Usage: java ConcurrentStress [writers] [readers] [opsPerWriter] [capacityMB] [file|memory|image]");
+            System.out.println("Example: java ConcurrentStress 4 4 40000 128 memory");
+            return;
+        }
+        int keysPerWriter = Math.max(1, opsPerWriter / 5); // 每个 key 平均写入约 5 次
+        String padding = "x".repeat(400);
+
+        // 须在首次访问 Constants 之前设置持久化目录
+        Path dir = Files.createTempDirectory("kvssd-stress");
+        System.setProperty("kvssd.persistDir", dir.toString());
+        Constants.FLASH_BACKEND = FlashBackend.Kind.valueOf(backend);
+        Constants.GC_LOW_WATERMARK = GC_LOW_WATERMARK;
+        Constants.GC_HIGH_WATERMARK = GC_HIGH_WATERMARK;
+        KVSSD6 kvssd = KVSSD6.open(capacityMb * 1024L * 1024);
+
+        AtomicLong readYourWriteViolations = new AtomicLong();
+        AtomicLong foreignValues = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong issuedReads = new AtomicLong();
+        AtomicBoolean writersDone = new AtomicBoolean(false);
+        List<Map<String, String>> expected = new ArrayList<>();
+        Map<String, List<String>> history = new ConcurrentHashMap<>();
+
+        List<Thread> writerThreads = new ArrayList<>();
+        for (int t = 0; t < writers; t++) {
+            int writerId = t;
+            Map<String, String> lastWritten = new HashMap<>();
+            expected.add(lastWritten);
+            writerThreads.add(new Thread(() -> {
+                Random random = new Random(writerId);
+                try {
+                    for (int i = 0; i < opsPerWriter; i++) {
+                        // 偶数次按顺序轮流覆盖各自的全部 key（每轮使更早的 KV 页被完全覆盖、在压缩中丢弃，GC 才有可回收的块），奇数次随机覆盖
+                        int keyNo = i % 2 == 0 ? (i / 2) % keysPerWriter : random.nextInt(keysPerWriter);
+                        String key = "w" + writerId + "_key" + keyNo;
+                        String value = key + "#" + i + "_" + padding;
+                        kvssd.put(key, value);
+                        lastWritten.put(key, value);
+                        history.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+                        issuedReads.incrementAndGet();
+                        if (!value.equals(kvssd.get(key))) {
+                            readYourWriteViolations.incrementAndGet();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                    System.err.println("Writer " + writerId + " failed: " + e);
+                }
+            }, "stress-writer-" + t));
+        }
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            int readerId = t;
+            readerThreads.add(new Thread(() -> {
+                Random random = new Random(1000 + readerId);
+                try {
+                    while (!writersDone.get()) {
+                        String key = "w" + random.nextInt(writers) + "_key" + random.nextInt(keysPerWriter);
+                        issuedReads.incrementAndGet();
+                        String value = kvssd.get(key);
+                        if (value != null && !value.startsWith(key + "#")) {
+                            foreignValues.incrementAndGet();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                    System.err.println("Reader " + readerId + " failed: " + e);
+                }
+            }, "stress-reader-" + t));
+        }
+
+        long start = System.nanoTime();
+        writerThreads.forEach(Thread::start);
+        readerThreads.forEach(Thread::start);
+        for (Thread thread : writerThreads) {
+            thread.join();
+        }
+        writersDone.set(true);
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        KVSSD6.Stats stats = kvssd.getStats();
+        long issuedWrites = (long) writers * opsPerWriter;
+
+        // 最终值核对
+        long matched = 0, stale = 0, missing = 0, wrong = 0;
+        for (Map<String, String> lastWritten : expected) {
+            for (Map.Entry<String, String> entry : lastWritten.entrySet()) {
+                String value = kvssd.get(entry.getKey());
+                if (entry.getValue().equals(value)) {
+                    matched++;
+                } else if (value == null) {
+                    missing++;
+                } else if (history.get(entry.getKey()).contains(value)) {
+                    stale++;
+                } else {
+                    wrong++;
+                }
+            }
+        }
+        kvssd.close();
+        // close 会等待积压的刷盘与压缩完成，后台工作的计数取此时的快照（读写计数仍用核对前的快照）
+        KVSSD6.Stats background = kvssd.getStats();
+
+        boolean countersMatch = stats.writeCount == issuedWrites && stats.readCount == issuedReads.get();
+        boolean backgroundRan = background.compactionCount > 0 && background.gcCount > 0 && background.gcBlocksReclaimed > 0;
+        boolean passed = readYourWriteViolations.get() == 0 && foreignValues.get() == 0
+                && stale == 0 && missing == 0 && wrong == 0
+                && errors.get() == 0 && countersMatch && backgroundRan;
+
+        System.out.println("\n==================================================");
+        System.out.println("              Concurrent Stress Result            ");
+        System.out.println("==================================================");
+        System.out.printf("Backend: %s, Capacity: %d MB%n", stats.flashBackend, capacityMb);
+        System.out.printf("Writers: %d, Readers: %d, Ops/writer: %,d, Elapsed: %.2f s%n", writers, readers, opsPerWriter, seconds);
+        System.out.printf("Writes: %,d (stats %,d), Reads: %,d (stats %,d)%n",
+                issuedWrites, stats.writeCount, issuedReads.get(), stats.readCount);
+        System.out.printf("Read-your-write violations: %,d%n", readYourWriteViolations.get());
+        System.out.printf("Foreign values: %,d, Thread errors: %,d%n", foreignValues.get(), errors.get());
+        System.out.printf("Final check: matched %,d, stale %,d, missing %,d, wrong %,d%n", matched, stale, missing, wrong);
+        System.out.printf("Compactions: %,d (%,d shadowed pages dropped), GC runs: %,d (%,d blocks reclaimed), Flash reads: %,d%n",
+                background.compactionCount, background.compactionPagesDropped, background.gcCount,
+                background.gcBlocksReclaimed, background.totalFlashReads);
+        if (!backgroundRan) {
+            System.out.println("Compaction and GC must both run and GC must reclaim blocks; use a smaller capacity or more ops");
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        deleteDirectory(dir);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            System.err.println("Failed to remove " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -8,13 +8,31 @@ public class Constants {
     public static final long BLOCK_SIZE = 4 * 1024 * 1024; // 4MB 块大小
    //public static final long BLOCK_SIZE = 8 * 32 * 1024; //
     public static final int MAX_MEMTABLE_SIZE =  4* 1024 * 1024 - 32*1024; // 4MB Memtable 阈值
+    public static int MAX_IMMUTABLE_MEMTABLES = 2;       // 等待后台刷盘的不可变 Memtable 上限，超过则阻塞写入（创建 KVSSD6 前可修改）
     public static final int LEVEL_RATIO = 10;            // LSM 层级比例
     public static final double GC_THRESHOLD = 0.7;       // GC 触发阈值
+    public static GcVictimIndex.Policy GC_VICTIM_POLICY = GcVictimIndex.Policy.COST_BENEFIT; // 默认 GC 受害块选择策略
+    public static int GC_WINDOW_BLOCKS = 64;             // WINDOWED_GREEDY 策略的候选窗口（最早分配的块数）
+    public static double GC_LOW_WATERMARK = 20;          // 空闲块比例（%）低于此值唤醒后台 GC
+    public static double GC_HIGH_WATERMARK = 30;         // 后台 GC 回收到空闲块比例（%）达到此值为止
+    public static double GC_HARD_FLOOR = 5;              // 空闲块比例（%）低于此值时分配方前台 GC
+    public static long GC_IO_BUDGET_PAGES_PER_SEC = 4096; // 后台 GC 迁移页数预算（每秒，0=不限速）
     public static final int REMAP_THRESHOLD = 2;         // 重映射阈值
 
     // L0 压缩触发与批量大小（基于文件数的触发条件）
     public static final int L0_COMPACTION_TRIGGER = 1000;   // 当 L0 中的 SSTable 数量达到该阈值时触发压缩
     public static final int L0_COMPACTION_BATCH = 4;     // 每次从 L0 选取参与压缩的 SSTable 个数
+    // 写入限流（后台压缩跟不上时）：L0 SST 数或压缩债务（各层超出上限的 SST 总数）达到减速阈值时每次写入延迟，达到停止阈值时阻塞
+    public static int L0_SLOWDOWN_WRITES_TRIGGER = 8;
+    public static int L0_STOP_WRITES_TRIGGER = 16;
+    public static int COMPACTION_DEBT_SLOWDOWN_SSTS = 32;
+    public static int COMPACTION_DEBT_STOP_SSTS = 64;
+    public static long WRITE_SLOWDOWN_DELAY_MS = 1;      // 减速时每次写入的延迟
+    public static long FLUSH_RETRY_BACKOFF_MS = 10;      // 刷盘失败后首次重试前的退避，之后每次翻倍
+    public static long FLUSH_RETRY_MAX_BACKOFF_MS = 1000; // 刷盘重试退避上限
+    public static int COMPACTION_PARALLELISM =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())); // 并行子压缩数（1=串行；创建 KVSSD6 前可修改）
+    public static int SCAN_READ_AHEAD_THREADS = 4; // 范围扫描预读线程数（创建 KVSSD6 前可修改）
 
     // 按层的 SSTable 数量上限（仅用于“按个数触发”策略）。
     // 下标=层级，值=该层允许的最大 SSTable 个数。超出即触发向下一层压缩。
@@ -27,19 +45,45 @@ public class Constants {
         100000 // L5 及以上默认上限
     };
 
-    // 新增：持久化路径（确保程序有权限读写）
-    public static String PERSIST_DIR = "./data1/kvssd/"; // 总持久化目录
+    // 新增：持久化路径（确保程序有权限读写）；可用系统属性 kvssd.persistDir 指定，
+    // 须在首次访问 Constants 之前设置（下列派生路径在类初始化时确定）
+    public static String PERSIST_DIR = persistDir(System.getProperty("kvssd.persistDir", "./data1/kvssd/")); // 总持久化目录
     public static final String SST_DIR = PERSIST_DIR + "ssts/";   // SSTable 存储目录
     public static final String BLOCK_META_DIR = PERSIST_DIR + "block_meta/"; // 物理块元数据目录
     public static final String SST_META_SUFFIX = ".txt";         // SSTable 元数据文件后缀
+    public static final String BLOOM_FILE_SUFFIX = ".bloom";     // SSTable 布隆过滤器文件后缀
+    public static int BLOOM_BITS_PER_KEY = 10;                   // 布隆过滤器每个 key 的位数（0=不建过滤器）
     public static final String BLOCK_META_SUFFIX = ".txt";     // 物理块元数据文件后缀
+    public static final String PAGE_FILE_SUFFIX = ".page";     // 物理页二进制文件后缀（见 PageFormat）
+    public static final String PAGE_META_FILE = "pagemeta.bin"; // 块内页有效性/引用计数记录文件（定长记录，原地更新）
+    public static boolean PAGE_TEXT_DUMP = false;              // 是否额外导出明文页文件（仅调试用，会显著增加写入量）
     public static final String KEY_RANGE_TREE_FILE = PERSIST_DIR + "key_range_tree.dat"; // 键范围树文件
-    public static final String MEMTABLE_FILE = PERSIST_DIR + "memtable.data";
+    public static final String MEMTABLE_FILE = PERSIST_DIR + "memtable.data"; // 旧版 Memtable 快照（仅启动时导入 WAL）
+    public static final String WAL_DIR = PERSIST_DIR + "wal/";              // WAL 段目录
+    public static WriteAheadLog.SyncPolicy WAL_SYNC_POLICY = WriteAheadLog.SyncPolicy.INTERVAL; // WAL 同步策略
+    public static long WAL_SYNC_INTERVAL_MS = 50;                            // INTERVAL 策略的 fsync 间隔
+    public static int WAL_RECYCLE_SEGMENTS = 2;                              // 保留复用的已回收 WAL 段文件数
     // LSM层级元数据持久化路径
-    public static final String LSM_LEVELS_FILE = PERSIST_DIR + "lsm_levels.data";
+    public static final String LSM_LEVELS_FILE = PERSIST_DIR + "lsm_levels.data"; // 旧版层级文件（仅启动时导入清单）
+    public static final String MANIFEST_FILE = PERSIST_DIR + "MANIFEST";          // 版本清单（追加写的层级变更记录）
+    public static int MANIFEST_SNAPSHOT_EDITS = 256;                               // 累计多少条变更后把清单重写为单条快照
+    // 二进制检查点（块表 + 层级清单 + SST 描述），打开时优先从此恢复
+    public static final String CHECKPOINT_FILE = PERSIST_DIR + "checkpoint.bin";
+    public static int CHECKPOINT_INTERVAL_FLUSHES = 16;                    // 每刷盘多少个 Memtable 写一次检查点（0=仅 cleanup 时写）
     // 元数据区配置（独立于数据区）
     public static final long META_ZONE_BLOCK_COUNT = 1000; // 元数据区占用10个块
     public static final String META_BLOCK_META_DIR = PERSIST_DIR + "meta_blocks/"; // 元数据区块元数据目录
+    public static final String DEVICE_IMAGE_FILE = PERSIST_DIR + "device.img"; // 设备镜像文件（IMAGE 后端）
+    public static long META_PAGE_CACHE_BYTES = 64L * 1024 * 1024; // 元数据页缓存容量（按估算字节数淘汰）
+    public static long PAGE_CACHE_BYTES = 64L * 1024 * 1024;      // KV 页读缓存容量（0=关闭）
+    public static int PAGE_CACHE_SHARDS = 16;                      // KV 页读缓存分片数
+    // 闪存设备后端：FILE=每块目录 + 每页文件（持久化），MEMORY=堆外缓冲区（易失，只计数，用于比较算法开销），
+    // IMAGE=单个定长设备镜像文件 + 定位 I/O（持久化）
+    public static FlashBackend.Kind FLASH_BACKEND = FlashBackend.Kind.FILE;
+
+    private static String persistDir(String dir) {
+        return dir.endsWith("/") ? dir : dir + "/";
+    }
 
 
 }
\ No newline at end of file
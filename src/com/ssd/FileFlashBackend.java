@@ -0,0 +1,372 @@
+package com.ssd;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 文件布局后端（原有布局）：
+ * <pre>
+ *   BLOCK_META_DIR/块ID/页号.page      数据页镜像（PageFormat）
+ *   BLOCK_META_DIR/块ID/blockdata.txt  块头（明文）
+ *   BLOCK_META_DIR/块ID/pagemeta.bin   每页有效性/引用计数定长记录（原地更新）
+ *   META_BLOCK_META_DIR/块ID.txt       元数据区块的页键范围索引（明文，临时文件 + 原子改名）
+ *   META_BLOCK_META_DIR/块ID/          元数据区块的页文件与块元数据（与数据区同名文件，块号独立编号）
+ * </pre>
+ * 擦除不删除页文件：块重新编程时逐页覆盖，擦除后的页状态以 pagemeta.bin 为准。
+ * 二进制页格式之前的旧版目录只有明文页文件（块ID/页号.txt）、没有 pagemeta.bin：数据页没有 .page 文件时按明文页读取，
+ * 文件扫描恢复时页状态取自明文页头；这些页被 GC 迁移或块重新编程后即以 .page 文件保存。
+ * 页文件与块元数据文件写入后只进入操作系统页缓存，记录在待同步集合中，由 {@link #sync} 统一 fsync（连同所在目录）。
+ */
+public class FileFlashBackend implements FlashBackend {
+    private final Counters counters = new Counters();
+    // 上次 sync 之后写入过的文件与新建/改名过文件的目录
+    private final Set<Path> unsyncedFiles = ConcurrentHashMap.newKeySet();
+    private final Set<Path> unsyncedDirs = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public Kind kind() {
+        return Kind.FILE;
+    }
+
+    @Override
+    public boolean persistent() {
+        return true;
+    }
+
+    /**
+     * 页文件路径：块目录/页编号.page（如 ./block_meta/0/22.page）
+     */
+    public static File pageFile(Zone zone, long ppa) {
+        return new File(blockDir(zone, Ppa.blockId(ppa)), Ppa.pageNo(ppa) + Constants.PAGE_FILE_SUFFIX);
+    }
+
+    /**
+     * 块目录：数据区在 BLOCK_META_DIR 下，元数据区在 META_BLOCK_META_DIR 下
+     */
+    public static File blockDir(Zone zone, long blockId) {
+        return new File((zone == Zone.META ? Constants.META_BLOCK_META_DIR : Constants.BLOCK_META_DIR) + blockId);
+    }
+
+    @Override
+    public byte[] readPage(Zone zone, long ppa) throws IOException {
+        File pageFile = pageFile(zone, ppa);
+        if (!pageFile.exists()) {
+            File textFile = legacyTextPageFile(ppa);
+            if (zone != Zone.DATA || !textFile.exists()) {
+                return null;
+            }
+            counters.pageReads.increment();
+            return PageFormat.encode(readLegacyTextPage(textFile, ppa, true));
+        }
+        counters.pageReads.increment();
+        return Files.readAllBytes(pageFile.toPath());
+    }
+
+    /**
+     * 从块目录重建块表（文件扫描，或检查点落后于清单）时读回已分配块的各页状态与引用计数：优先取 pagemeta.bin，
+     * 没有该文件的旧版数据块目录取各明文页文件的页头（VALID / REF_COUNT）。页内容不读入，需要时按需读取（与检查点恢复一致）
+     */
+    public void loadPageStates(Zone zone, KVSSD6.PhysicalBlock block) throws IOException {
+        File blockDir = blockDir(zone, block.blockId);
+        File pageMetaFile = new File(blockDir, Constants.PAGE_META_FILE);
+        byte[] records = pageMetaFile.exists() ? Files.readAllBytes(pageMetaFile.toPath()) : null;
+        for (int pageNo = 0; pageNo < block.pages.size(); pageNo++) {
+            long ppa = Ppa.of(block.blockId, pageNo);
+            KVSSD6.PhysicalPage page;
+            if (records != null) {
+                int offset = pageNo * PageFormat.PAGE_META_RECORD_SIZE;
+                if (offset + PageFormat.PAGE_META_RECORD_SIZE > records.length
+                        || records[offset] == PageFormat.PAGE_STATE_EMPTY) {
+                    continue;
+                }
+                page = new KVSSD6.PhysicalPage(ppa);
+                page.valid = records[offset] == PageFormat.PAGE_STATE_VALID;
+                page.refCount = ByteBuffer.wrap(records, offset + 1, 4).getInt();
+                block.markPageMetaPersisted(pageNo, records[offset], page.refCount);
+            } else {
+                File textFile = legacyTextPageFile(ppa);
+                if (zone != Zone.DATA || !textFile.exists()) {
+                    continue;
+                }
+                // 页状态尚未写入 pagemeta.bin，保持待同步，下次同步块元数据时补写
+                page = readLegacyTextPage(textFile, ppa, false);
+            }
+            page.dirty = false; // 页文件已存在
+            block.setPage(pageNo, page);
+        }
+    }
+
+    @Override
+    public void programPage(Zone zone, long ppa, byte[] image) throws IOException {
+        File blockDir = ensureBlockDir(zone, Ppa.blockId(ppa));
+        Path pagePath = new File(blockDir, Ppa.pageNo(ppa) + Constants.PAGE_FILE_SUFFIX).toPath();
+        Files.write(pagePath, image);
+        unsyncedFiles.add(pagePath);
+        unsyncedDirs.add(blockDir.toPath());
+        counters.pagePrograms.increment();
+        counters.bytesProgrammed.add(image.length);
+    }
+
+    @Override
+    public void eraseBlock(Zone zone, long blockId) {
+        counters.blockErases.increment();
+    }
+
+    @Override
+    public void syncMeta(Zone zone, KVSSD6.PhysicalBlock block) throws IOException {
+        File blockDir = ensureBlockDir(zone, block.blockId);
+        if (block.isHeaderDirty()) {
+            writeBlockHeader(blockDir, block);
+            block.markHeaderPersisted();
+            unsyncedFiles.add(new File(blockDir, "blockdata.txt").toPath());
+            unsyncedDirs.add(blockDir.toPath());
+        }
+        if (savePageMetaRecords(blockDir, block)) {
+            unsyncedFiles.add(new File(blockDir, Constants.PAGE_META_FILE).toPath());
+            unsyncedDirs.add(blockDir.toPath());
+        }
+        counters.metaSyncs.increment();
+    }
+
+    @Override
+    public byte[] readMetaBlock(long metaBlockId) throws IOException {
+        byte[] image = readMetaBlockFile(metaBlockId);
+        if (image != null) {
+            counters.metaBlockReads.increment();
+        }
+        return image;
+    }
+
+    @Override
+    public void writeMetaBlock(long metaBlockId, byte[] image) throws IOException {
+        writeMetaBlockFile(metaBlockId, image);
+        unsyncedDirs.add(Paths.get(Constants.META_BLOCK_META_DIR));
+        counters.metaBlockWrites.increment();
+    }
+
+    /**
+     * 先 fsync 文件再 fsync 目录（目录项指向的文件内容须先落盘）；失败的条目放回待同步集合，下次重试
+     */
+    @Override
+    public void sync() throws IOException {
+        drain(unsyncedFiles, false);
+        drain(unsyncedDirs, true);
+        counters.syncs.increment();
+    }
+
+    @Override
+    public void close() {
+        // 每次读写各自打开并关闭文件，没有常驻句柄
+    }
+
+    @Override
+    public Counters counters() {
+        return counters;
+    }
+
+    private static File metaBlockFile(long metaBlockId) {
+        return new File(Constants.META_BLOCK_META_DIR + metaBlockId + Constants.BLOCK_META_SUFFIX);
+    }
+
+    /**
+     * 读取元数据区块明文文件（设备镜像后端同样使用），不存在时返回 null
+     */
+    static byte[] readMetaBlockFile(long metaBlockId) throws IOException {
+        File metaFile = metaBlockFile(metaBlockId);
+        if (!metaFile.exists()) {
+            return null;
+        }
+        return Files.readAllBytes(metaFile.toPath());
+    }
+
+    /**
+     * 先写临时文件再原子改名：读路径不加锁地加载元数据页索引，不能读到写了一半的文件；
+     * 改名前先 fsync 临时文件，掉电后目录项不会指向内容未落盘的文件（目录本身由调用方在 sync 时 fsync）
+     */
+    static void writeMetaBlockFile(long metaBlockId, byte[] image) throws IOException {
+        File metaFile = metaBlockFile(metaBlockId);
+        File tmpFile = new File(metaFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(image);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpFile.toPath(), metaFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * fsync 单个文件或目录；文件已被删除时忽略，平台不支持打开目录（如 Windows）时跳过目录 fsync
+     */
+    static void fsync(Path path, boolean directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // 已删除（如失效 SST 的描述文件），无需落盘
+        } catch (IOException e) {
+            if (!directory) {
+                throw e;
+            }
+        }
+    }
+
+    private static void drain(Set<Path> paths, boolean directories) throws IOException {
+        for (Iterator<Path> it = paths.iterator(); it.hasNext(); ) {
+            Path path = it.next();
+            it.remove();
+            try {
+                fsync(path, directories);
+            } catch (IOException e) {
+                paths.add(path);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 旧版明文页文件：块目录/页编号.txt（与 PAGE_TEXT_DUMP 调试导出同名，调试导出总是伴随 .page 文件，不会被当作旧版页读取）
+     */
+    private static File legacyTextPageFile(long ppa) {
+        return new File(blockDir(Zone.DATA, Ppa.blockId(ppa)), Ppa.pageNo(ppa) + ".txt");
+    }
+
+    /**
+     * 解析旧版明文页：页头中的 VALID / REF_COUNT / 键范围，以及 KV_PAIRS_START 与 KV_PAIRS_END 之间的
+     * "key->value" 行（按第一个 "->" 分割，还原保存时转义的 "-#->"，与原读取逻辑一致）；withData 为 false 时只读页头
+     */
+    private static KVSSD6.PhysicalPage readLegacyTextPage(File textFile, long ppa, boolean withData) throws IOException {
+        KVSSD6.PhysicalPage page = new KVSSD6.PhysicalPage(ppa);
+        boolean parsingKvPairs = false;
+        try (BufferedReader reader = Files.newBufferedReader(textFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (parsingKvPairs) {
+                    if (line.equals("KV_PAIRS_END")) {
+                        break;
+                    }
+                    String[] kvParts = line.split("->", 2);
+                    if (kvParts.length != 2) {
+                        System.err.printf("页文件[%s]存在无效KV格式：%s%n", textFile.getPath(), line);
+                        continue;
+                    }
+                    page.data.add(new Pair<>(kvParts[0].trim().replace("-#->", "->"),
+                            kvParts[1].trim().replace("-#->", "->")));
+                } else if (line.startsWith("VALID=")) {
+                    page.valid = Boolean.parseBoolean(line.substring("VALID=".length()));
+                } else if (line.startsWith("REF_COUNT=")) {
+                    page.refCount = Integer.parseInt(line.substring("REF_COUNT=".length()));
+                } else if (line.startsWith("KEY_RANGE_START=")) {
+                    page.keyRange = new Pair<>(line.substring("KEY_RANGE_START=".length()), page.keyRange.second);
+                } else if (line.startsWith("KEY_RANGE_END=")) {
+                    page.keyRange = new Pair<>(page.keyRange.first, line.substring("KEY_RANGE_END=".length()));
+                } else if (line.equals("KV_PAIRS_START")) {
+                    if (!withData) {
+                        break;
+                    }
+                    parsingKvPairs = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed legacy page file " + textFile.getPath() + ": " + e.getMessage());
+        }
+        return page;
+    }
+
+    private static File ensureBlockDir(Zone zone, long blockId) throws IOException {
+        File blockDir = blockDir(zone, blockId);
+        // 若目录不存在则创建（包括父目录，避免路径不存在错误）
+        if (!blockDir.exists() && !blockDir.mkdirs()) {
+            throw new IOException("创建块专属目录失败：" + blockDir.getAbsolutePath());
+        }
+        return blockDir;
+    }
+
+    /**
+     * 原地更新块的页元数据文件（pagemeta.bin），每页一条定长记录，仅写入与上次落盘不同的记录；返回是否写入了记录
+     */
+    private static boolean savePageMetaRecords(File blockDir, KVSSD6.PhysicalBlock block) throws IOException {
+        RandomAccessFile metaFile = null;
+        try {
+            for (int pageNo = 0; pageNo < block.pages.size(); pageNo++) {
+                KVSSD6.PhysicalPage page = block.pages.get(pageNo);
+                byte state = PageFormat.pageState(page);
+                int refCount = page == null ? 0 : page.refCount;
+                if (!block.isPageMetaDirty(pageNo, state, refCount)) {
+                    continue;
+                }
+                if (metaFile == null) {
+                    metaFile = new RandomAccessFile(new File(blockDir, Constants.PAGE_META_FILE), "rw");
+                }
+                metaFile.seek((long) pageNo * PageFormat.PAGE_META_RECORD_SIZE);
+                metaFile.writeByte(state);
+                metaFile.writeInt(refCount);
+                block.markPageMetaPersisted(pageNo, state, refCount);
+            }
+        } finally {
+            if (metaFile != null) {
+                metaFile.close();
+            }
+        }
+        return metaFile != null;
+    }
+
+    /**
+     * 写入块基础信息到 blockdata.txt
+     */
+    private static void writeBlockHeader(File blockDir, KVSSD6.PhysicalBlock block) throws IOException {
+        File blockDataFile = new File(blockDir, "blockdata.txt");
+        try (BufferedWriter blockDataWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(blockDataFile), StandardCharsets.UTF_8))) {
+
+            // 写入块基础信息（对应原需求中需要拆分的部分）
+            blockDataWriter.write("===================== PHYSICAL_BLOCK =====================");
+            blockDataWriter.newLine();
+            blockDataWriter.write("BLOCK_ID=" + block.blockId);
+            blockDataWriter.newLine();
+            blockDataWriter.write("LEVEL=" + block.level);
+            blockDataWriter.newLine();
+            blockDataWriter.write("ALLOCATED=" + block.allocated);
+            blockDataWriter.newLine();
+            blockDataWriter.write("SST_COUNT=" + block.sstables.size());
+            blockDataWriter.newLine();
+            blockDataWriter.write("PAGE_COUNT=" + block.pages.size()); // 总页容量（如128）
+            blockDataWriter.newLine();
+            blockDataWriter.write("----------------------------------------------------------");
+            blockDataWriter.newLine();
+
+            // 补充关联SST列表（原逻辑中在页信息前，现在随基础信息存入blockdata.txt更合理）
+            String sstList = String.join(",",
+                    block.sstables.stream().map(String::valueOf).collect(Collectors.toList()));
+            blockDataWriter.write("ASSOCIATED_SSTS=" + sstList);
+            blockDataWriter.newLine();
+            blockDataWriter.write("==========================================================");
+            blockDataWriter.newLine();
+        }
+    }
+}
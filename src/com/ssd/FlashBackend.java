@@ -0,0 +1,137 @@
+package com.ssd;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 闪存设备后端：KVSSD6 对数据页、块元数据与元数据区块的全部设备读写都经由此接口。
+ * <p>
+ * 数据页以 {@link PageFormat} 编码后的镜像读写，按 {@link Zone} + PPA 寻址；块元数据（块头 + 每页有效性/引用计数记录）
+ * 由 {@link #syncMeta} 增量同步；元数据区块的页键范围索引以整块镜像整体替换。
+ * SST 描述文件、布隆过滤器、清单、检查点与 WAL 属于主机侧文件，不经过后端。
+ */
+public interface FlashBackend {
+
+    enum Kind {
+        FILE,   // 每块一个目录、每页一个 .page 文件（原有布局）
+        MEMORY, // 页存放在堆外缓冲区，只计数不落盘（用于比较算法本身的开销）
+        IMAGE   // 单个定长设备镜像文件，页按 block*BLOCK_SIZE + page*PAGE_SIZE 定位读写
+    }
+
+    /**
+     * 设备地址空间：数据区与元数据区的块号各自从 0 编号（元数据区可扩容到超出 META_ZONE_BLOCK_COUNT），
+     * 同一块号在两区是互不相干的物理块，页、块元数据与擦除都按区分开寻址
+     */
+    enum Zone {
+        DATA,
+        META
+    }
+
+    /**
+     * 设备访问计数（各实现共用）
+     */
+    final class Counters {
+        final LongAdder pageReads = new LongAdder();
+        final LongAdder pagePrograms = new LongAdder();
+        final LongAdder bytesProgrammed = new LongAdder();
+        final LongAdder blockErases = new LongAdder();
+        final LongAdder metaSyncs = new LongAdder();
+        final LongAdder metaBlockReads = new LongAdder();
+        final LongAdder metaBlockWrites = new LongAdder();
+        final LongAdder syncs = new LongAdder();
+
+        public long pageReads() {
+            return pageReads.sum();
+        }
+
+        public long pagePrograms() {
+            return pagePrograms.sum();
+        }
+
+        public long bytesProgrammed() {
+            return bytesProgrammed.sum();
+        }
+
+        public long blockErases() {
+            return blockErases.sum();
+        }
+
+        public long metaSyncs() {
+            return metaSyncs.sum();
+        }
+
+        public long metaBlockReads() {
+            return metaBlockReads.sum();
+        }
+
+        public long metaBlockWrites() {
+            return metaBlockWrites.sum();
+        }
+
+        public long syncs() {
+            return syncs.sum();
+        }
+    }
+
+    static FlashBackend create(Kind kind, long totalCapacity) {
+        switch (kind) {
+            case MEMORY:
+                return new MemoryFlashBackend(totalCapacity / Constants.BLOCK_SIZE);
+            case IMAGE:
+                return new ImageFlashBackend(totalCapacity);
+            case FILE:
+            default:
+                return new FileFlashBackend();
+        }
+    }
+
+    Kind kind();
+
+    /**
+     * 设备内容是否跨进程保留；易失后端打开时视为已格式化的空设备
+     */
+    boolean persistent();
+
+    /**
+     * 读取页镜像；该页从未编程（或已擦除）时返回 null
+     */
+    byte[] readPage(Zone zone, long ppa) throws IOException;
+
+    /**
+     * 编程页（整页镜像覆盖写入）
+     */
+    void programPage(Zone zone, long ppa, byte[] image) throws IOException;
+
+    /**
+     * 擦除块：块内各页镜像作废，之后可重新编程
+     */
+    void eraseBlock(Zone zone, long blockId) throws IOException;
+
+    /**
+     * 增量同步块元数据：块头变化时重写块头，每页有效性/引用计数记录只写与上次同步不同的条目
+     */
+    void syncMeta(Zone zone, KVSSD6.PhysicalBlock block) throws IOException;
+
+    /**
+     * 读取元数据区块镜像（页键范围索引）；不存在时返回 null
+     */
+    byte[] readMetaBlock(long metaBlockId) throws IOException;
+
+    /**
+     * 整体替换元数据区块镜像；读路径不加锁读取，实现须保证读方不会看到写了一半的镜像
+     */
+    void writeMetaBlock(long metaBlockId, byte[] image) throws IOException;
+
+    /**
+     * 把此前编程的页、同步的块元数据与写入的元数据区块强制落到持久介质（fsync）；
+     * 返回后这些内容在掉电后仍然存在，调用方据此提交清单、释放 WAL 段。易失后端为空操作
+     */
+    void sync() throws IOException;
+
+    /**
+     * 关闭设备，释放常驻的文件句柄与缓冲区；调用方须先停止全部设备访问，关闭后不得再读写
+     */
+    void close() throws IOException;
+
+    Counters counters();
+}
@@ -0,0 +1,152 @@
+package com.ssd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GC 受害块索引：按无效页数分桶（桶内按最近修改时间从旧到新），页失效时增量调整，选择受害块无需扫描全部物理块。
+ * <ul>
+ *   <li>GREEDY：无效页最多的块优先（同数量取最久未修改的）</li>
+ *   <li>COST_BENEFIT：得分 = 年龄 × 无效页数 / (1 + 2 × 有效页数)，有效页需读出再写入，故迁移代价按 2 倍计；
+ *       同一桶内年龄最大者得分最高，因此只需比较每个桶的前几个块</li>
+ *   <li>WINDOWED_GREEDY：只在最早分配的 window 个块中按无效页数贪心选择</li>
+ * </ul>
+ * 年龄以逻辑时钟计（每次登记/页失效推进 1）。非线程安全，调用方需持有 lsmLock。
+ */
+public class GcVictimIndex {
+
+    public enum Policy {
+        GREEDY, COST_BENEFIT, WINDOWED_GREEDY
+    }
+
+    private static final class Entry {
+        int invalidPages;
+        long lastModified;
+    }
+
+    private final Map<Long, KVSSD6.PhysicalBlock> blocks;
+    private final Policy policy;
+    private final int window;
+    private final int pagesPerBlock;
+    private final List<LinkedHashSet<Long>> buckets;             // 下标=无效页数
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final LinkedHashSet<Long> allocationOrder = new LinkedHashSet<>(); // WINDOWED_GREEDY 用
+    private long clock;
+
+    public GcVictimIndex(Map<Long, KVSSD6.PhysicalBlock> blocks, Policy policy, int window) {
+        this.blocks = blocks;
+        this.policy = policy;
+        this.window = Math.max(1, window);
+        this.pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+        this.buckets = new ArrayList<>(pagesPerBlock + 1);
+        for (int i = 0; i <= pagesPerBlock; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    /**
+     * 登记一个已分配的数据块（分配或加载时调用），invalidPages 为其当前无效页数
+     */
+    public void track(long blockId, int invalidPages) {
+        untrack(blockId);
+        Entry entry = new Entry();
+        entry.invalidPages = Math.min(Math.max(invalidPages, 0), pagesPerBlock);
+        entry.lastModified = ++clock;
+        entries.put(blockId, entry);
+        buckets.get(entry.invalidPages).add(blockId);
+        allocationOrder.add(blockId);
+    }
+
+    /**
+     * 块被擦除或归还时移除
+     */
+    public void untrack(long blockId) {
+        Entry entry = entries.remove(blockId);
+        if (entry != null) {
+            buckets.get(entry.invalidPages).remove(blockId);
+            allocationOrder.remove(blockId);
+        }
+    }
+
+    /**
+     * 块内一个页由有效变为无效：移到上一个桶的末尾（成为该桶中最近修改的块）
+     */
+    public void pageInvalidated(long blockId) {
+        Entry entry = entries.get(blockId);
+        if (entry == null || entry.invalidPages >= pagesPerBlock) {
+            return;
+        }
+        buckets.get(entry.invalidPages).remove(blockId);
+        entry.invalidPages++;
+        entry.lastModified = ++clock;
+        buckets.get(entry.invalidPages).add(blockId);
+    }
+
+    /**
+     * 按策略选出最多 count 个无效页数不少于 minInvalidPages 的受害块
+     */
+    public List<Long> selectVictims(int count, int minInvalidPages) {
+        int minBucket = Math.max(1, minInvalidPages);
+        switch (policy) {
+            case COST_BENEFIT:
+                return selectCostBenefit(count, minBucket);
+            case WINDOWED_GREEDY:
+                return selectWindowed(count, minBucket);
+            default:
+                return selectGreedy(count, minBucket);
+        }
+    }
+
+    private List<Long> selectGreedy(int count, int minBucket) {
+        List<Long> victims = new ArrayList<>(count);
+        for (int bucket = pagesPerBlock; bucket >= minBucket && victims.size() < count; bucket--) {
+            Iterator<Long> it = buckets.get(bucket).iterator();
+            while (it.hasNext() && victims.size() < count) {
+                victims.add(it.next());
+            }
+        }
+        return victims;
+    }
+
+    private List<Long> selectCostBenefit(int count, int minBucket) {
+        // 每个桶内年龄递减，只有各桶的前 count 个块可能入选
+        List<Long> candidates = new ArrayList<>();
+        for (int bucket = minBucket; bucket <= pagesPerBlock; bucket++) {
+            Iterator<Long> it = buckets.get(bucket).iterator();
+            for (int i = 0; i < count && it.hasNext(); i++) {
+                candidates.add(it.next());
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(costBenefit(b), costBenefit(a)));
+        return new ArrayList<>(candidates.subList(0, Math.min(count, candidates.size())));
+    }
+
+    private List<Long> selectWindowed(int count, int minBucket) {
+        List<Long> candidates = new ArrayList<>(window);
+        Iterator<Long> it = allocationOrder.iterator();
+        for (int i = 0; i < window && it.hasNext(); i++) {
+            long blockId = it.next();
+            if (entries.get(blockId).invalidPages >= minBucket) {
+                candidates.add(blockId);
+            }
+        }
+        candidates.sort((a, b) -> Integer.compare(entries.get(b).invalidPages, entries.get(a).invalidPages));
+        return new ArrayList<>(candidates.subList(0, Math.min(count, candidates.size())));
+    }
+
+    private double costBenefit(long blockId) {
+        Entry entry = entries.get(blockId);
+        KVSSD6.PhysicalBlock block = blocks.get(blockId);
+        int validPages = block == null ? 0 : Math.max(0, block.usedPageCount() - entry.invalidPages);
+        long age = clock - entry.lastModified + 1;
+        return (double) age * entry.invalidPages / (1 + 2.0 * validPages);
+    }
+}
@@ -0,0 +1,346 @@
+package com.ssd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 设备镜像后端：整个闪存是一个按 totalCapacity 预先定长的镜像文件（DEVICE_IMAGE_FILE），按真实 KVSSD 的介质布局寻址：
+ * <pre>
+ *   [0, totalCapacity)                       数据区：页 (block, page) 位于 block*BLOCK_SIZE + page*PAGE_SIZE，
+ *                                            槽位内为 [int 镜像长度][页镜像]（长度 0 = 未编程/已擦除）
+ *   [totalCapacity, 2*totalCapacity)         备用区（spare）：与数据区一一对应，存放超出页槽位的镜像尾部
+ *   [2*totalCapacity, +块数*R)               块元数据区：每块 R = H + 每块页数*5 字节，依次为定长块头与每页一条
+ *                                            [byte 状态][int 引用计数]
+ *   [元数据区基址 M, ...)                      元数据区（块号独立编号）：块 b 占 [M + b*S, M + (b+1)*S)，
+ *                                            S = 2*BLOCK_SIZE + R，依次为槽位、备用区与块元数据
+ * </pre>
+ * 块头 H = [byte 格式（0=从未写入）][byte 已分配][int 层级][int SST 数][long SST ID × 每块页数]：
+ * 关联的 SST 都至少在块内写过一页，数量不超过每块页数。
+ * 页镜像（PageFormat）含头部与偏移表，可能略大于 PAGE_SIZE，超出部分写入备用区，读取时多一次定位读；
+ * 镜像能放进槽位时，一次页读/页编程只有一次定位 I/O。镜像文件以稀疏方式定长（元数据区按 META_ZONE_BLOCK_COUNT 预留），
+ * 未写入的备用区不占空间；元数据区扩容出的块超出预留范围时，定位写入自动把文件延长。
+ * <p>
+ * 所有读写都是 FileChannel 定位 I/O（多线程并发安全，不移动文件指针），经由复用的堆外缓冲区；
+ * 擦除以一次定位写把整块数据区范围覆盖为 0。
+ * 块头变化时与页元数据记录一起同步；检查点缺失或过期时由 {@link #loadBlock} 从镜像重建块表（分配状态、层级、关联 SST 与页状态），
+ * 不会把仍有数据的块当作空闲块重新分配。元数据区块的页键范围索引是变长明文、由无锁读方整体读取，仍按文件布局以临时文件 + 原子改名保存。
+ */
+public class ImageFlashBackend implements FlashBackend {
+    private static final int SLOT_HEADER_SIZE = 4; // 槽位头：int 镜像长度
+    private static final byte BLOCK_HEADER_FORMAT = 1;
+
+    private final int pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+    private final long totalBlocks;
+    private final long dataAreaSize;
+    private final long blockMetaAreaOffset;
+    private final long pageMetaRecordsPerBlock; // 每块页元数据记录的字节数
+    private final int blockHeaderSize;
+    private final long blockMetaSize; // 每块块头 + 页元数据记录的字节数
+    private final long metaZoneOffset;
+    private final long metaZoneBlockStride;
+    private final FileChannel channel;
+    // 复用的页大小堆外缓冲区（读路径并发，按需借出、用完归还）
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    // 擦除用的全零块缓冲区（只读，各次擦除使用其副本视图）
+    private ByteBuffer zeroBlock;
+    // 上次 sync 之后写过元数据区块文件（临时文件 + 改名），其目录项需要 fsync
+    private volatile boolean metaBlockDirDirty;
+    private final Counters counters = new Counters();
+
+    public ImageFlashBackend(long totalCapacity) {
+        this.totalBlocks = totalCapacity / Constants.BLOCK_SIZE;
+        this.dataAreaSize = totalBlocks * Constants.BLOCK_SIZE;
+        this.blockMetaAreaOffset = 2 * dataAreaSize;
+        this.pageMetaRecordsPerBlock = (long) pagesPerBlock * PageFormat.PAGE_META_RECORD_SIZE;
+        this.blockHeaderSize = 1 + 1 + 4 + 4 + 8 * pagesPerBlock;
+        this.blockMetaSize = blockHeaderSize + pageMetaRecordsPerBlock;
+        this.metaZoneOffset = blockMetaAreaOffset + totalBlocks * blockMetaSize;
+        this.metaZoneBlockStride = 2 * Constants.BLOCK_SIZE + blockMetaSize;
+        long imageSize = metaZoneOffset + Constants.META_ZONE_BLOCK_COUNT * metaZoneBlockStride;
+        File imageFile = new File(Constants.DEVICE_IMAGE_FILE);
+        try {
+            File parent = imageFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("创建设备镜像目录失败：" + parent.getAbsolutePath());
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(imageFile, "rw")) {
+                if (raf.length() < imageSize) {
+                    raf.setLength(imageSize);
+                }
+            }
+            this.channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open device image: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Kind kind() {
+        return Kind.IMAGE;
+    }
+
+    @Override
+    public boolean persistent() {
+        return true;
+    }
+
+    @Override
+    public byte[] readPage(Zone zone, long ppa) throws IOException {
+        long offset = slotOffset(zone, ppa);
+        ByteBuffer buf = borrow();
+        try {
+            readFully(buf, offset);
+            int length = buf.getInt(0);
+            if (length <= 0) {
+                return null;
+            }
+            counters.pageReads.increment();
+            byte[] image = new byte[length];
+            int inSlot = Math.min(length, Constants.PAGE_SIZE - SLOT_HEADER_SIZE);
+            buf.get(SLOT_HEADER_SIZE, image, 0, inSlot);
+            if (inSlot < length) {
+                readSpare(spareOffset(zone, offset), image, inSlot, buf);
+            }
+            return image;
+        } finally {
+            bufferPool.offer(buf);
+        }
+    }
+
+    @Override
+    public void programPage(Zone zone, long ppa, byte[] image) throws IOException {
+        long offset = slotOffset(zone, ppa);
+        int inSlot = Math.min(image.length, Constants.PAGE_SIZE - SLOT_HEADER_SIZE);
+        if (image.length - inSlot > Constants.PAGE_SIZE) {
+            throw new IOException("Page image too large for device slot + spare area: " + image.length + " bytes");
+        }
+        ByteBuffer buf = borrow();
+        try {
+            if (inSlot < image.length) {
+                // 先写备用区中的尾部，再写槽位（含长度）：槽位长度生效时尾部已就绪
+                buf.put(image, inSlot, image.length - inSlot).flip();
+                writeFully(buf, spareOffset(zone, offset));
+                buf.clear();
+            }
+            buf.putInt(image.length).put(image, 0, inSlot).flip();
+            writeFully(buf, offset);
+        } finally {
+            bufferPool.offer(buf);
+        }
+        counters.pagePrograms.increment();
+        counters.bytesProgrammed.add(image.length);
+    }
+
+    @Override
+    public void eraseBlock(Zone zone, long blockId) throws IOException {
+        writeFully(zeroBlock().duplicate(), blockOffset(zone, blockId));
+        counters.blockErases.increment();
+    }
+
+    @Override
+    public void syncMeta(Zone zone, KVSSD6.PhysicalBlock block) throws IOException {
+        if (block.isHeaderDirty()) {
+            if (block.sstables.size() > pagesPerBlock) {
+                throw new IOException("Block " + block.blockId + " links " + block.sstables.size()
+                        + " SSTs, more than its header record holds");
+            }
+            ByteBuffer header = ByteBuffer.allocate(blockHeaderSize);
+            header.put(BLOCK_HEADER_FORMAT).put((byte) (block.allocated ? 1 : 0))
+                    .putInt(block.level).putInt(block.sstables.size());
+            for (long sstId : block.sstables) {
+                header.putLong(sstId);
+            }
+            header.clear(); // 整个定长块头写入，未用的 SST 槽位清零
+            writeFully(header, blockMetaOffset(zone, block.blockId));
+            block.markHeaderPersisted();
+        }
+        int pages = Math.min(block.pages.size(), pagesPerBlock);
+        byte[] states = new byte[pages];
+        int[] refCounts = new int[pages];
+        boolean dirty = false;
+        for (int pageNo = 0; pageNo < pages; pageNo++) {
+            KVSSD6.PhysicalPage page = block.pages.get(pageNo);
+            states[pageNo] = PageFormat.pageState(page);
+            refCounts[pageNo] = page == null ? 0 : page.refCount;
+            dirty |= block.isPageMetaDirty(pageNo, states[pageNo], refCounts[pageNo]);
+        }
+        if (dirty) {
+            // 有任一记录变化时整块记录一次定位写入（每块 640 字节，比逐条写少系统调用）
+            ByteBuffer records = ByteBuffer.allocate(pages * PageFormat.PAGE_META_RECORD_SIZE);
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                records.put(states[pageNo]).putInt(refCounts[pageNo]);
+            }
+            records.flip();
+            writeFully(records, blockMetaOffset(zone, block.blockId) + blockHeaderSize);
+            for (int pageNo = 0; pageNo < pages; pageNo++) {
+                block.markPageMetaPersisted(pageNo, states[pageNo], refCounts[pageNo]);
+            }
+        }
+        counters.metaSyncs.increment();
+    }
+
+    /**
+     * 从镜像读回块头与各页状态/引用计数（页内容不读入，需要时按需读取，与检查点恢复一致）；
+     * 块头从未写入时返回 null，由调用方按新块处理
+     */
+    public KVSSD6.PhysicalBlock loadBlock(Zone zone, long blockId) throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate((int) blockMetaSize);
+        readFully(meta, blockMetaOffset(zone, blockId));
+        meta.flip();
+        if (meta.get() != BLOCK_HEADER_FORMAT) {
+            return null;
+        }
+        KVSSD6.PhysicalBlock block = new KVSSD6.PhysicalBlock(blockId);
+        block.allocated = meta.get() != 0;
+        block.level = meta.getInt();
+        int sstCount = meta.getInt();
+        if (sstCount < 0 || sstCount > pagesPerBlock) {
+            throw new IOException("Corrupt header of block " + blockId + ": " + sstCount + " SSTs");
+        }
+        for (int i = 0; i < sstCount; i++) {
+            block.sstables.add(meta.getLong());
+        }
+        block.markHeaderPersisted();
+        meta.position(blockHeaderSize);
+        for (int pageNo = 0; pageNo < pagesPerBlock; pageNo++) {
+            byte state = meta.get();
+            int refCount = meta.getInt();
+            if (state == PageFormat.PAGE_STATE_EMPTY) {
+                continue;
+            }
+            KVSSD6.PhysicalPage page = new KVSSD6.PhysicalPage(Ppa.of(blockId, pageNo));
+            page.valid = state == PageFormat.PAGE_STATE_VALID;
+            page.refCount = refCount;
+            page.dirty = false; // 页镜像已在设备上
+            block.setPage(pageNo, page);
+            block.markPageMetaPersisted(pageNo, state, refCount);
+        }
+        return block;
+    }
+
+    @Override
+    public byte[] readMetaBlock(long metaBlockId) throws IOException {
+        byte[] image = FileFlashBackend.readMetaBlockFile(metaBlockId);
+        if (image != null) {
+            counters.metaBlockReads.increment();
+        }
+        return image;
+    }
+
+    @Override
+    public void writeMetaBlock(long metaBlockId, byte[] image) throws IOException {
+        FileFlashBackend.writeMetaBlockFile(metaBlockId, image);
+        metaBlockDirDirty = true;
+        counters.metaBlockWrites.increment();
+    }
+
+    /**
+     * 镜像文件整体 force（页槽位、备用区与页元数据记录都在同一文件中）；写过元数据区块文件时再 fsync 其目录
+     */
+    @Override
+    public void sync() throws IOException {
+        channel.force(true);
+        if (metaBlockDirDirty) {
+            metaBlockDirDirty = false;
+            FileFlashBackend.fsync(Paths.get(Constants.META_BLOCK_META_DIR), true);
+        }
+        counters.syncs.increment();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        bufferPool.clear();
+    }
+
+    @Override
+    public Counters counters() {
+        return counters;
+    }
+
+    /**
+     * 块的槽位起点：数据区块受设备容量限制，元数据区块号不设上限（扩容出的块位于预留范围之后）
+     */
+    private long blockOffset(Zone zone, long blockId) throws IOException {
+        if (blockId < 0 || (zone == Zone.DATA && blockId >= totalBlocks)) {
+            throw new IOException("Block out of device range: " + zone + " " + blockId);
+        }
+        return zone == Zone.META ? metaZoneOffset + blockId * metaZoneBlockStride : blockId * Constants.BLOCK_SIZE;
+    }
+
+    private long slotOffset(Zone zone, long ppa) throws IOException {
+        return blockOffset(zone, Ppa.blockId(ppa)) + (long) Ppa.pageNo(ppa) * Constants.PAGE_SIZE;
+    }
+
+    /**
+     * 槽位对应的备用区位置：数据区的备用区整体位于数据区之后，元数据区块的备用区紧跟在该块槽位之后
+     */
+    private long spareOffset(Zone zone, long slotOffset) {
+        return slotOffset + (zone == Zone.META ? Constants.BLOCK_SIZE : dataAreaSize);
+    }
+
+    /**
+     * 块元数据（块头 + 页元数据记录）的起点：数据区块位于块元数据区，元数据区块紧跟在该块备用区之后
+     */
+    private long blockMetaOffset(Zone zone, long blockId) throws IOException {
+        if (zone == Zone.META) {
+            return blockOffset(zone, blockId) + 2 * Constants.BLOCK_SIZE;
+        }
+        blockOffset(zone, blockId); // 只做范围检查
+        return blockMetaAreaOffset + blockId * blockMetaSize;
+    }
+
+    /**
+     * 从备用区读取镜像尾部（复用同一缓冲区）
+     */
+    private void readSpare(long spareOffset, byte[] image, int from, ByteBuffer buf) throws IOException {
+        buf.clear().limit(image.length - from);
+        readFully(buf, spareOffset);
+        buf.get(0, image, from, image.length - from);
+    }
+
+    private ByteBuffer borrow() {
+        ByteBuffer buf = bufferPool.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(Constants.PAGE_SIZE);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private synchronized ByteBuffer zeroBlock() {
+        if (zeroBlock == null) {
+            zeroBlock = ByteBuffer.allocateDirect((int) Constants.BLOCK_SIZE);
+        }
+        return zeroBlock;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                // 超出文件末尾（元数据区扩容出的块尚未写入），其余字节视为 0
+                while (buf.hasRemaining()) {
+                    buf.put((byte) 0);
+                }
+                break;
+            }
+            pos += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+}
@@ -7,75 +7,245 @@ import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.nio.file.*;
 
 /**
  * 支持持久化的 KVSSD 模拟器（基于 LSM 树），使用明文格式存储数据
  */
-public class KVSSD6{
+public class KVSSD6 implements AutoCloseable {
     // 内存数据结构（需与磁盘同步）
-    private final List<Pair<String, String>> memtable;
-    private final Queue<List<Pair<String, String>>> immutableMemtables;
+    private volatile Memtable memtable;
+    private final Deque<Memtable> immutableMemtables; // 队头最旧、队尾最新
+    // LSM 结构锁：后台刷盘、压缩与 GC 之间互斥；读路径只持有已发布 Version 的引用，不取此锁。
+    // 前台写入的窄路径：WAL 追加与 Memtable 写入在 this 上串行（换 Memtable 也在 this 上），组提交等待在锁外
+    private final Object lsmLock = new Object();
+    private final int maxImmutableMemtables;
+    // 压缩子任务线程池：newRunCompaction 的产出 SST 按键区间分成多个子压缩并行构建（并行度为 1 时不创建）
+    private final int compactionParallelism;
+    private final ForkJoinPool compactionPool;
+    private Thread flusherThread;
+    // 后台 GC 线程：空闲块比例低于低水位时被唤醒，回收到高水位为止；分配路径只在低于硬下限时前台 GC
+    private Thread gcThread;
+    // 后台压缩线程：刷盘后被唤醒，按层级得分（SST 数 / 该层上限）从高到低逐次压缩，不再在刷盘路径中递归级联
+    private Thread compactionThread;
+    // 已关闭：在 lsmLock 内置位，后台线程取得 lsmLock 后见到即退出，不再访问设备
+    private volatile boolean closed;
+    private final Object compactionSignal = new Object();
+    private boolean compactionRequested;
+    private boolean compactionIdle = true;
+    // 压缩债务快照（L0 SST 数、各层超出上限的 SST 总数），在 lsmLock 内更新，前台写入据此减速或停止
+    private volatile int l0SstCount;
+    private volatile int compactionDebt;
+    private final Object gcSignal = new Object();
+    private boolean gcRequested;
+    // 预写日志：每次写入先追加到 WAL（组提交），Memtable 写成 SSTable 后回收其段
+    private final WriteAheadLog wal;
     private final Map<Integer, List<SSTable>> lsmLevels;
+    // 每层的不可变键范围索引（层级变化后调用 rebuildLevelIndex 重建），只由持有 lsmLock 的一方修改，
+    // 一次结构变更完成后由 installVersion 整体发布为新的 Version，读路径只访问已发布的版本
+    private final Map<Integer, LevelIndex> levelIndexes = new ConcurrentHashMap<>();
+    // 当前发布的层级结构版本（读路径持有引用期间不加锁），以及被替换后仍可能有读取方引用的旧版本（lsmLock 保护）
+    private volatile Version currentVersion;
+    private long versionSequence;
+    private final List<Version> retiredVersions = new ArrayList<>();
     private long nextSstId;
     private final List<Long> levelCapacities;
     private final long totalBlocks;
     private final Map<Long, PhysicalBlock> physicalBlocks;
-    private final Queue<Long> freeBlocks;
+    // 数据区空闲块分配器（按层级空闲队列 + 全局 FIFO，无全局锁）
+    private final BlockAllocator blockAllocator;
+    // GC 受害块索引（已分配数据块按无效页数分桶，页失效时增量更新）
+    private final GcVictimIndex gcVictimIndex;
     private int nextPageNo;
     private Stats stats;
+    // 并发更新的计数器，getStats 时汇总到 Stats 快照
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder flashReads = new LongAdder();
+    private final LongAdder filterAvoidedReads = new LongAdder();
+    private final LongAdder metaCacheHits = new LongAdder();
+    private final LongAdder metaCacheMisses = new LongAdder();
+    private final LongAdder pageCacheHits = new LongAdder();
+    private final LongAdder pageCacheMisses = new LongAdder();
+    private final LongAdder[] readFlashHistogram = new LongAdder[10]; // 下标=闪存访问次数，最后一格为 8 次以上
+    private final LongAdder scanCount = new LongAdder();
+    private final LongAdder scanEntries = new LongAdder();
+    private final LongAdder scanReadAheads = new LongAdder();
+    // 范围扫描的顺序预读：读取一个 KV 页时在后台线程上提前读取同一元数据页中的下一页（放入页缓存）；
+    // 固定数量的守护平台线程，空闲时退出，不阻止进程结束
+    private final ExecutorService scanReadAheadExecutor = newScanReadAheadExecutor();
+    private final LongAdder compactionWriteSlowdowns = new LongAdder();
+    private final LongAdder compactionWriteStops = new LongAdder();
+    private final LongAdder compactionWriteStopMs = new LongAdder();
+    private final LongAdder flushRetries = new LongAdder();
+    // 后台刷盘/压缩/GC 与前台写入都会更新的计数器：同样用 LongAdder，写入放大在 getStats 时由两者相除得到
+    private final LongAdder userBytesWritten = new LongAdder(); // 应用写入的 KV 字节数
+    private final LongAdder totalFlashWrites = new LongAdder();
+    private final LongAdder writeStallCount = new LongAdder();
+    private final LongAdder compactionCount = new LongAdder();
+    private final LongAdder compactionTimeMs = new LongAdder();
+    private final LongAdder compactionPagesDropped = new LongAdder();
+    private final LongAdder gcCount = new LongAdder();
+    private final LongAdder gcPagesCopied = new LongAdder();
+    private final LongAdder gcBlocksReclaimed = new LongAdder();
+    private final LongAdder gcBackgroundRuns = new LongAdder();
+    private final LongAdder gcForegroundStalls = new LongAdder();
+    private final LongAdder gcForegroundStallMs = new LongAdder();
     // 元数据区专用块（独立于数据区的physicalBlocks）
     private final Map<Long, PhysicalBlock> metaPhysicalBlocks;
     private final Queue<Long> metaFreeBlocks; // 元数据区空闲块队列
-    // 持久化相关标记（确保刷盘时不重复操作）
-    private boolean isPersisting = false;
+    // 版本清单：每次刷盘/压缩追加一条原子变更；其版本序号同时作为检查点的元数据版本号，不一致即视为过期
+    private final VersionManifest manifest;
+    // 尚未提交到清单的层级变更，以及提交后才能删除的失效 SST 文件（崩溃时已提交版本仍引用它们）
+    private VersionManifest.Edit pendingEdit = new VersionManifest.Edit();
+    private final List<Long> obsoleteSstFiles = new ArrayList<>();
+    // 上次落盘同步之后写入的 SST 描述文件与布隆过滤器文件（提交清单前 fsync）
+    private final Set<Path> unsyncedSstFiles = ConcurrentHashMap.newKeySet();
+    private int flushesSinceCheckpoint = 0;
+    private long flushRetryBackoffMs = 0; // 刷盘失败后的当前退避时长（仅刷盘线程访问），成功后清零
+    // GC 迁移后元数据页条目已改写、需重写元数据文件的元数据区块
+    private final Set<Long> dirtyMetaBlocks = new HashSet<>();
+    // GC 迁移后页引用被改写、需重写 SST 文件的 SSTable
+    private final Set<SSTable> gcDirtySsts = new HashSet<>();
     // 日期格式化器（统一时间格式）
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final int CHECKPOINT_MAGIC = 0x4B56434B; // "KVCK"
+    private static final int CHECKPOINT_VERSION = 1;
     private KeyRangeComparator keyrangeComparator=new KeyRangeComparator();
+    // 元数据页缓存（按 metadataPagePpa 缓存解码后的页键范围索引）
+    private final MetaPageCache metaPageCache = new MetaPageCache(Constants.META_PAGE_CACHE_BYTES);
+    // KV 页读缓存（按 PPA，2Q 准入抵抗压缩/GC 扫描），页文件重写、GC 迁移和块擦除时失效
+    private final PageCache pageCache = new PageCache(Constants.PAGE_CACHE_BYTES, Constants.PAGE_CACHE_SHARDS);
+    // 页引用反向索引（KV页PPA → 引用的SST/元数据条目，SST → 数据块），GC 迁移与 SST 失效只处理实际引用者
+    private final PageReferenceIndex pageRefs = new PageReferenceIndex();
+    // 闪存设备后端：数据页、块元数据与元数据区块的读写（文件布局或纯内存）
+    private final FlashBackend backend;
 
     // ==================== 构造函数与初始化（含持久化加载）====================
-    public KVSSD6() {
-        this(15L * 1024 * 1024 * 1024); // 默认 15GB 容量
+    /**
+     * 打开设备并启动后台刷盘、压缩与 GC 线程（默认 15GB 容量）
+     */
+    public static KVSSD6 open() {
+        return open(15L * 1024 * 1024 * 1024);
+    }
+
+    public static KVSSD6 open(long totalCapacity) {
+        return open(totalCapacity, Constants.GC_VICTIM_POLICY);
     }
 
-    public KVSSD6(long totalCapacity) {
+    public static KVSSD6 open(long totalCapacity, GcVictimIndex.Policy gcPolicy) {
+        KVSSD6 kvssd = new KVSSD6(totalCapacity, gcPolicy);
+        kvssd.start();
+        return kvssd;
+    }
+
+    /**
+     * 只加载持久化状态，不启动后台线程（线程持有 this，不能在构造期间启动）；
+     * 子类构造完成后须调用 {@link #start()}，否则不可变 Memtable 永远不会刷盘
+     */
+    protected KVSSD6(long totalCapacity, GcVictimIndex.Policy gcPolicy) {
         // 初始化内存结构
-        this.memtable = Collections.synchronizedList(new ArrayList<>());
-        this.immutableMemtables = new LinkedBlockingQueue<>();
+        this.memtable = new Memtable();
+        this.immutableMemtables = new ConcurrentLinkedDeque<>();
+        this.maxImmutableMemtables = Math.max(1, Constants.MAX_IMMUTABLE_MEMTABLES);
+        this.compactionParallelism = Math.max(1, Constants.COMPACTION_PARALLELISM);
+        this.compactionPool = compactionParallelism > 1 ? new ForkJoinPool(compactionParallelism) : null;
         this.lsmLevels = new ConcurrentHashMap<>();
         this.nextSstId = 1;
         this.levelCapacities = new ArrayList<>();
         this.physicalBlocks = new ConcurrentHashMap<>();
-        this.freeBlocks = new LinkedList<>();
         this.nextPageNo = 0;
         this.stats = new Stats();
+        for (int i = 0; i < readFlashHistogram.length; i++) {
+            readFlashHistogram[i] = new LongAdder();
+        }
 
         // 初始化 LSM 层级容量
         for (int i = 0; i < 10; i++) {
             levelCapacities.add((long) (Constants.MAX_MEMTABLE_SIZE * Math.pow(Constants.LEVEL_RATIO, i)));
         }
 
-        // 初始化物理块（优先从磁盘加载，无则新建）
-        this.totalBlocks = totalCapacity / Constants.BLOCK_SIZE;
-        initPhysicalBlocksFromDisk(totalBlocks);
-
-        // 从磁盘加载持久化数据（SSTable、键范围树）
-        loadPersistedData();
-        loadMemtableFromDisk();
-
         // 初始化元数据区（独立于数据区）
         this.metaPhysicalBlocks = new ConcurrentHashMap<>();
         this.metaFreeBlocks = new LinkedList<>();
-        initMetaPhysicalBlocksFromDisk(Constants.META_ZONE_BLOCK_COUNT);
 
-        System.out.println("KVSSD_persistence initialized: " +
+        // 优先从二进制检查点一次性恢复块表、层级与 SST 描述；检查点缺失或过期时逐文件扫描
+        this.totalBlocks = totalCapacity / Constants.BLOCK_SIZE;
+        this.blockAllocator = new BlockAllocator(physicalBlocks, totalBlocks);
+        this.gcVictimIndex = new GcVictimIndex(physicalBlocks, gcPolicy, Constants.GC_WINDOW_BLOCKS);
+        this.backend = FlashBackend.create(Constants.FLASH_BACKEND, totalCapacity);
+        if (!backend.persistent()) {
+            resetPersistedState();
+        }
+        long openStart = System.nanoTime();
+        try {
+            this.manifest = new VersionManifest(new File(Constants.MANIFEST_FILE), Constants.MANIFEST_SNAPSHOT_EDITS);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open manifest: " + e.getMessage());
+        }
+        boolean fromCheckpoint = loadCheckpoint();
+        if (!fromCheckpoint) {
+            // 初始化物理块（优先从磁盘加载，无则新建）
+            initPhysicalBlocksFromDisk(totalBlocks);
+            // 从磁盘加载持久化数据（SSTable、键范围树）
+            loadPersistedData();
+            initMetaPhysicalBlocksFromDisk(Constants.META_ZONE_BLOCK_COUNT);
+        }
+        stats.openTimeMs = (System.nanoTime() - openStart) / 1_000_000;
+        stats.openedFromCheckpoint = fromCheckpoint;
+        try {
+            this.wal = new WriteAheadLog(new File(Constants.WAL_DIR),
+                    Constants.WAL_SYNC_POLICY, Constants.WAL_SYNC_INTERVAL_MS, Constants.WAL_RECYCLE_SEGMENTS);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open WAL: " + e.getMessage());
+        }
+        this.memtable.walSegment = wal.currentSegment();
+        recoverFromWal();
+        loadMemtableFromDisk();
+
+        // 发布加载完成的层级结构；上次运行遗留的超限层级交给后台压缩处理
+        synchronized (lsmLock) {
+            installVersion();
+            updateCompactionDebt();
+        }
+    }
+
+    /**
+     * 启动后台刷盘、压缩与 GC 线程（对象构造完成后由 open 调用，只能调用一次）
+     */
+    protected final void start() {
+        if (flusherThread != null) {
+            throw new IllegalStateException("KVSSD6 already started");
+        }
+        startFlusher();
+        startCompactionScheduler();
+        startGarbageCollector();
+        requestCompaction();
+
+        System.out.println("KVSSD_persistence initialized in " + stats.openTimeMs + " ms ("
+                + (stats.openedFromCheckpoint ? "checkpoint" : "file scan") + "): " +
                 "totalBlocks=" + totalBlocks + ", " +
                 "loadedSSTCount=" + getTotalSSTCount() + ", " +
-                "freeBlocks=" + freeBlocks.size());
+                "freeBlocks=" + blockAllocator.freeCount());
     }
     /**
      * 从元数据区分配块（专门用于存储元数据页）
@@ -109,16 +279,41 @@ public class KVSSD6{
         }
         return block;
     }
+    /**
+     * 易失设备打开时是空的：上次运行遗留的清单、检查点、SST 描述与 WAL 描述的是已不存在的设备内容，全部丢弃
+     */
+    private void resetPersistedState() {
+        try {
+            for (String file : new String[]{Constants.MANIFEST_FILE, Constants.CHECKPOINT_FILE,
+                    Constants.LSM_LEVELS_FILE, Constants.MEMTABLE_FILE, Constants.KEY_RANGE_TREE_FILE}) {
+                Files.deleteIfExists(Paths.get(file));
+            }
+            for (String dir : new String[]{Constants.SST_DIR, Constants.WAL_DIR}) {
+                Path root = Paths.get(dir);
+                if (!Files.exists(root)) {
+                    continue;
+                }
+                try (Stream<Path> paths = Files.walk(root)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to reset persisted state for volatile backend: " + e.getMessage());
+        }
+    }
+
     /**
      * 初始化元数据区物理块（独立于数据区）
      */
     private void initMetaPhysicalBlocksFromDisk(long totalMetaBlocks) {
         try {
-            Files.createDirectories(Paths.get(Constants.META_BLOCK_META_DIR));
+            if (backend.persistent()) {
+                Files.createDirectories(Paths.get(Constants.META_BLOCK_META_DIR));
+            }
 
             for (long blockId = 0; blockId < totalMetaBlocks; blockId++) {
                 File metaFile = new File(Constants.META_BLOCK_META_DIR + blockId + Constants.BLOCK_META_SUFFIX);
-                if (metaFile.exists()) {
+                if (backend.persistent() && metaFile.exists()) {
                     // 加载元数据区块（复用原有加载方法）
                     PhysicalBlock block = loadPhysicalBlockFromFile(blockId, metaFile);
                     metaPhysicalBlocks.put(blockId, block);
@@ -139,30 +334,65 @@ public class KVSSD6{
         }
     }
 
+    /**
+     * 从设备读回一个块的块头与页状态（不读页内容）；设备上没有该块的记录（块头从未写入）时返回 null
+     */
+    private PhysicalBlock loadBlockFromDevice(FlashBackend.Zone zone, long blockId) throws IOException {
+        if (backend instanceof FileFlashBackend) {
+            // 文件布局的块目录（含旧版明文页目录）：块头取自 blockdata.txt，已分配块的页状态取自 pagemeta.bin 或明文页头
+            File blockHeaderFile = new File(FileFlashBackend.blockDir(zone, blockId), "blockdata.txt");
+            if (!blockHeaderFile.exists()) {
+                return null;
+            }
+            PhysicalBlock block = loadPhysicalBlockFromFile(blockId, blockHeaderFile);
+            if (block.allocated) {
+                ((FileFlashBackend) backend).loadPageStates(zone, block);
+            }
+            return block;
+        }
+        if (backend instanceof ImageFlashBackend) {
+            // 设备镜像：块头与页状态取自镜像中的块元数据
+            return ((ImageFlashBackend) backend).loadBlock(zone, blockId);
+        }
+        return null;
+    }
+
     /**
      * 从磁盘加载物理块元数据（明文格式）
      */
     private void initPhysicalBlocksFromDisk(long totalBlocks) {
         try {
-            // 创建物理块元数据目录（不存在则创建）
-            Files.createDirectories(Paths.get(Constants.BLOCK_META_DIR));
+            // 创建物理块元数据目录（不存在则创建；只有文件布局后端使用该目录）
+            if (backend.kind() == FlashBackend.Kind.FILE) {
+                Files.createDirectories(Paths.get(Constants.BLOCK_META_DIR));
+            }
 
             // 遍历所有可能的块 ID，加载元数据
             for (long blockId = 0; blockId < totalBlocks; blockId++) {
                 File metaFile = new File(Constants.BLOCK_META_DIR + blockId + Constants.BLOCK_META_SUFFIX);
-                if (metaFile.exists()) {
+                PhysicalBlock block;
+                if (backend.persistent() && metaFile.exists()) {
                     // 从明文文件加载物理块
-                    PhysicalBlock block = loadPhysicalBlockFromFile(blockId, metaFile);
+                    block = loadPhysicalBlockFromFile(blockId, metaFile);
+                } else {
+                    block = loadBlockFromDevice(FlashBackend.Zone.DATA, blockId);
+                }
+                if (block != null) {
                     physicalBlocks.put(blockId, block);
-                    // 若块未分配，加入空闲列表
+                    for (long sstId : block.sstables) {
+                        pageRefs.linkBlock(sstId, blockId);
+                    }
+                    // 若块未分配，加入空闲列表；已分配块登记到 GC 受害块索引
                     if (!block.allocated) {
-                        freeBlocks.add(blockId);
+                        blockAllocator.release(block);
+                    } else {
+                        gcVictimIndex.track(blockId, block.invalidPageCount());
                     }
                 } else {
                     // 无元数据文件，创建新块
                     PhysicalBlock newBlock = new PhysicalBlock(blockId);
                     physicalBlocks.put(blockId, newBlock);
-                    freeBlocks.add(blockId);
+                    blockAllocator.release(newBlock);
                     // 持久化新块的初始元数据（明文格式）
                     savePhysicalBlockToFile(newBlock);
                 }
@@ -185,26 +415,113 @@ public class KVSSD6{
             throw new RuntimeException("Failed to load persisted data: " + e.getMessage());
         }
     }
+    /**
+     * 重放上次运行遗留的 WAL 段：每段恢复为一个不可变 Memtable，由后台刷盘线程写成 SSTable 后回收
+     */
+    private void recoverFromWal() {
+        for (long segment : wal.recoveredSegments()) {
+            Memtable recovered = new Memtable();
+            try {
+                int applied = wal.replay(segment, recovered::put);
+                System.out.println("WAL segment " + segment + " replayed: " + applied + " records, " + recovered.size() + " keys");
+            } catch (IOException e) {
+                System.err.println("Failed to replay WAL segment " + segment + ": " + e.getMessage());
+                continue; // 保留段文件，不回收
+            }
+            if (recovered.isEmpty()) {
+                wal.release(segment);
+                continue;
+            }
+            recovered.walSegment = segment;
+            immutableMemtables.addLast(recovered);
+        }
+    }
+
+    /**
+     * 导入旧版本 cleanup 写下的 memtable.data：写入当前 Memtable 并记入 WAL 后删除该文件
+     */
     private void loadMemtableFromDisk() {
         File memFile = new File(Constants.MEMTABLE_FILE);
         if (!memFile.exists()) {
-            System.out.println("No persisted memtable found.");
             return;
         }
+        List<Pair<String, String>> entries = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(memFile))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split("\\|", 2);
                 if (parts.length == 2) {
-                    memtable.add(new Pair<>(parts[0], parts[1]));
+                    entries.add(new Pair<>(parts[0], parts[1]));
                 }
             }
-            System.out.println("Memtable restored from disk: " + memtable.size() + " entries");
+            if (!entries.isEmpty()) {
+                wal.awaitDurable(wal.append(entries));
+                for (Pair<String, String> kv : entries) {
+                    memtable.put(kv.first, kv.second);
+                }
+            }
+            wal.sync();
+            Files.delete(memFile.toPath());
+            System.out.println("Legacy memtable imported into WAL: " + memtable.size() + " entries");
         } catch (IOException e) {
             System.err.println("Failed to load memtable: " + e.getMessage());
         }
     }
 
+    /**
+     * 按 lsmLevels 当前内容重建指定层级的键范围索引（层级为空则移除）
+     */
+    private void rebuildLevelIndex(int level) {
+        List<SSTable> ssts = lsmLevels.get(level);
+        if (ssts == null || ssts.isEmpty()) {
+            levelIndexes.remove(level);
+        } else {
+            levelIndexes.put(level, new LevelIndex(ssts));
+        }
+    }
+
+    /**
+     * 把当前各层索引发布为新版本（一次刷盘/压缩/GC 完成后调用，调用方持有 lsmLock）；
+     * 引擎释放对旧版本的引用，旧版本待读取方全部释放后才算退役
+     */
+    private void installVersion() {
+        Version previous = currentVersion;
+        currentVersion = new Version(++versionSequence, levelIndexes);
+        if (previous != null) {
+            retiredVersions.add(previous);
+            previous.release();
+        }
+        retiredVersions.removeIf(Version::isReleased);
+    }
+
+    /**
+     * 等待所有旧版本的读取方退出：此后不再有读取方能访问旧版本引用、而新版本已不引用的物理页，
+     * 擦除或复用这些页的一方须先调用（调用方持有 lsmLock；读路径不取 lsmLock，因此不会互相等待）
+     */
+    private void awaitRetiredVersions() {
+        for (Version version : retiredVersions) {
+            try {
+                version.awaitReleased();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for readers of version " + version.sequence());
+            }
+        }
+        retiredVersions.clear();
+    }
+
+    /**
+     * 取得当前版本的一个引用（读路径使用，结束时须 release）
+     */
+    private Version acquireVersion() {
+        while (true) {
+            Version version = currentVersion;
+            if (version.tryRetain()) {
+                return version;
+            }
+        }
+    }
+
     /**
      * 统计 LSM 树中所有层级的 SSTable 总数
      */
@@ -228,6 +545,7 @@ public class KVSSD6{
         // 2. 定义 SST 明文文件路径（单文件包含所有信息）
         String sstFilePath = Constants.SST_DIR + "sst_" + sst.sstId + ".sst";
         File sstFile = new File(sstFilePath);
+        unsyncedSstFiles.add(sstFile.toPath());
 
         // 3. 使用 BufferedWriter 写入纯明文内容
         try (BufferedWriter writer = new BufferedWriter(
@@ -248,7 +566,7 @@ public class KVSSD6{
             writer.newLine();
             writer.write("KEY_RANGE_END=" + sst.keyRange.second);
             writer.newLine();
-            writer.write("METADATA_PAGE_PPA=" + sst.metadataPage.ppa);
+            writer.write("METADATA_PAGE_PPA=" + Ppa.toString(sst.metadataPage.ppa));
             writer.newLine();
             writer.write("KV_PAGE_COUNT=" + sst.kvPages.size());
             writer.newLine();
@@ -283,9 +601,9 @@ public class KVSSD6{
         // 初始化SST基本字段
         SSTable sst = new SSTable(sstId, 0); // 层级后续从文件读取
         sst.keyRange = new Pair<>("", "");
-        sst.metadataPage = new PhysicalPage("");
+        sst.metadataPage = new PhysicalPage(Ppa.NULL);
         List<PhysicalPage> kvPages = new ArrayList<>();
-        sst.metadataPagePpa = new String();
+        sst.metadataPagePpa = Ppa.NULL;
 
         // 读取文件内容
         try (BufferedReader reader = new BufferedReader(
@@ -313,8 +631,8 @@ public class KVSSD6{
                     } else if (line.startsWith("KEY_RANGE_END=")) {
                         sst.keyRange.second = line.substring("KEY_RANGE_END=".length());
                     } else if (line.startsWith("METADATA_PAGE_PPA=")) {
-                        sst.metadataPage.ppa = line.substring("METADATA_PAGE_PPA=".length());
-                        sst.metadataPagePpa=line.substring("METADATA_PAGE_PPA=".length());
+                        sst.metadataPage.ppa = Ppa.parse(line.substring("METADATA_PAGE_PPA=".length()));
+                        sst.metadataPagePpa = sst.metadataPage.ppa;
                     } else if (line.equals("-------------------------- METADATA_PAGE --------------------------")) {
                         parsingHeader = false;
                         parsingMetadataPage = true;
@@ -326,106 +644,248 @@ public class KVSSD6{
 
         // 完善SSTable对象
         sst.pageCounter = 1;
+        sst.bloomFilter = loadBloomFilterFromFile(sstId);
+        // SST 文件不含元数据页条目：从元数据区块读回（压缩按条目收集 KV 页，页引用索引也按条目登记，缺失会丢页）
+        List<MetaPageIndex.Entry> entries = readMetaPageEntries(sst);
+        if (entries != null) {
+            for (MetaPageIndex.Entry entry : entries) {
+                sst.metadataPage.metaEntries.add(new Pair<>(entry.ppa, entry.seq > 0
+                        ? MetaPageIndex.entryRange(entry.minKey, entry.maxKey, entry.seq)
+                        : entry.minKey + "|" + entry.maxKey));
+            }
+        }
 
         System.out.println("SSTable loaded (plain text): SST_ID=" + sstId +
-                " | Level=" + sst.level + " | meta page ppa=" + sst.metadataPagePpa);
+                " | Level=" + sst.level + " | meta page ppa=" + Ppa.toString(sst.metadataPagePpa));
         return sst;
     }
 
+    /**
+     * 布隆过滤器文件路径（与 SST 文件同目录：sst_{id}.bloom）
+     */
+    private File bloomFilterFile(long sstId) {
+        return new File(Constants.SST_DIR + "sst_" + sstId + Constants.BLOOM_FILE_SUFFIX);
+    }
+
+    private void saveBloomFilterToFile(SSTable sst) throws IOException {
+        if (sst == null || sst.bloomFilter == null) return;
+        Files.createDirectories(Paths.get(Constants.SST_DIR));
+        unsyncedSstFiles.add(bloomFilterFile(sst.sstId).toPath());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(bloomFilterFile(sst.sstId))))) {
+            sst.bloomFilter.writeTo(out);
+        }
+    }
+
+    private BloomFilter loadBloomFilterFromFile(long sstId) {
+        File file = bloomFilterFile(sstId);
+        if (!file.exists()) {
+            return null; // 旧数据无过滤器，查询时不做过滤
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return BloomFilter.readFrom(in);
+        } catch (IOException e) {
+            System.err.println("Failed to load bloom filter of SST " + sstId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 按元数据页条目（KV页PPA → 键范围）从已读出的各页 key 构建压缩产出 SST 的布隆过滤器
+     */
+    private BloomFilter buildBloomFilter(List<Pair<Long, String>> pageEntries, Map<Long, List<String>> pageKeys) {
+        if (Constants.BLOOM_BITS_PER_KEY <= 0) {
+            return null;
+        }
+        int keyCount = 0;
+        for (Pair<Long, String> entry : pageEntries) {
+            List<String> keys = pageKeys.get(entry.first);
+            if (keys == null) {
+                return null; // 任一页不可读时不建过滤器，避免误判导致漏读
+            }
+            keyCount += keys.size();
+        }
+        BloomFilter filter = new BloomFilter(keyCount, Constants.BLOOM_BITS_PER_KEY);
+        for (Pair<Long, String> entry : pageEntries) {
+            for (String key : pageKeys.get(entry.first)) {
+                filter.add(key);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * 读出参与压缩的全部 KV 页中的 key，每页只解码一次，供覆盖判断与布隆过滤器共用；
+     * 并行度大于 1 时按页均分在压缩线程池上读取，读不出的页不在结果中
+     */
+    private Map<Long, List<String>> readCompactionPageKeys(List<Pair<Long, String>> pageEntries) {
+        Map<Long, List<String>> pageKeys = new HashMap<>();
+        int parallelism = compactionPool == null ? 1 : Math.min(compactionParallelism, pageEntries.size());
+        if (parallelism <= 1) {
+            readPageKeysInto(pageEntries, pageKeys);
+            return pageKeys;
+        }
+        List<Callable<Map<Long, List<String>>>> readers = new ArrayList<>(parallelism);
+        int chunk = (pageEntries.size() + parallelism - 1) / parallelism;
+        for (int from = 0; from < pageEntries.size(); from += chunk) {
+            List<Pair<Long, String>> range = pageEntries.subList(from, Math.min(from + chunk, pageEntries.size()));
+            readers.add(() -> {
+                Map<Long, List<String>> keys = new HashMap<>();
+                readPageKeysInto(range, keys);
+                return keys;
+            });
+        }
+        for (Future<Map<Long, List<String>>> result : compactionPool.invokeAll(readers)) {
+            try {
+                pageKeys.putAll(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading compaction pages");
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to read compaction pages: " + e.getCause());
+            }
+        }
+        return pageKeys;
+    }
+
+    private void readPageKeysInto(List<Pair<Long, String>> pageEntries, Map<Long, List<String>> pageKeys) {
+        for (Pair<Long, String> entry : pageEntries) {
+            List<Pair<String, String>> kvs = readPageKvs(entry.first);
+            if (kvs == null) {
+                continue;
+            }
+            List<String> keys = new ArrayList<>(kvs.size());
+            for (Pair<String, String> kv : kvs) {
+                keys.add(kv.first);
+            }
+            pageKeys.put(entry.first, keys);
+        }
+    }
+
+    /**
+     * 读取 KV 页内容：优先使用内存中的物理页，否则读取二进制页文件
+     */
+    private List<Pair<String, String>> readPageKvs(long ppa) {
+        long blockId = Ppa.blockId(ppa);
+        int pageNo = Ppa.pageNo(ppa);
+        PhysicalBlock block = physicalBlocks.get(blockId);
+        if (block != null) {
+            PhysicalPage page = block.pages.get(pageNo);
+            if (page != null && page.ppa == ppa && !page.data.isEmpty()) {
+                return page.data;
+            }
+        }
+        try {
+            byte[] image = backend.readPage(FlashBackend.Zone.DATA, ppa);
+            if (image == null) {
+                throw new IOException("page not programmed");
+            }
+            return PageFormat.decode(image);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read page " + Ppa.toString(ppa) + " for bloom filter: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 增量持久化物理块：只编程内容变化的页，块头与有效性/引用计数变化的页元数据记录交给后端同步
+     */
     private void savePhysicalBlockToFile(PhysicalBlock block) throws IOException {
         if (block == null) return;
+        FlashBackend.Zone zone = zoneOf(block);
 
-        // -------------------------- 核心步骤1：创建块专属目录 --------------------------
-        // 目录路径：Constants.BLOCK_META_DIR + 块ID（如 "./block_meta/0"）
-        File blockDir = new File(Constants.BLOCK_META_DIR + block.blockId);
-        // 若目录不存在则创建（包括父目录，避免路径不存在错误）
-        if (!blockDir.exists() && !blockDir.mkdirs()) {
-            throw new IOException("创建块专属目录失败：" + blockDir.getAbsolutePath());
-        }
-
-        // -------------------------- 核心步骤2：写入块基础信息到 blockdata.txt --------------------------
-        File blockDataFile = new File(blockDir, "blockdata.txt");
-        try (BufferedWriter blockDataWriter = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(blockDataFile), StandardCharsets.UTF_8))) {
-
-            // 写入块基础信息（对应原需求中需要拆分的部分）
-            blockDataWriter.write("===================== PHYSICAL_BLOCK =====================");
-            blockDataWriter.newLine();
-            blockDataWriter.write("BLOCK_ID=" + block.blockId);
-            blockDataWriter.newLine();
-            blockDataWriter.write("LEVEL=" + block.level);
-            blockDataWriter.newLine();
-            blockDataWriter.write("ALLOCATED=" + block.allocated);
-            blockDataWriter.newLine();
-            blockDataWriter.write("SST_COUNT=" + block.sstables.size());
-            blockDataWriter.newLine();
-            blockDataWriter.write("PAGE_COUNT=" + block.pages.size()); // 总页容量（如128）
-            blockDataWriter.newLine();
-            blockDataWriter.write("----------------------------------------------------------");
-            blockDataWriter.newLine();
-
-            // 补充关联SST列表（原逻辑中在页信息前，现在随基础信息存入blockdata.txt更合理）
-            String sstList = String.join(",",
-                    block.sstables.stream().map(String::valueOf).collect(Collectors.toList()));
-            blockDataWriter.write("ASSOCIATED_SSTS=" + sstList);
-            blockDataWriter.newLine();
-            blockDataWriter.write("==========================================================");
-            blockDataWriter.newLine();
-        }
-
-        // -------------------------- 核心步骤3：每个物理页单独写入编号文件（0.txt、1.txt...） --------------------------
-        int pageFileIndex = 0; // 页文件编号（从0开始递增，与页的实际顺序对应）
+        // -------------------------- 核心步骤1：只写内容变化的页（新写入/迁移后的页） --------------------------
+        int pageFileIndex = 0; // 页编号（从0开始递增，与页的实际顺序对应）
         for (PhysicalPage page : block.pages) {
-            // 只处理非空页（跳过未分配的页，避免创建空文件）
-            if (page == null) {
+            // 只处理非空且未落盘的页（跳过未分配的页）
+            if (page == null || !page.dirty) {
                 pageFileIndex++;
                 continue;
             }
 
-            // 页文件路径：块目录/页编号.txt（如 "./block_meta/0/0.txt"）
-            File pageFile = new File(blockDir, pageFileIndex + ".txt");
-            try (BufferedWriter pageWriter = new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(pageFile), StandardCharsets.UTF_8))) {
+            long ppa = Ppa.of(block.blockId, pageFileIndex);
+            backend.programPage(zone, ppa, PageFormat.encode(page));
+            if (zone == FlashBackend.Zone.DATA) {
+                pageCache.invalidate(ppa);
+            }
+            // 可选：额外导出明文页文件，便于调试查看（仅文件布局后端）
+            if (Constants.PAGE_TEXT_DUMP && backend instanceof FileFlashBackend) {
+                writePageTextDump(FileFlashBackend.blockDir(zone, block.blockId), pageFileIndex, page);
+            }
+            page.dirty = false;
 
-                // 页头部信息（保留原格式，便于后续解析）
-                pageWriter.write("===================== KV_PAGE_META =====================");
-                pageWriter.newLine();
-                pageWriter.write("PAGE_FILE_INDEX=" + pageFileIndex); // 页文件编号（与文件名对应）
-                pageWriter.newLine();
-                pageWriter.write("PPA=" + page.ppa); // 物理页地址
-                pageWriter.newLine();
-                pageWriter.write("VALID=" + page.valid); // 有效性
-                pageWriter.newLine();
-                pageWriter.write("REF_COUNT=" + page.refCount); // 引用计数
-                pageWriter.newLine();
-                pageWriter.write("KEY_RANGE_START=" + page.keyRange.first); // 键范围起始
-                pageWriter.newLine();
-                pageWriter.write("KEY_RANGE_END=" + page.keyRange.second); // 键范围结束
-                pageWriter.newLine();
-                pageWriter.write("KV_PAIR_COUNT=" + page.data.size()); // KV对数量
-                pageWriter.newLine();
-                pageWriter.write("----------------------------------------------------------");
-                pageWriter.newLine();
+            pageFileIndex++; // 页编号递增
+        }
 
-                // 写入KV对（保留原转义逻辑，避免分隔符冲突）
-                pageWriter.write("KV_PAIRS_START");
-                pageWriter.newLine();
-                for (Pair<String, String> kv : page.data) {
-                    // 转义 "->" 为 "-#->"，防止解析时误分割（与原逻辑一致）
-                    String escapedKey = kv.first.replace("->", "-#->");
-                    String escapedValue = kv.second.replace("->", "-#->");
-                    pageWriter.write(escapedKey + "->" + escapedValue);
-                    pageWriter.newLine();
-                }
-                pageWriter.write("KV_PAIRS_END");
-                pageWriter.newLine();
+        // -------------------------- 核心步骤2：同步块头与变化的页元数据记录（有效性 + 引用计数） --------------------------
+        backend.syncMeta(zone, block);
+    }
+
+    /**
+     * 持久化元数据区块：块本身（元数据页 + 块元数据）与页键范围索引（读路径依赖的部分）；任一失败即抛出，
+     * 调用方须在新 SST 对读路径和清单可见之前撤销
+     */
+    private void persistMetaBlock(PhysicalBlock metaBlock) throws IOException {
+        try {
+            savePhysicalBlockToFile(metaBlock);
+            saveMetaPageToFile(metaBlock);
+        } catch (IOException e) {
+            System.err.println("Failed to persist meta block " + metaBlock.blockId + ": " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * 块所在的设备地址空间：元数据区与数据区的块号各自从 0 编号，按块对象是否登记在元数据区块表中区分
+     */
+    private FlashBackend.Zone zoneOf(PhysicalBlock block) {
+        return metaPhysicalBlocks.get(block.blockId) == block ? FlashBackend.Zone.META : FlashBackend.Zone.DATA;
+    }
 
-                // 页尾部标记
-                pageWriter.write("==========================================================");
+    /**
+     * 调试用：以明文格式导出单个物理页（块目录/页编号.txt）
+     */
+    private void writePageTextDump(File blockDir, int pageFileIndex, PhysicalPage page) throws IOException {
+        File pageFile = new File(blockDir, pageFileIndex + ".txt");
+        try (BufferedWriter pageWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(pageFile), StandardCharsets.UTF_8))) {
+
+            // 页头部信息（保留原格式，便于后续解析）
+            pageWriter.write("===================== KV_PAGE_META =====================");
+            pageWriter.newLine();
+            pageWriter.write("PAGE_FILE_INDEX=" + pageFileIndex); // 页文件编号（与文件名对应）
+            pageWriter.newLine();
+            pageWriter.write("PPA=" + Ppa.toString(page.ppa)); // 物理页地址
+            pageWriter.newLine();
+            pageWriter.write("VALID=" + page.valid); // 有效性
+            pageWriter.newLine();
+            pageWriter.write("REF_COUNT=" + page.refCount); // 引用计数
+            pageWriter.newLine();
+            pageWriter.write("KEY_RANGE_START=" + page.keyRange.first); // 键范围起始
+            pageWriter.newLine();
+            pageWriter.write("KEY_RANGE_END=" + page.keyRange.second); // 键范围结束
+            pageWriter.newLine();
+            pageWriter.write("KV_PAIR_COUNT=" + page.data.size()); // KV对数量
+            pageWriter.newLine();
+            pageWriter.write("----------------------------------------------------------");
+            pageWriter.newLine();
+
+            // 写入KV对（保留原转义逻辑，避免分隔符冲突）
+            pageWriter.write("KV_PAIRS_START");
+            pageWriter.newLine();
+            for (Pair<String, String> kv : page.data) {
+                // 转义 "->" 为 "-#->"，防止解析时误分割（与原逻辑一致）
+                String escapedKey = kv.first.replace("->", "-#->");
+                String escapedValue = kv.second.replace("->", "-#->");
+                pageWriter.write(escapedKey + "->" + escapedValue);
                 pageWriter.newLine();
             }
+            pageWriter.write("KV_PAIRS_END");
+            pageWriter.newLine();
 
-            pageFileIndex++; // 页文件编号递增（下一个页对应下一个编号文件）
+            // 页尾部标记
+            pageWriter.write("==========================================================");
+            pageWriter.newLine();
         }
     }
 
@@ -435,9 +895,9 @@ public class KVSSD6{
     private void saveMetaPageToFile(PhysicalBlock block) throws IOException {
         if (block == null) return;
 
-        File metaFile = new File(Constants.META_BLOCK_META_DIR + block.blockId + Constants.BLOCK_META_SUFFIX);
-        try (BufferedWriter writer = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(metaFile), StandardCharsets.UTF_8))) {
+        // 先在内存中生成明文镜像，再由后端整体替换（读路径不加锁地加载元数据页索引，不能读到写了一半的镜像）
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(image, StandardCharsets.UTF_8))) {
 
             // 块基本信息
             writer.write("===================== META_BLOCK =====================");
@@ -472,22 +932,22 @@ public class KVSSD6{
                     // -------------------------- Metadata Page --------------------------
                     writer.write("-------------------------- METADATA_PAGE --------------------------");
                     writer.newLine();
-                    writer.write("PPA=" + page.ppa);
+                    writer.write("PPA=" + Ppa.toString(page.ppa));
                     writer.newLine();
                     writer.write("VALID=" + page.valid);
                     writer.newLine();
                     writer.write("REF_COUNT=" + page.refCount);
                     writer.newLine();
-                    writer.write("ENTRY_COUNT=" + page.data.size());
+                    writer.write("ENTRY_COUNT=" + page.metaEntries.size());
                     writer.newLine();
                     writer.write("FORMAT: KV_PAGE_PPA|KV_PAGE_KEY_RANGE");
                     writer.newLine();
                     writer.write("------------------------------------------------------------------");
                     writer.newLine();
                     // 写入元数据条目
-                    for (Pair<String, String> metaEntry : page.data) {
+                    for (Pair<Long, String> metaEntry : page.metaEntries) {
                         // 转义分隔符避免解析错误
-                        String escapedPpa = metaEntry.first.replace("|", "||");
+                        String escapedPpa = Ppa.toString(metaEntry.first);
                         String escapedRange = metaEntry.second.replace("|", "||");
                         writer.write(escapedPpa + "|" + escapedRange);
                         writer.newLine();
@@ -500,7 +960,7 @@ public class KVSSD6{
             writer.write("==========================================================");
             writer.newLine();
         }
-
+        backend.writeMetaBlock(block.blockId, image.toByteArray());
     }
     /**
      * 从磁盘加载物理块元数据（明文格式）
@@ -561,7 +1021,7 @@ public class KVSSD6{
                         // 提取页编号（正则分组1即为数字部分）
                         String pageNoStr = startMatcher.group(1);
                         currentPageNo = Integer.parseInt(pageNoStr) - 1; // 转为0基索引
-                        currentPage = new PhysicalPage("");
+                        currentPage = new PhysicalPage(Ppa.NULL);
                         parsingKvPairs = false;
                         continue; // 跳过后续处理，进入下一行解析
                     }
@@ -569,7 +1029,7 @@ public class KVSSD6{
                     // 解析页属性（PPA/VALID/REF_COUNT等）
                     else if (currentPage != null && !parsingKvPairs) {
                         if (line.startsWith("PPA=")) {
-                            currentPage.ppa = line.substring("PPA=".length()).trim();
+                            currentPage.ppa = Ppa.parse(line.substring("PPA=".length()));
                         } else if (line.startsWith("VALID=")) {
                             currentPage.valid = Boolean.parseBoolean(line.substring("VALID=".length()).trim());
                         } else if (line.startsWith("REF_COUNT=")) {
@@ -618,176 +1078,613 @@ public class KVSSD6{
         return block;
     }
     /**
-     * 将LSM层级结构（level -> SSTable列表）持久化到磁盘（明文格式）
+     * 原子写入二进制检查点：块表（分配/层级/关联SST/页状态与引用计数）、元数据区块表、SST 描述（含元数据页条目与布隆过滤器）
+     * 和层级清单。先提交未决的版本变更，检查点记录清单的版本序号，写临时文件后 fsync 再改名替换。
+     * <pre>
+     * int MAGIC | int VERSION | long 清单版本序号 | long nextSstId | int nextPageNo | int 每块页数
+     * 数据块表：int 块数，每块 [long 块ID][boolean 已分配][int 层级][int n][long SST ID * n][(byte 页状态, int 引用计数) * 每块页数]
+     * 元数据区块表：同上
+     * SST：int 个数，每个 [long ID][int 层级][UTF 最小键][UTF 最大键][long 元数据页PPA][int KV数][int pageCounter]
+     *      [int 条目数][(long KV页PPA, UTF 键范围) * 条目数][boolean 有布隆过滤器][布隆过滤器]
+     * 层级：int 层数，每层 [int 层级][int n][long SST ID * n]（保持层内顺序）
+     * long CRC32（以上全部内容）
+     * </pre>
      */
-    private void saveLsmLevelsToDisk() throws IOException {
-        if (isPersisting) return;
-        isPersisting = true;
-
-        Files.createDirectories(Paths.get(Constants.PERSIST_DIR));
-        File levelsFile = new File(Constants.LSM_LEVELS_FILE);
-        try (BufferedWriter writer = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(levelsFile), StandardCharsets.UTF_8))) {
-
-            writer.write("===================== LSM_LEVELS =====================");
-            writer.newLine();
-            writer.write("LEVEL_COUNT=" + lsmLevels.size());
-            writer.newLine();
-            writer.write("CREATION_TIME=" + dateFormat.format(new Date()));
-            writer.newLine();
-            writer.write("FORMAT: LEVEL|SST_ID1,SST_ID2,..."); // 格式：层级|该层级包含的SST ID列表
-            writer.newLine();
-            writer.write("----------------------------------------------------------");
-            writer.newLine();
+    private void writeCheckpoint() throws IOException {
+        if (!backend.persistent()) {
+            return; // 易失设备的块表下次打开时已不存在，不写检查点
+        }
+        commitVersionEdit();
+        File checkpointFile = new File(Constants.CHECKPOINT_FILE);
+        File tmpFile = new File(Constants.CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(manifest.lastSequence());
+            out.writeLong(nextSstId);
+            out.writeInt(nextPageNo);
+            out.writeInt((int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE));
+
+            writeCheckpointBlocks(out, physicalBlocks);
+            writeCheckpointBlocks(out, metaPhysicalBlocks);
 
-            // 按层级升序写入（确保加载时顺序一致）
             List<Integer> sortedLevels = new ArrayList<>(lsmLevels.keySet());
             Collections.sort(sortedLevels);
-
+            int sstCount = 0;
+            for (int level : sortedLevels) {
+                sstCount += lsmLevels.get(level).size();
+            }
+            out.writeInt(sstCount);
+            for (int level : sortedLevels) {
+                for (SSTable sst : lsmLevels.get(level)) {
+                    out.writeLong(sst.sstId);
+                    out.writeInt(sst.level);
+                    out.writeUTF(sst.keyRange.first);
+                    out.writeUTF(sst.keyRange.second);
+                    out.writeLong(sst.metadataPagePpa);
+                    out.writeInt(sst.kvpairSize);
+                    out.writeInt(sst.pageCounter);
+                    List<Pair<Long, String>> entries = sst.metadataPage == null
+                            ? Collections.emptyList() : sst.metadataPage.metaEntries;
+                    out.writeInt(entries.size());
+                    for (Pair<Long, String> entry : entries) {
+                        out.writeLong(entry.first);
+                        out.writeUTF(entry.second);
+                    }
+                    out.writeBoolean(sst.bloomFilter != null);
+                    if (sst.bloomFilter != null) {
+                        sst.bloomFilter.writeTo(out);
+                    }
+                }
+            }
+            out.writeInt(sortedLevels.size());
             for (int level : sortedLevels) {
                 List<SSTable> ssts = lsmLevels.get(level);
-                // 拼接该层级所有SST的ID（用逗号分隔）
-                String sstIds = ssts.stream()
-                        .map(sst -> String.valueOf(sst.sstId))
-                        .collect(Collectors.joining(","));
-                // 写入格式：LEVEL|SST_ID1,SST_ID2,...
-                writer.write(level + "|" + sstIds);
-                writer.newLine();
+                out.writeInt(level);
+                out.writeInt(ssts.size());
+                for (SSTable sst : ssts) {
+                    out.writeLong(sst.sstId);
+                }
             }
-
-            writer.write("==========================================================");
-            writer.newLine();
-        } finally {
-            isPersisting = false;
+            out.flush();
+            long crc = checked.getChecksum().getValue();
+            out.writeLong(crc);
+            out.flush();
+            fileOut.getFD().sync();
         }
-        //  System.out.println("LSM levels persisted: " + lsmLevels.size() + " levels");
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        flushesSinceCheckpoint = 0;
     }
-    /**
-     * 从磁盘加载LSM层级结构（level -> SSTable列表）
-     * 注意：需在加载所有SSTable之后调用（依赖已加载的SSTable对象）
-     */
-    private void loadLsmLevelsFromDisk() throws IOException {
-        File levelsFile = new File(Constants.LSM_LEVELS_FILE);
-        if (!levelsFile.exists()) {
-            System.out.println("LSM levels file not found, init empty"+Constants.LSM_LEVELS_FILE);
-            return;
-        }
-
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(new FileInputStream(levelsFile), StandardCharsets.UTF_8))) {
-
-            lsmLevels.clear(); // 清空现有层级
-            String line;
-            boolean parsingEntries = false;
-
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
 
-                if (line.equals("----------------------------------------------------------")) {
-                    parsingEntries = true;
-                    continue;
-                } else if (line.equals("==========================================================")) {
-                    parsingEntries = false;
-                    break;
-                } else if (parsingEntries) {
-                    // 解析格式：LEVEL|SST_ID1,SST_ID2,...
-                    String[] parts = line.split("\\|", 2);
-                    if (parts.length == 2) {
-                        try {
-                            int level = Integer.parseInt(parts[0]);
-                            String[] sstIdStrs = parts[1].split(",");
-
-                            // 为当前层级创建SSTable列表
-                            List<SSTable> levelSsts = new ArrayList<>();
-                            for (String sstIdStr : sstIdStrs) {
-                                // 3. 关键修复1：将SST ID字符串转为长整型（SST ID通常用长整数标识）
-                                long sstId = Long.parseLong(sstIdStr);
-
-                                // 4. 关键修复2：根据SST ID构造对应的sstFile（格式：sst_{id}.sst）
-                                // 先拼接文件名，再结合SST存储目录得到完整文件对象
-                                String sstFileName = String.format("sst_%d.sst", sstId);
-                                File sstFile = new File(Constants.SST_DIR, sstFileName); // 依赖Constants.SST_DIR（SST存储目录）
-
-                                SSTable sst = loadSSTableFromFile(sstId, sstFile);
-                                if (sst != null) {
-                                    sst.level = level; // 确保SST对象的层级与解析结果一致
-                                    levelSsts.add(sst);
-
-                                } else {
-                                    System.err.printf("Failed to load SST (ID=%d, Level=%d) - File not found or invalid%n", sstId, level);
-                                }
-                            }
-                            // 将该层级添加到lsmLevels
-                            lsmLevels.put(level, levelSsts);
-                        } catch (NumberFormatException e) {
-                            System.err.println("Invalid format in LSM levels file: " + line);
-                        }
-                    }
-                }
+    private void writeCheckpointBlocks(DataOutputStream out, Map<Long, PhysicalBlock> blocks) throws IOException {
+        List<Long> blockIds = new ArrayList<>(blocks.keySet());
+        Collections.sort(blockIds);
+        out.writeInt(blockIds.size());
+        for (long blockId : blockIds) {
+            PhysicalBlock block = blocks.get(blockId);
+            out.writeLong(block.blockId);
+            out.writeBoolean(block.allocated);
+            out.writeInt(block.level);
+            out.writeInt(block.sstables.size());
+            for (long sstId : block.sstables) {
+                out.writeLong(sstId);
             }
-
-            System.out.println("LSM levels loaded: " + lsmLevels.size() + " levels");
-            // 打印每个层级的SSTable数量（验证加载结果）
-            for (Map.Entry<Integer, List<SSTable>> entry : lsmLevels.entrySet()) {
-                System.out.println("  Level " + entry.getKey() + ": " + entry.getValue().size() + " SSTables");
+            for (PhysicalPage page : block.pages) {
+                out.writeByte(PageFormat.pageState(page));
+                out.writeInt(page == null ? 0 : page.refCount);
+            }
+        }
+    }
+
+    /**
+     * 从检查点一次顺序读取恢复全部元数据；检查点落后于清单时以其为基础补上之后的版本变更（见 rebaseCheckpoint）。
+     * 检查点不存在、损坏、领先于清单或无法补齐时返回 false（由调用方逐文件扫描）。
+     * 恢复的物理页只含状态与引用计数，页内容仍在页文件中，需要时按需读取。
+     */
+    private boolean loadCheckpoint() {
+        File checkpointFile = new File(Constants.CHECKPOINT_FILE);
+        if (!checkpointFile.exists()) {
+            System.out.println("No checkpoint found, scanning persisted files");
+            return false;
+        }
+        long levelsGeneration = manifest.lastSequence();
+        Map<Long, PhysicalBlock> blocks = new HashMap<>();
+        Map<Long, PhysicalBlock> metaBlocks = new HashMap<>();
+        Map<Long, SSTable> ssts = new HashMap<>();
+        Map<Integer, List<SSTable>> levels = new HashMap<>();
+        long generation;
+        long checkpointNextSstId;
+        int checkpointNextPageNo;
+        try (FileInputStream fileIn = new FileInputStream(checkpointFile)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fileIn, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                System.err.println("Checkpoint has unknown format, ignored");
+                return false;
+            }
+            generation = in.readLong();
+            if (generation > levelsGeneration) {
+                System.out.println("Checkpoint is ahead of manifest (generation " + generation + ", manifest " + levelsGeneration + "), ignored");
+                return false;
+            }
+            checkpointNextSstId = in.readLong();
+            checkpointNextPageNo = in.readInt();
+            if (in.readInt() != (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE)) {
+                System.err.println("Checkpoint block geometry differs, ignored");
+                return false;
+            }
+            readCheckpointBlocks(in, blocks);
+            readCheckpointBlocks(in, metaBlocks);
+
+            int sstCount = in.readInt();
+            for (int i = 0; i < sstCount; i++) {
+                SSTable sst = new SSTable(in.readLong(), in.readInt());
+                sst.keyRange = new Pair<>(in.readUTF(), in.readUTF());
+                sst.metadataPagePpa = in.readLong();
+                sst.kvpairSize = in.readInt();
+                sst.pageCounter = in.readInt();
+                // 元数据页对象与元数据区块中的页共享（多个 SST 可共享同一元数据页）
+                PhysicalBlock metaBlock = metaBlocks.get(Ppa.blockId(sst.metadataPagePpa));
+                PhysicalPage metaPage = metaBlock == null ? null : metaBlock.pages.get(Ppa.pageNo(sst.metadataPagePpa));
+                if (metaPage == null) {
+                    metaPage = new PhysicalPage(sst.metadataPagePpa);
+                    metaPage.dirty = false;
+                }
+                int entryCount = in.readInt();
+                List<Pair<Long, String>> entries = new ArrayList<>(entryCount);
+                for (int j = 0; j < entryCount; j++) {
+                    entries.add(new Pair<>(in.readLong(), in.readUTF()));
+                }
+                if (metaPage.metaEntries.isEmpty()) {
+                    metaPage.metaEntries = entries;
+                }
+                sst.metadataPage = metaPage;
+                if (in.readBoolean()) {
+                    sst.bloomFilter = BloomFilter.readFrom(in);
+                }
+                ssts.put(sst.sstId, sst);
+            }
+            int levelCount = in.readInt();
+            for (int i = 0; i < levelCount; i++) {
+                int level = in.readInt();
+                int n = in.readInt();
+                List<SSTable> levelSsts = new ArrayList<>(n);
+                for (int j = 0; j < n; j++) {
+                    SSTable sst = ssts.get(in.readLong());
+                    if (sst == null) {
+                        System.err.println("Checkpoint references unknown SST, ignored");
+                        return false;
+                    }
+                    levelSsts.add(sst);
+                }
+                levels.put(level, levelSsts);
+            }
+            long expectedCrc = checked.getChecksum().getValue();
+            if (in.readLong() != expectedCrc) {
+                System.err.println("Checkpoint checksum mismatch, ignored");
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read checkpoint, scanning persisted files: " + e.getMessage());
+            return false;
+        }
+
+        int checkpointSstCount = ssts.size();
+        if (generation < levelsGeneration && !rebaseCheckpoint(ssts, blocks, metaBlocks, levels)) {
+            return false;
+        }
+
+        // 校验通过后再装入内存结构
+        nextSstId = Math.max(checkpointNextSstId, manifest.nextSstId());
+        nextPageNo = checkpointNextPageNo;
+        for (long blockId = 0; blockId < totalBlocks; blockId++) {
+            PhysicalBlock block = blocks.get(blockId);
+            if (block == null) {
+                block = new PhysicalBlock(blockId); // 设备容量变大：新增的块为空闲块
+            }
+            physicalBlocks.put(blockId, block);
+            if (!block.allocated) {
+                blockAllocator.release(block);
+            } else {
+                gcVictimIndex.track(blockId, block.invalidPageCount());
+            }
+            for (long sstId : block.sstables) {
+                pageRefs.linkBlock(sstId, blockId);
+            }
+        }
+        List<Long> metaBlockIds = new ArrayList<>(metaBlocks.keySet());
+        Collections.sort(metaBlockIds);
+        for (long blockId : metaBlockIds) {
+            PhysicalBlock block = metaBlocks.get(blockId);
+            metaPhysicalBlocks.put(blockId, block);
+            if (!block.allocated) {
+                metaFreeBlocks.add(blockId);
+            }
+        }
+        for (Map.Entry<Integer, List<SSTable>> entry : levels.entrySet()) {
+            lsmLevels.put(entry.getKey(), entry.getValue());
+            for (SSTable sst : entry.getValue()) {
+                pageRefs.registerSst(sst);
+                nextSstId = Math.max(nextSstId, sst.sstId + 1);
+            }
+            rebuildLevelIndex(entry.getKey());
+        }
+        System.out.println("Checkpoint loaded: generation=" + generation
+                + (generation < levelsGeneration ? " (rebased to manifest " + levelsGeneration
+                        + ", checkpoint SSTs=" + checkpointSstCount + ")" : "")
+                + ", SSTs=" + ssts.size() + ", blocks=" + blocks.size() + ", metaBlocks=" + metaBlocks.size());
+        return true;
+    }
+
+    /**
+     * 检查点落后于清单（之后又提交过刷写、压缩或 GC 的版本变更）时，以检查点为基础补上这些变更：层级取清单当前版本，
+     * 检查点中已有的 SST 直接复用，之后新增的从 SST 文件加载。这些变更带来的块表变化（新写入的页、引用计数、迁移与擦除）
+     * 在每次提交清单前都已随块头与页状态落盘，因此数据区与元数据区的块表改为从设备读回（只读块头与页状态，不解析元数据区明文镜像）。
+     * 结果写回传入的各表；所需的 SST、块或元数据页读不出时返回 false，由调用方逐文件扫描
+     */
+    private boolean rebaseCheckpoint(Map<Long, SSTable> ssts, Map<Long, PhysicalBlock> blocks,
+                                     Map<Long, PhysicalBlock> metaBlocks, Map<Integer, List<SSTable>> levels) {
+        Map<Long, PhysicalBlock> deviceBlocks = new HashMap<>();
+        Map<Long, PhysicalBlock> deviceMetaBlocks = new HashMap<>();
+        Map<Long, SSTable> liveSsts = new HashMap<>();
+        Map<Integer, List<SSTable>> manifestLevels = new HashMap<>();
+        int loadedSsts = 0;
+        try {
+            for (long blockId = 0; blockId < totalBlocks; blockId++) {
+                PhysicalBlock block = loadBlockFromDevice(FlashBackend.Zone.DATA, blockId);
+                if (block == null) {
+                    PhysicalBlock known = blocks.get(blockId);
+                    if (known != null && known.allocated) {
+                        System.err.println("Data block " + blockId + " missing on device, rebuilding from files");
+                        return false;
+                    }
+                    continue; // 从未写入的块由装入时按空闲块补齐
+                }
+                deviceBlocks.put(blockId, block);
+            }
+            // 元数据区可扩容：预留范围与检查点中的块之外，继续读到设备上没有记录的块为止
+            long metaBlockCount = Constants.META_ZONE_BLOCK_COUNT;
+            for (long blockId : metaBlocks.keySet()) {
+                metaBlockCount = Math.max(metaBlockCount, blockId + 1);
+            }
+            for (long blockId = 0; ; blockId++) {
+                PhysicalBlock block = loadBlockFromDevice(FlashBackend.Zone.META, blockId);
+                if (block == null) {
+                    if (blockId >= metaBlockCount) {
+                        break;
+                    }
+                    block = new PhysicalBlock(blockId);
+                }
+                deviceMetaBlocks.put(blockId, block);
+            }
+
+            for (Map.Entry<Integer, List<Long>> entry : manifest.levels().entrySet()) {
+                List<SSTable> levelSsts = new ArrayList<>();
+                for (long sstId : entry.getValue()) {
+                    SSTable sst = ssts.get(sstId);
+                    if (sst == null) {
+                        sst = loadSSTableFromFile(sstId, new File(Constants.SST_DIR, String.format("sst_%d.sst", sstId)));
+                        if (sst == null) {
+                            System.err.println("SST " + sstId + " added after checkpoint cannot be loaded, rebuilding from files");
+                            return false;
+                        }
+                        loadedSsts++;
+                    }
+                    sst.level = entry.getKey();
+                    // 元数据页对象改为与设备读回的元数据区块中的页共享
+                    PhysicalBlock metaBlock = deviceMetaBlocks.get(Ppa.blockId(sst.metadataPagePpa));
+                    PhysicalPage metaPage = metaBlock == null ? null : metaBlock.pages.get(Ppa.pageNo(sst.metadataPagePpa));
+                    if (metaPage == null) {
+                        System.err.println("Meta page of SST " + sstId + " missing on device, rebuilding from files");
+                        return false;
+                    }
+                    if (metaPage.metaEntries.isEmpty()) {
+                        metaPage.metaEntries = sst.metadataPage.metaEntries;
+                    }
+                    sst.metadataPage = metaPage;
+                    liveSsts.put(sstId, sst);
+                    levelSsts.add(sst);
+                }
+                if (levelSsts.isEmpty()) {
+                    continue;
+                }
+                levelSsts.sort(Comparator.comparing(sst -> sst.keyRange.first));
+                manifestLevels.put(entry.getKey(), levelSsts);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to rebase checkpoint onto manifest, rebuilding from files: " + e.getMessage());
+            return false;
+        }
+
+        int droppedSsts = 0;
+        for (long sstId : ssts.keySet()) {
+            if (!liveSsts.containsKey(sstId)) {
+                droppedSsts++;
+            }
+        }
+        System.out.println("Checkpoint rebased: +" + loadedSsts + " / -" + droppedSsts
+                + " SSTs from manifest, block tables reloaded from device");
+        ssts.clear();
+        ssts.putAll(liveSsts);
+        blocks.clear();
+        blocks.putAll(deviceBlocks);
+        metaBlocks.clear();
+        metaBlocks.putAll(deviceMetaBlocks);
+        levels.clear();
+        levels.putAll(manifestLevels);
+        return true;
+    }
+
+    private void readCheckpointBlocks(DataInputStream in, Map<Long, PhysicalBlock> blocks) throws IOException {
+        int blockCount = in.readInt();
+        for (int i = 0; i < blockCount; i++) {
+            PhysicalBlock block = new PhysicalBlock(in.readLong());
+            block.allocated = in.readBoolean();
+            block.level = in.readInt();
+            int sstCount = in.readInt();
+            for (int j = 0; j < sstCount; j++) {
+                block.sstables.add(in.readLong());
+            }
+            for (int pageNo = 0; pageNo < block.pages.size(); pageNo++) {
+                byte state = in.readByte();
+                int refCount = in.readInt();
+                if (state != PageFormat.PAGE_STATE_EMPTY) {
+                    PhysicalPage page = new PhysicalPage(Ppa.of(block.blockId, pageNo));
+                    page.valid = state == PageFormat.PAGE_STATE_VALID;
+                    page.refCount = refCount;
+                    page.dirty = false; // 页文件已存在
+                    block.setPage(pageNo, page);
+                }
+                block.markPageMetaPersisted(pageNo, state, refCount);
+            }
+            block.markHeaderPersisted();
+            blocks.put(block.blockId, block);
+        }
+    }
+
+    /**
+     * 提交未决的层级变更：先把设备页/块元数据与新 SST 文件落盘，再追加到版本清单（fsync 后即为已提交版本），
+     * 随后才删除被替换的 SST 文件；刷写据此释放 WAL 段，清单引用的内容此时都已持久
+     */
+    private void commitVersionEdit() throws IOException {
+        if (pendingEdit.isEmpty() && obsoleteSstFiles.isEmpty()) {
+            return;
+        }
+        syncPersistedState();
+        manifest.commit(pendingEdit, nextSstId);
+        pendingEdit = new VersionManifest.Edit();
+        for (long sstId : obsoleteSstFiles) {
+            deleteSstFile(sstId);
+        }
+        obsoleteSstFiles.clear();
+    }
+
+    /**
+     * 强制落盘：设备后端的页与块元数据，以及上次同步后写入的 SST / 布隆过滤器文件和 SST 目录项
+     */
+    private void syncPersistedState() throws IOException {
+        backend.sync();
+        if (unsyncedSstFiles.isEmpty()) {
+            return;
+        }
+        for (Iterator<Path> it = unsyncedSstFiles.iterator(); it.hasNext(); ) {
+            Path path = it.next();
+            it.remove();
+            try {
+                FileFlashBackend.fsync(path, false);
+            } catch (IOException e) {
+                unsyncedSstFiles.add(path);
+                throw e;
+            }
+        }
+        FileFlashBackend.fsync(Paths.get(Constants.SST_DIR), true);
+    }
+
+    /**
+     * 按版本清单加载 LSM 层级结构（level -> SSTable列表）；清单为空而存在旧版层级文件时，导入后写成清单快照并删除旧文件
+     */
+    private void loadLsmLevelsFromDisk() throws IOException {
+        Map<Integer, List<Long>> levelIds = manifest.levels();
+        long manifestNextSstId = manifest.nextSstId();
+        boolean migrated = false;
+        if (manifest.isEmpty()) {
+            levelIds = readLegacyLsmLevels();
+            if (levelIds == null) {
+                System.out.println("Manifest is empty, init empty LSM levels");
+                return;
+            }
+            migrated = true;
+        }
+
+        lsmLevels.clear(); // 清空现有层级
+        for (Map.Entry<Integer, List<Long>> entry : levelIds.entrySet()) {
+            int level = entry.getKey();
+            // 为当前层级创建SSTable列表
+            List<SSTable> levelSsts = new ArrayList<>();
+            for (long sstId : entry.getValue()) {
+                // 根据SST ID构造对应的sstFile（格式：sst_{id}.sst）
+                String sstFileName = String.format("sst_%d.sst", sstId);
+                File sstFile = new File(Constants.SST_DIR, sstFileName); // 依赖Constants.SST_DIR（SST存储目录）
+
+                SSTable sst = loadSSTableFromFile(sstId, sstFile);
+                if (sst != null) {
+                    sst.level = level; // 确保SST对象的层级与清单一致
+                    levelSsts.add(sst);
+                    pageRefs.registerSst(sst);
+                    nextSstId = Math.max(nextSstId, sstId + 1); // 新 SST 不能复用已有 ID
+                } else {
+                    System.err.printf("Failed to load SST (ID=%d, Level=%d) - File not found or invalid%n", sstId, level);
+                }
+            }
+            if (levelSsts.isEmpty()) {
+                continue;
+            }
+            // 清单按新增顺序记录，层内按 min key 排序
+            levelSsts.sort(Comparator.comparing(sst -> sst.keyRange.first));
+            lsmLevels.put(level, levelSsts);
+            rebuildLevelIndex(level);
+        }
+        nextSstId = Math.max(nextSstId, manifestNextSstId);
+
+        if (migrated) {
+            manifest.reset(levelIds, nextSstId);
+            Files.deleteIfExists(Paths.get(Constants.LSM_LEVELS_FILE));
+            System.out.println("Legacy LSM levels file imported into manifest");
+        }
+        System.out.println("LSM levels loaded: " + lsmLevels.size() + " levels (manifest sequence " + manifest.lastSequence() + ")");
+        // 打印每个层级的SSTable数量（验证加载结果）
+        for (Map.Entry<Integer, List<SSTable>> entry : lsmLevels.entrySet()) {
+            System.out.println("  Level " + entry.getKey() + ": " + entry.getValue().size() + " SSTables");
+        }
+    }
+
+    /**
+     * 读取旧版明文层级文件（LEVEL|SST_ID1,SST_ID2,...），不存在时返回 null
+     */
+    private Map<Integer, List<Long>> readLegacyLsmLevels() throws IOException {
+        File levelsFile = new File(Constants.LSM_LEVELS_FILE);
+        if (!levelsFile.exists()) {
+            return null;
+        }
+        Map<Integer, List<Long>> levelIds = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(levelsFile), StandardCharsets.UTF_8))) {
+            String line;
+            boolean parsingEntries = false;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+
+                if (line.equals("----------------------------------------------------------")) {
+                    parsingEntries = true;
+                } else if (line.equals("==========================================================")) {
+                    break;
+                } else if (parsingEntries) {
+                    String[] parts = line.split("\\|", 2);
+                    if (parts.length == 2) {
+                        try {
+                            List<Long> ids = new ArrayList<>();
+                            for (String sstIdStr : parts[1].split(",")) {
+                                ids.add(Long.parseLong(sstIdStr));
+                            }
+                            levelIds.put(Integer.parseInt(parts[0]), ids);
+                        } catch (NumberFormatException e) {
+                            System.err.println("Invalid format in LSM levels file: " + line);
+                        }
+                    }
+                }
+            }
+        }
+        return levelIds;
+    }
+    // ==================== 原有核心逻辑改造（加入持久化调用）====================
+    /**
+     * 生成物理页地址（PPA）
+     */
+    private long generatePPA(long blockId) {
+        long ppa = Ppa.of(blockId, nextPageNo);
+        nextPageNo = (nextPageNo + 1) % (int)(Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+        return ppa;
+    }
+
+    /**
+     * 数据块内下一个可写页的 PPA（按占用位图取第一个空闲页）；块已满时返回 NULL，调用方换用下一个块
+     */
+    private long nextDataPagePpa(PhysicalBlock block) {
+        int pageNo = block.firstFreePage();
+        if (pageNo < 0) {
+            return Ppa.NULL;
+        }
+        return Ppa.of(block.blockId, pageNo);
+    }
+
+    /**
+     * 为 pageCount 个数据页认领足够的块（空闲页总数不小于 pageCount）；容量耗尽时归还已认领的块并返回 null。
+     * 已认领的块先从 GC 受害块索引中摘除，认领后续块触发的前台 GC 不会选中它们，页写完后由调用方重新登记
+     */
+    private List<PhysicalBlock> allocateBlocksForPages(int level, int pageCount) {
+        int pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+        List<PhysicalBlock> claimed = new ArrayList<>();
+        int freePages = 0;
+        do {
+            PhysicalBlock block = allocateBlock(level);
+            if (block == null) {
+                releaseClaimedBlocks(claimed);
+                return null;
+            }
+            gcVictimIndex.untrack(block.blockId);
+            claimed.add(block);
+            freePages += pagesPerBlock - block.usedPageCount();
+        } while (freePages < pageCount);
+        return claimed;
+    }
+
+    /**
+     * 归还认领后未写入的块（恢复为空闲；块内已有其他 SST 的页时重新登记到 GC 受害块索引）
+     */
+    private void releaseClaimedBlocks(List<PhysicalBlock> blocks) {
+        for (PhysicalBlock block : blocks) {
+            block.allocated = false;
+            if (block.usedPageCount() > 0) {
+                gcVictimIndex.track(block.blockId, block.invalidPageCount());
+            }
+            blockAllocator.release(block);
+            try {
+                savePhysicalBlockToFile(block);
+            } catch (IOException e) {
+                System.err.println("Failed to persist released block: " + e.getMessage());
             }
         }
     }
-    // ==================== 原有核心逻辑改造（加入持久化调用）====================
-    /**
-     * 生成物理页地址（PPA）
-     */
-    private String generatePPA(long blockId) {
-        String ppa = blockId + "_" + nextPageNo;
-        nextPageNo = (nextPageNo + 1) % (int)(Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
-        return ppa;
-    }
 
     /**
      * 分配物理块（改造：提前触发GC，避免GC时无块可用）
      */
     private PhysicalBlock allocateBlock(int level) {
-        // 关键优化1：检查空闲块占比，低于10%先触发GC（提前释放空间）
-        if (getFreeBlockRatio() < 10) {
-            System.out.println("Free block ratio < 10% (" + String.format("%.1f", getFreeBlockRatio()) + "%), trigger GC in advance");
-            runGarbageCollection();
+        // 空闲块比例低于低水位时唤醒后台 GC；低于硬下限时由分配方前台 GC（计入阻塞统计）
+        double freeRatio = getFreeBlockRatio();
+        if (freeRatio < Constants.GC_LOW_WATERMARK) {
+            requestBackgroundGc();
+        }
+        if (freeRatio < Constants.GC_HARD_FLOOR) {
+            System.out.println("Free block ratio < " + Constants.GC_HARD_FLOOR + "% (" + String.format("%.1f", freeRatio) + "%), foreground GC");
+            runForegroundGc();
         }
 
-        // 1. 优先查找同层级空闲块
-        Iterator<Long> iterator = freeBlocks.iterator();
-        while (iterator.hasNext()) {
-            long blockId = iterator.next();
-            PhysicalBlock block = physicalBlocks.get(blockId);
-            if (block.level == level && !block.isFull()) {
-                iterator.remove();
-                block.allocated = true;
-                // 持久化块的分配状态变更
-                try {
-                    savePhysicalBlockToFile(block);
-                } catch (IOException e) {
-                    System.err.println("Failed to persist block after allocate: " + e.getMessage());
-                }
-                return block;
+        // 1. 优先取同层级未写满的空闲块
+        PhysicalBlock block = blockAllocator.claimAtLevel(level);
+        if (block != null) {
+            block.allocated = true;
+            gcVictimIndex.track(block.blockId, block.invalidPageCount());
+            // 持久化块的分配状态变更
+            try {
+                savePhysicalBlockToFile(block);
+            } catch (IOException e) {
+                System.err.println("Failed to persist block after allocate: " + e.getMessage());
             }
+            return block;
         }
 
-        // 2. 无同层级空闲块，再次检查空闲块占比（防止GC后仍无块）
-        if (freeBlocks.isEmpty()) {
+        // 2. 无同层级空闲块，取最早释放的空闲块（无空闲块时强制 GC 一次）
+        block = blockAllocator.claimAny();
+        if (block == null) {
             System.err.println("No free blocks left! Force GC again");
-            runGarbageCollection();
+            runForegroundGc();
+            block = blockAllocator.claimAny();
             // 若GC后仍无块，返回null（避免死循环）
-            if (freeBlocks.isEmpty()) {
+            if (block == null) {
                 System.err.println("KVSSD capacity exhausted!");
                 return null;
             }
         }
 
         // 3. 分配新块并设置层级
-        long blockId = freeBlocks.poll();
-        PhysicalBlock block = physicalBlocks.get(blockId);
         block.level = level;
         block.allocated = true;
+        gcVictimIndex.track(block.blockId, block.invalidPageCount());
         // 持久化块的元数据变更
         try {
             savePhysicalBlockToFile(block);
@@ -799,123 +1696,174 @@ public class KVSSD6{
     /**
      * 将 Memtable 写入 SSTable（改造：加入 SST 持久化）
      */
-    private SSTable writeMemtableToSSTable(List<Pair<String, String>> memtable, int level) {
+    private SSTable writeMemtableToSSTable(Memtable memtable, int level) {
+        return writeMemtableToSSTable(memtable.toSortedList(), level);
+    }
+
+    /**
+     * 将已按 key 升序排列的 KV 列表写入 SSTable（调用方保证有序，此处不再排序）
+     */
+    private SSTable writeMemtableToSSTable(List<Pair<String, String>> sortedMemtable, int level) {
         System.out.println("now write no."+nextSstId+" sstable.");
         SSTable sst = new SSTable(nextSstId++, level);
-        sst.kvpairSize = memtable.size();
-        System.out.println("memtable size:"+memtable.size());
-        // 1. Memtable 排序
-        List<Pair<String, String>> sortedMemtable = new ArrayList<>(memtable);
-        sortedMemtable.sort(Comparator.comparing(p -> p.first));
-        System.out.println("sortedmemtable size:"+sortedMemtable.size());
-        // 2. 分配物理块
-        PhysicalBlock block = allocateBlock(level);
-        if (block == null) {
-            System.out.println("dead here.");
-            return null;
+        sst.kvpairSize = sortedMemtable.size();
+        // 0. 构建布隆过滤器
+        if (Constants.BLOOM_BITS_PER_KEY > 0) {
+            sst.bloomFilter = new BloomFilter(sortedMemtable.size(), Constants.BLOOM_BITS_PER_KEY);
+            for (Pair<String, String> kv : sortedMemtable) {
+                sst.bloomFilter.add(kv.first);
+            }
         }
-        // 3. 拆分 KV 页
-        List<PhysicalPage> kvPages = new ArrayList<>();
+        System.out.println("memtable size:"+sortedMemtable.size());
+        // 2. 拆分 KV 页（先按页大小切分，得到所需页数后再分配物理块）
+        List<List<Pair<String, String>>> pageChunks = new ArrayList<>();
         List<Pair<String, String>> pageKvs = new ArrayList<>();
         int pageSizeUsed = 0;
         for (Pair<String, String> kv : sortedMemtable) {
             int kvSize = kv.first.getBytes(StandardCharsets.UTF_8).length +
                     kv.second.getBytes(StandardCharsets.UTF_8).length;
             if (pageSizeUsed + kvSize > Constants.PAGE_SIZE) {
-                // 页满，创建并添加物理页
-                String ppa = generatePPA(block.blockId);
-                PhysicalPage page = new PhysicalPage(ppa);
-                page.data = new ArrayList<>(pageKvs);
-                page.updateKeyRange();
-
-
-                int pageNo = Integer.parseInt(ppa.split("_")[1]);
-                if (block.addPage(pageNo, page)) {
-                    kvPages.add(page);
-                    stats.totalFlashWrites += Constants.PAGE_SIZE;
-                }
-
+                pageChunks.add(new ArrayList<>(pageKvs));
                 pageKvs.clear();
                 pageSizeUsed = 0;
             }
-
             pageKvs.add(kv);
             pageSizeUsed += kvSize;
         }
-        // 4. 处理最后一页
         if (!pageKvs.isEmpty()) {
-            String ppa = generatePPA(block.blockId);
+            pageChunks.add(pageKvs);
+        }
+        // 3. 分配物理块：同层级复用的未写满块剩余页可能不够，压缩输出也可能超过一个块，
+        //    因此一直认领到空闲页足够为止（SST 可跨多个块）；认领全部在写页之前完成，前台 GC 不会碰到写了一半的块
+        List<PhysicalBlock> sstBlocks = allocateBlocksForPages(level, pageChunks.size());
+        if (sstBlocks == null) {
+            System.out.println("dead here.");
+            return null;
+        }
+        // 4. 写入 KV 页（按块顺序填满空闲页）
+        List<PhysicalPage> kvPages = new ArrayList<>();
+        int blockIndex = 0;
+        for (List<Pair<String, String>> chunk : pageChunks) {
+            long ppa = nextDataPagePpa(sstBlocks.get(blockIndex));
+            while (ppa == Ppa.NULL) {
+                ppa = nextDataPagePpa(sstBlocks.get(++blockIndex));
+            }
             PhysicalPage page = new PhysicalPage(ppa);
-            page.data = new ArrayList<>(pageKvs);
-
+            page.data = chunk;
             page.updateKeyRange();
-
-            int pageNo = Integer.parseInt(ppa.split("_")[1]);
-            if (block.addPage(pageNo, page)) {
-                kvPages.add(page);
-                stats.totalFlashWrites += Constants.PAGE_SIZE;
-            }
-            pageKvs.clear();
-            pageSizeUsed = 0;
+            sstBlocks.get(blockIndex).addPage(Ppa.pageNo(ppa), page);
+            kvPages.add(page);
+            totalFlashWrites.add(Constants.PAGE_SIZE);
+        }
+        for (PhysicalBlock block : sstBlocks) {
+            gcVictimIndex.track(block.blockId, block.invalidPageCount());
         }
         // 5. 创建元数据页（修改后：写入元数据区）
         // 5.1 从元数据区分配块（确保独立存储）
         PhysicalBlock metaBlock = allocateMetaBlock();
         if (metaBlock == null) {
             System.err.println("Failed to allocate meta block for metadata page");
+            abandonSstWrite(sst, sstBlocks, kvPages, null);
             return null;
         }
         // 5.2 生成元数据页的PPA（基于元数据区块）
-        String metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
-        sst.metadataPagePpa=metaPpa; // Meta Page指针（如"0_0"）
+        long metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
+        sst.metadataPagePpa=metaPpa; // Meta Page指针
         // 5.3 初始化元数据页并写入KV页索引
         PhysicalPage metaPage = new PhysicalPage(metaPpa);
         for (PhysicalPage page : kvPages) {
-            metaPage.data.add(new Pair<>(page.ppa,
-                    page.keyRange.first + "|" + page.keyRange.second));
+            // 页的写入序号取本次刷盘的 SST ID（单调递增）：压缩只搬运页引用，查找时据此在重叠页之间区分新旧版本
+            metaPage.metaEntries.add(new Pair<>(page.ppa,
+                    MetaPageIndex.entryRange(page.keyRange.first, page.keyRange.second, sst.sstId)));
         }
         // 5.4 将元数据页添加到元数据区块（而非数据块）
-        int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
+        int metaPageNo = Ppa.pageNo(metaPpa);
         if (metaBlock.addPage(metaPageNo, metaPage)) {
             sst.metadataPage = metaPage;
-            stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
+            totalFlashWrites.add(Constants.PAGE_SIZE); // 统计元数据页写入
             // 关联元数据块与SSTable
             metaBlock.sstables.add(sst.sstId);
-            try {
-                savePhysicalBlockToFile(metaBlock); // 持久化元数据区块变更
-            } catch (IOException e) {
-                System.err.println("Failed to persist meta block after adding metadata page: " + e.getMessage());
-            }
         } else {
             // 元数据区块添加失败时，释放块并返回错误
             metaBlock.allocated = false;
             metaFreeBlocks.add(metaBlock.blockId);
             System.err.println("Failed to add metadata page to meta block");
+            abandonSstWrite(sst, sstBlocks, kvPages, null);
             return null;
         }
         // 6. 完善 SSTable 信息
         // sst.kvPages = kvPages;
         sst.updateKeyRange(kvPages);
-        block.sstables.add(sst.sstId);
-        // 7. 加入 LSM 层级
-        List<SSTable> levelList = lsmLevels.computeIfAbsent(level, k -> new ArrayList<>());
-        levelList.add(sst);
-        // 按 min key 排序
-        levelList.sort(Comparator.comparing(s -> s.keyRange.first));
-        // 8. 核心改造：持久化 SSTable 和物理块元数据
+        for (PhysicalBlock block : sstBlocks) {
+            block.sstables.add(sst.sstId);
+            pageRefs.linkBlock(sst.sstId, block.blockId);
+        }
+        // 7. 核心改造：持久化 SSTable 和物理块元数据（先于加入 LSM 层级：失败时 SST 尚未对读路径和清单可见，可整体撤销）
         try {
             System.out.println("now  write no."+(nextSstId-1)+"sstable done.");
             saveSSTableToFile(sst);
-            savePhysicalBlockToFile(block);
+            saveBloomFilterToFile(sst);
+            for (PhysicalBlock block : sstBlocks) {
+                savePhysicalBlockToFile(block);
+            }
+            savePhysicalBlockToFile(metaBlock);
             saveMetaPageToFile(metaBlock);
             // saveKeyRangeTreeToDisk();
         } catch (IOException e) {
             System.err.println("Failed to persist SSTable/block: " + e.getMessage());
+            abandonSstWrite(sst, sstBlocks, kvPages, metaBlock);
             return null;
         }
+        pageRefs.registerSst(sst);
+        // 8. 加入 LSM 层级
+        List<SSTable> levelList = lsmLevels.computeIfAbsent(level, k -> new ArrayList<>());
+        levelList.add(sst);
+        pendingEdit.addSst(level, sst.sstId);
+        // 按 min key 排序
+        levelList.sort(Comparator.comparing(s -> s.keyRange.first));
+        rebuildLevelIndex(level);
         return sst;
     }
 
+    /**
+     * 撤销未加入 LSM 层级的 SST 写入：移除已放入数据块与元数据区块的页、归还认领的块，
+     * 已写出的 SST 描述文件在下次提交清单时删除；调用方可用同一批 KV 原样重试
+     */
+    private void abandonSstWrite(SSTable sst, List<PhysicalBlock> sstBlocks, List<PhysicalPage> kvPages,
+                                 PhysicalBlock metaBlock) {
+        for (PhysicalPage page : kvPages) {
+            physicalBlocks.get(Ppa.blockId(page.ppa)).setPage(Ppa.pageNo(page.ppa), null);
+        }
+        for (PhysicalBlock block : sstBlocks) {
+            block.sstables.remove(sst.sstId);
+            pageRefs.unlinkBlock(sst.sstId, block.blockId);
+        }
+        releaseClaimedBlocks(sstBlocks);
+        releaseMetaPage(sst, metaBlock);
+        obsoleteSstFiles.add(sst.sstId);
+    }
+
+    /**
+     * 撤销未加入 LSM 层级的 SST 占用的元数据页：移除页与块上的 SST 关联，块空后归还元数据区空闲队列，
+     * 并尽力重写块与页键范围索引（失败只记录：该 SST 不在清单中，残留记录不会被读到）
+     */
+    private void releaseMetaPage(SSTable sst, PhysicalBlock metaBlock) {
+        if (metaBlock == null || sst.metadataPage == null) {
+            return;
+        }
+        metaBlock.setPage(Ppa.pageNo(sst.metadataPagePpa), null);
+        metaBlock.sstables.remove(sst.sstId);
+        if (metaBlock.usedPageCount() == 0) {
+            metaBlock.allocated = false;
+            metaFreeBlocks.add(metaBlock.blockId);
+        }
+        try {
+            persistMetaBlock(metaBlock);
+        } catch (IOException e) {
+            // 已在 persistMetaBlock 中记录
+        }
+    }
+
     /**
      * 检查层级压缩（原有逻辑保留）
      */
@@ -926,76 +1874,117 @@ public class KVSSD6{
         return Constants.LEVEL_SST_COUNT_LIMITS[Constants.LEVEL_SST_COUNT_LIMITS.length - 1];
     }
 
-    private void checkLevelCompaction(int level) {
+    /**
+     * 层级压缩得分：SST 数 / 该层上限，大于 1 即需压缩
+     */
+    private double levelCompactionScore(int level) {
+        List<SSTable> ssts = lsmLevels.get(level);
+        if (ssts == null || ssts.isEmpty()) {
+            return 0;
+        }
+        return (double) ssts.size() / getLevelSstLimit(level);
+    }
+
+    /**
+     * 选出得分最高（同分取较低层级）且超过 1 的层级，无需压缩时返回 -1；调用方持有 lsmLock
+     */
+    private int pickCompactionLevel() {
+        int bestLevel = -1;
+        double bestScore = 1.0;
+        for (int level : new TreeSet<>(lsmLevels.keySet())) {
+            double score = levelCompactionScore(level);
+            if (score > bestScore) {
+                bestLevel = level;
+                bestScore = score;
+            }
+        }
+        return bestLevel;
+    }
+
+    /**
+     * 刷新写入限流所用的压缩债务：L0 SST 数，以及各层超出上限的 SST 总数；调用方持有 lsmLock
+     */
+    private void updateCompactionDebt() {
+        int debt = 0;
+        for (Map.Entry<Integer, List<SSTable>> entry : lsmLevels.entrySet()) {
+            debt += Math.max(0, entry.getValue().size() - getLevelSstLimit(entry.getKey()));
+        }
+        List<SSTable> l0 = lsmLevels.get(0);
+        l0SstCount = l0 == null ? 0 : l0.size();
+        compactionDebt = debt;
+    }
+
+    /**
+     * 对一个层级执行一次压缩：把超出上限的最旧 SST 与下一层的重叠 SST 合并到下一层，并作为一条变更提交；
+     * 下一层是否因此超限由调度器重新打分决定，不在此递归。调用方持有 lsmLock
+     */
+    private void compactLevel(int level) {
         List<SSTable> currentLevelSsts = lsmLevels.getOrDefault(level, new ArrayList<>());
         int levelSstLimit = getLevelSstLimit(level); // 当前层级的 SSTable 数量阈值
-
-        // 循环触发 Compaction，直到当前层级 SSTable 数量 ≤ 阈值（修复原逻辑引用不刷新问题）
-        while (!currentLevelSsts.isEmpty() && currentLevelSsts.size() > levelSstLimit) {
-            System.out.println("=== 触发层级 " + level + " 的 Compaction ===");
-            System.out.println("当前数量：" + currentLevelSsts.size() + "，阈值：" + levelSstLimit);
-            // -------------------------- L1+：单个迁移到下一层（level+1） --------------------------
-            // 1. 提取要迁移的 SSTable（最旧的第 1 个）
-           int excess=currentLevelSsts.size()-levelSstLimit;
-            List<SSTable> victimSsts = new ArrayList<>();
-            for (int i = 0; i < excess; i++) {
-                victimSsts.add(currentLevelSsts.get(i)); // 取前excess个作为victim（超出多少选多少）
-            }
-           // SSTable victimSst = currentLevelSsts.get(0);
-            // 步骤2：获取目标层级（level+1）的所有有效SSTable
-            // 从lsmLevels中获取目标层级的原始SSTable列表（无则为空列表）
-            List<SSTable> targetLevelSsts = lsmLevels.get(level + 1);
-            // 步骤3：查找目标层级中与受害者SST重叠的SSTable（论文3.C：重叠才需合并）
-            List<SSTable> overlappingSsts = new ArrayList<>();
-            overlappingSsts.addAll(victimSsts); // 先加入受害者自身
-            System.out.println("level :"+level);
-            if(targetLevelSsts!=null){
-//                for (SSTable targetSst : targetLevelSsts) {
-//                    // 判断键范围是否重叠（调用原KeyRangeComparator工具类）
-//                    if (keyrangeComparator.isOverlapping(victimSst.keyRange, targetSst.keyRange)) {
-//                        overlappingSsts.add(targetSst);
-//                        //    System.out.printf("目标层级%d中重叠SST：ID=%d，键范围=[%s, %s]%n",
-//                        //            level + 1,
-//                        //            targetSst.sstId,
-//                        //            new String(targetSst.keyRange.first),
-//                        //            new String(targetSst.keyRange.second));
-//                    }
-//                }
-                for (SSTable targetSst : targetLevelSsts) {
-                    // 检查目标SST是否与任何一个victim重叠
-                    boolean isOverlapping = false;
-                    for (SSTable victim : victimSsts) {
-                        if (keyrangeComparator.isOverlapping(victim.keyRange, targetSst.keyRange)) {
-                            isOverlapping = true;
-                            break;
-                        }
-                    }
-                    if (isOverlapping) {
+        if (currentLevelSsts.isEmpty() || currentLevelSsts.size() <= levelSstLimit) {
+            return;
+        }
+        System.out.println("=== 触发层级 " + level + " 的 Compaction ===");
+        System.out.println("当前数量：" + currentLevelSsts.size() + "，阈值：" + levelSstLimit);
+        // 1. 提取要迁移的 SSTable（超出多少选多少）：压缩不改写 KV 页，同一 key 的新旧版本以“浅层比深层新”区分，
+        //    迁出的版本不能比留在本层的同 key 版本新
+        int excess = currentLevelSsts.size() - levelSstLimit;
+        List<SSTable> victimSsts = new ArrayList<>();
+        if (level == 0) {
+            // L0 的 SST 键范围互相重叠：从最早刷盘的开始迁移（SST ID 即刷盘顺序），留在 L0 的都比迁出的新
+            List<SSTable> byAge = new ArrayList<>(currentLevelSsts);
+            byAge.sort(Comparator.comparingLong(sst -> sst.sstId));
+            victimSsts.addAll(byAge.subList(0, excess));
+        } else {
+            // 其余层按最小键从左取；与已选 SST 键范围内部重叠（共享页使键范围越界）的后续 SST 一并迁移，
+            // 只在边界键上相接的不算重叠（右侧 SST 持有覆盖该边界键的全部页）
+            String victimMaxKey = null;
+            for (SSTable sst : currentLevelSsts) {
+                if (victimSsts.size() >= excess && sst.keyRange.first.compareTo(victimMaxKey) >= 0) {
+                    break;
+                }
+                victimSsts.add(sst);
+                if (victimMaxKey == null || sst.keyRange.second.compareTo(victimMaxKey) > 0) {
+                    victimMaxKey = sst.keyRange.second;
+                }
+            }
+        }
+        // 2. 查找目标层级中与受害者SST重叠的SSTable（论文3.C：重叠才需合并）
+        List<SSTable> targetLevelSsts = lsmLevels.get(level + 1);
+        List<SSTable> overlappingSsts = new ArrayList<>();
+        overlappingSsts.addAll(victimSsts); // 先加入受害者自身
+        System.out.println("level :"+level);
+        if (targetLevelSsts != null) {
+            for (SSTable targetSst : targetLevelSsts) {
+                // 检查目标SST是否与任何一个victim重叠
+                for (SSTable victim : victimSsts) {
+                    if (keyrangeComparator.isOverlapping(victim.keyRange, targetSst.keyRange)) {
                         overlappingSsts.add(targetSst); // 加入所有重叠的目标SST
+                        break;
                     }
                 }
             }
-
-            // 步骤3：执行合并Compaction（核心：生成无重叠新SSTable和新MetaPage）
-            newRunCompaction(level, overlappingSsts);
-            // 2. 执行迁移（创建新 SSTable 加入下一层，删除当前层原 SSTable）
-            // runCompaction(level, victimSst);
-            // 4. 刷新当前层级引用（确保循环收敛）
-            currentLevelSsts = lsmLevels.getOrDefault(level, new ArrayList<>());
-            checkLevelCompaction(level + 1); // 检查下一层是否因新增超阈值
         }
 
-
+        // 3. 执行合并Compaction（核心：生成无重叠新SSTable和新MetaPage）
+        newRunCompaction(level, overlappingSsts);
+        // 一次压缩的全部增删作为一条变更提交
+        try {
+            commitVersionEdit();
+        } catch (IOException e) {
+            System.err.println("Failed to commit compaction to manifest: " + e.getMessage());
+        }
     }
-    public void sortAllKvPageEntriesByMinKeyAsc(List<Pair<String, String>> allKvPageEntries) {
+
+    public void sortAllKvPageEntriesByMinKeyAsc(List<Pair<Long, String>> allKvPageEntries) {
         if (allKvPageEntries == null || allKvPageEntries.isEmpty()) {
             return; // 空列表无需排序
         }
 
         // 使用Collections.sort + 自定义Comparator，按最小键升序排序
-        Collections.sort(allKvPageEntries, new Comparator<Pair<String, String>>() {
+        Collections.sort(allKvPageEntries, new Comparator<Pair<Long, String>>() {
             @Override
-            public int compare(Pair<String, String> p1, Pair<String, String> p2) {
+            public int compare(Pair<Long, String> p1, Pair<Long, String> p2) {
                 // 1. 从键范围字符串中提取最小键（small_key）
                 String minKey1 = extractMinKey(p1.second);
                 String minKey2 = extractMinKey(p2.second);
@@ -1022,7 +2011,7 @@ public class KVSSD6{
     }
 
 
-    private List<SSTable> splitIntoNonOverlappingSsts(List<Pair<String, String>> allKvPageEntries, int targetLevel) {
+    private List<SSTable> splitIntoNonOverlappingSsts(List<Pair<Long, String>> allKvPageEntries, int targetLevel) {
 
         List<SSTable> newSsts = new ArrayList<>();
         if (allKvPageEntries.isEmpty()) {
@@ -1032,11 +2021,11 @@ public class KVSSD6{
         // 1. 核心参数：SSTable大小阈值（论文3.B“Flash块对齐”设计）
         // 论文3.2节提到“nLSM树为SSTable独占一个Flash块”，此处按Flash块大小设置SSTable最大KV页数
         int maxKvPagesPerSst = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE); // 假设Flash块含128个32KB页（论文2.2节FTL设计：块=128页）
-        List<Pair<String, String>> currentSstKvEntries = new ArrayList<>(); // 当前正在构建的SSTable的KV页条目
+        List<Pair<Long, String>> currentSstKvEntries = new ArrayList<>(); // 当前正在构建的SSTable的KV页条目
 
         // 2. 遍历排序后的KV页条目，按规则拆分（论文3.C“合并排序+无重叠拆分”逻辑）
         for (int i = 0; i < allKvPageEntries.size(); i++) {
-            Pair<String, String> currentPair = allKvPageEntries.get(i);
+            Pair<Long, String> currentPair = allKvPageEntries.get(i);
             currentSstKvEntries.add(currentPair); // 将当前KV页加入待构建的SSTable
 
             // 3. 拆分触发条件（满足任一即拆分，确保新SSTable无重叠且符合Flash块大小）
@@ -1048,7 +2037,7 @@ public class KVSSD6{
             // 条件2：下一个KV页的键范围与当前SSTable的键范围无重叠（论文3.C“无重叠原则”）
             // （仅当不是最后一个KV页时判断）
             // if (!needSplit && i < allKvPageEntries.size() - 1) {
-            //     Pair<String, String> nextKvEntry = allKvPageEntries.get(i + 1);
+            //     Pair<Long, String> nextKvEntry = allKvPageEntries.get(i + 1);
             //     String[] nextKeyRangeParts = nextKvEntry.second.split("\\|"); // 注意转义竖线（|在正则中需转义）
             //    // 格式错误时跳过该KV页，避免影响后续拆分
             //     if (nextKeyRangeParts.length != 2) {continue;}
@@ -1075,16 +2064,16 @@ public class KVSSD6{
 
                 // 4.2 构建新SSTable的MetaPage（论文3.B：MetaPage存储KV页PPA和键范围）
                 PhysicalBlock metaBlock = allocateMetaBlock();
-                String metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
+                long metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
                 newSst.metadataPagePpa=metaPpa;
                 PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
-                for ( Pair<String, String> kvEntry : currentSstKvEntries) {
-                    newMetaPage.data.add(kvEntry); // 将KV页条目加入新MetaPage
+                for ( Pair<Long, String> kvEntry : currentSstKvEntries) {
+                    newMetaPage.metaEntries.add(kvEntry); // 将KV页条目加入新MetaPage
                 }
-                int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
+                int metaPageNo = Ppa.pageNo(metaPpa);
                 if (metaBlock.addPage(metaPageNo, newMetaPage)) {
                     newSst.metadataPage = newMetaPage;
-                    stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
+                    totalFlashWrites.add(Constants.PAGE_SIZE); // 统计元数据页写入
                     // 关联元数据块与SSTable
                     metaBlock.sstables.add(newSst.sstId);
                     try {
@@ -1103,9 +2092,9 @@ public class KVSSD6{
                 String[] newSstKeyRangeParts = currentSstKvEntries.get(0).second.split("\\|"); // 注意转义竖线（|在正则中需转义）
                 String newSstMinKey = newSstKeyRangeParts[0].trim(); // 去除空格，确保键比较准确
                 //@TODO max错了，最后一个不一定是maxKey最大的！
-                Collections.sort(currentSstKvEntries, new Comparator<Pair<String, String>>() {
+                Collections.sort(currentSstKvEntries, new Comparator<Pair<Long, String>>() {
                     @Override
-                    public int compare(Pair<String, String> entry1, Pair<String, String> entry2) {
+                    public int compare(Pair<Long, String> entry1, Pair<Long, String> entry2) {
                         String keyMax1 = extractKeyMax(entry1.second);
                         String keyMax2 = extractKeyMax(entry2.second);
                         return keyMax2.compareTo(keyMax1); // 降序
@@ -1124,11 +2113,9 @@ public class KVSSD6{
                 // newSst.kvpairSize = calculateTotalKvCount(currentSstKvEntries); // 统计SSTable总KV对数（遍历KV页计算）
 
                 try {
-                    savePhysicalBlockToFile(metaBlock);
-                    saveMetaPageToFile(metaBlock);
+                    persistMetaBlock(metaBlock);
                 } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    //  e.printStackTrace();
+                    // 旧切分实现不回滚，失败已在 persistMetaBlock 中记录
                 }
                 // 4.5 将新SSTable加入结果列表
                 newSsts.add(newSst);
@@ -1141,39 +2128,39 @@ public class KVSSD6{
         return newSsts;
     }
 
-    private List<SSTable> newSplitIntoNonOverlappingSsts(List<Pair<String, String>> allKvPageEntries, int targetLevel){
+    private List<SSTable> newSplitIntoNonOverlappingSsts(List<Pair<Long, String>> allKvPageEntries, int targetLevel){
         List<SSTable> newSSTables = new ArrayList<>();
-        List<Pair<String, String>> currentGroup = new ArrayList<>();
+        List<Pair<Long, String>> currentGroup = new ArrayList<>();
         int maxKvPagesPerSst = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
         int currentCount = 0;
         for (int i = 0; i < allKvPageEntries.size(); i++) {
-            Pair<String, String> currentPair = allKvPageEntries.get(i);
+            Pair<Long, String> currentPair = allKvPageEntries.get(i);
             currentGroup.add(currentPair); // 将当前KV页加入待构建的SSTable
             currentCount++;
             boolean needSplit = currentGroup.size() >= maxKvPagesPerSst || i == allKvPageEntries.size() - 1;
 
             if (needSplit){
-                List<Pair<String, String>> sharedPages = new ArrayList<>();
+                List<Pair<Long, String>> sharedPages = new ArrayList<>();
                 if (i != allKvPageEntries.size() - 1){
-                    Pair<String,String> next = allKvPageEntries.get(i + 1);
+                    Pair<Long, String> next = allKvPageEntries.get(i + 1);
                     //boolean overlap = (currentPair.second.split("\\|")[1].compareTo(next.second.split("\\|")[0])>0 );
-                    for(Pair<String,String> entry:currentGroup){
+                    for(Pair<Long, String> entry:currentGroup){
                         if(entry.second.split("\\|")[1].compareTo(next.second.split("\\|")[0])>0){
                             sharedPages.add(entry);
                         }
                     }
                     SSTable newSst = new SSTable(nextSstId++, targetLevel);
                     PhysicalBlock metaBlock = allocateMetaBlock();
-                    String metaPpa = generatePPA(metaBlock.blockId);
+                    long metaPpa = generatePPA(metaBlock.blockId);
                     newSst.metadataPagePpa=metaPpa;
                     PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
-                    for ( Pair<String, String> kvEntry : currentGroup) {
-                        newMetaPage.data.add(kvEntry); // 将KV页条目加入新MetaPage
+                    for ( Pair<Long, String> kvEntry : currentGroup) {
+                        newMetaPage.metaEntries.add(kvEntry); // 将KV页条目加入新MetaPage
                     }
-                    int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
+                    int metaPageNo = Ppa.pageNo(metaPpa);
                     if (metaBlock.addPage(metaPageNo, newMetaPage)) {
                         newSst.metadataPage = newMetaPage;
-                        stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
+                        totalFlashWrites.add(Constants.PAGE_SIZE); // 统计元数据页写入
                         // 关联元数据块与SSTable
                         metaBlock.sstables.add(newSst.sstId);
                         try {
@@ -1195,15 +2182,13 @@ public class KVSSD6{
                     newSst.keyRange = new Pair<>(newSstMinKey, newSstMaxKey); // 赋值SSTable键范围
                     newSst.metadataPagePpa = newMetaPage.ppa; // 关联MetaPage的Flash物理地址（PPA）
                     try {
-                        savePhysicalBlockToFile(metaBlock);
-                        saveMetaPageToFile(metaBlock);
+                        persistMetaBlock(metaBlock);
                     } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        //  e.printStackTrace();
+                        // 旧切分实现不回滚，失败已在 persistMetaBlock 中记录
                     }
                     newSSTables.add(newSst);
                     currentGroup = new ArrayList<>();
-                    for (Pair<String ,String> entry:sharedPages){
+                    for (Pair<Long, String> entry:sharedPages){
                         currentGroup.add(entry);
                     }
                     currentCount = 0;
@@ -1212,16 +2197,16 @@ public class KVSSD6{
 
                     SSTable newSst = new SSTable(nextSstId++, targetLevel); // nextSstId为全局自增ID，确保唯一性
                     PhysicalBlock metaBlock = allocateMetaBlock();
-                    String metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
+                    long metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
                     newSst.metadataPagePpa=metaPpa;
                     PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
-                    for ( Pair<String, String> kvEntry : currentGroup) {
-                        newMetaPage.data.add(kvEntry); // 将KV页条目加入新MetaPage
+                    for ( Pair<Long, String> kvEntry : currentGroup) {
+                        newMetaPage.metaEntries.add(kvEntry); // 将KV页条目加入新MetaPage
                     }
-                    int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
+                    int metaPageNo = Ppa.pageNo(metaPpa);
                     if (metaBlock.addPage(metaPageNo, newMetaPage)) {
                         newSst.metadataPage = newMetaPage;
-                        stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
+                        totalFlashWrites.add(Constants.PAGE_SIZE); // 统计元数据页写入
                         metaBlock.sstables.add(newSst.sstId);
                         try {
                             savePhysicalBlockToFile(metaBlock); // 持久化元数据区块变更
@@ -1237,9 +2222,9 @@ public class KVSSD6{
                     }
                     String[] newSstKeyRangeParts = currentGroup.get(0).second.split("\\|"); // 注意转义竖线（|在正则中需转义）
                     String newSstMinKey = newSstKeyRangeParts[0].trim();
-                    Collections.sort(currentGroup, new Comparator<Pair<String, String>>() {
+                    Collections.sort(currentGroup, new Comparator<Pair<Long, String>>() {
                         @Override
-                        public int compare(Pair<String, String> entry1, Pair<String, String> entry2) {
+                        public int compare(Pair<Long, String> entry1, Pair<Long, String> entry2) {
                             String keyMax1 = extractKeyMax(entry1.second);
                             String keyMax2 = extractKeyMax(entry2.second);
                             return keyMax2.compareTo(keyMax1); // 降序
@@ -1254,11 +2239,9 @@ public class KVSSD6{
                     newSst.keyRange = new Pair<>(newSstMinKey, newSstMaxKey); // 赋值SSTable键范围
                     newSst.metadataPagePpa = newMetaPage.ppa; // 关联MetaPage的Flash物理地址（PPA）
                     try {
-                        savePhysicalBlockToFile(metaBlock);
-                        saveMetaPageToFile(metaBlock);
+                        persistMetaBlock(metaBlock);
                     } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        //  e.printStackTrace();
+                        // 旧切分实现不回滚，失败已在 persistMetaBlock 中记录
                     }
                     newSSTables.add(newSst);
                     // 清空 currentGroup，继续（循环会结束）
@@ -1271,156 +2254,189 @@ public class KVSSD6{
     }
 
 
-    private List<SSTable> newnewSplitIntoNonOverlappingSsts(List<Pair<String, String>> allKvPageEntries, int targetLevel){
+    /**
+     * 压缩产出的一个 SST：按原分组规则切出的 KV 页条目及其键范围，分配元数据块后由子压缩并行构建布隆过滤器并落盘
+     */
+    private static final class CompactionOutput {
+        final List<Pair<Long, String>> entries;
+        final String minKey;
+        final String maxKey;
+        SSTable sst;
+        PhysicalBlock metaBlock;
+
+        CompactionOutput(List<Pair<Long, String>> entries, String minKey, String maxKey) {
+            this.entries = entries;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+        }
+    }
+
+    /**
+     * 为切分好的产出分配 SST、元数据块与元数据页，再并行构建；失败时抛出，已分配的元数据页留在 outputs 中由调用方撤销
+     */
+    private List<SSTable> newnewSplitIntoNonOverlappingSsts(List<CompactionOutput> outputs, Map<Long, List<String>> pageKeys,
+                                                           int targetLevel) throws IOException {
+        // 串行分配：SST ID、元数据块和元数据页按产出顺序分配
         List<SSTable> newSSTables = new ArrayList<>();
-        List<Pair<String, String>> currentGroup = new LinkedList<>();
+        for (CompactionOutput output : outputs) {
+            SSTable newSst = new SSTable(nextSstId++, targetLevel); // nextSstId为全局自增ID，确保唯一性
+            PhysicalBlock metaBlock = allocateMetaBlock();
+            if (metaBlock == null) {
+                throw new IOException("no meta block available for SST " + newSst.sstId);
+            }
+            long metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
+            newSst.metadataPagePpa=metaPpa;
+            PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
+            newMetaPage.metaEntries.addAll(output.entries); // 将KV页条目加入新MetaPage
+            int metaPageNo = Ppa.pageNo(metaPpa);
+            if (!metaBlock.addPage(metaPageNo, newMetaPage)) {
+                // 元数据区块添加失败时，释放块并返回错误（此前产出的元数据页由调用方撤销）
+                metaBlock.allocated = false;
+                metaFreeBlocks.add(metaBlock.blockId);
+                throw new IOException("failed to add metadata page to meta block " + metaBlock.blockId);
+            }
+            newSst.metadataPage = newMetaPage;
+            totalFlashWrites.add(Constants.PAGE_SIZE); // 统计元数据页写入
+            metaBlock.sstables.add(newSst.sstId); // 关联元数据块与SSTable
+            // 计算新SSTable的键范围（论文3.C：SSTable键范围=所有KV页键范围的并集）
+            newSst.keyRange = new Pair<>(output.minKey, output.maxKey);
+            output.sst = newSst;
+            output.metaBlock = metaBlock;
+            newSSTables.add(newSst);
+        }
+
+        // 并行子压缩：按产出顺序切成互不相交的键区间，各自用已读出的 key 建布隆过滤器并持久化各自的元数据块
+        runSubCompactions(outputs, pageKeys);
+        return newSSTables;
+    }
+
+    /**
+     * 按原分组规则把已按最小键排序的 KV 页条目切成各产出 SST 的条目列表与键范围（不分配任何资源）
+     */
+    private List<CompactionOutput> planCompactionOutputs(List<Pair<Long, String>> allKvPageEntries) {
+        List<CompactionOutput> outputs = new ArrayList<>();
+        List<Pair<Long, String>> currentGroup = new LinkedList<>();
         int maxKvPagesPerSst = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
         int currentCount = 0;
         for (int i = 0; i < allKvPageEntries.size(); i++) {
-            Pair<String, String> currentPair = allKvPageEntries.get(i);
+            Pair<Long, String> currentPair = allKvPageEntries.get(i);
             currentGroup.add(currentPair); // 将当前KV页加入待构建的SSTable
             currentCount++;
             boolean needSplit = currentCount >= maxKvPagesPerSst || i == allKvPageEntries.size() - 1;
-
-            if (needSplit){
-                List<Pair<String, String>> sharedPages = new LinkedList<>();
-                if (i != allKvPageEntries.size() - 1){
-                    Pair<String,String> next = allKvPageEntries.get(i + 1);
-                    String[] nextKeyParts = next.second.split("\\|", 2); // 限制拆分次数为2
-                    String nextMinKey = nextKeyParts[0].trim();
-
-                    for(Pair<String,String> entry:currentGroup){
-                        if(entry.second.split("\\|")[1].compareTo(nextMinKey)>0){
-                            sharedPages.add(entry);
-                        }
-                    }
-                    SSTable newSst = new SSTable(nextSstId++, targetLevel);
-                    PhysicalBlock metaBlock = allocateMetaBlock();
-                    String metaPpa = generatePPA(metaBlock.blockId);
-                    newSst.metadataPagePpa=metaPpa;
-                    PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
-                    for ( Pair<String, String> kvEntry : currentGroup) {
-                        newMetaPage.data.add(kvEntry); // 将KV页条目加入新MetaPage
-                    }
-                    int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
-                    if (metaBlock.addPage(metaPageNo, newMetaPage)) {
-                        newSst.metadataPage = newMetaPage;
-                        stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
-                        // 关联元数据块与SSTable
-                        metaBlock.sstables.add(newSst.sstId);
-                        try {
-                            savePhysicalBlockToFile(metaBlock); // 持久化元数据区块变更
-                        } catch (IOException e) {
-                            System.err.println("Failed to persist meta block after adding metadata page: " + e.getMessage());
-                        }
-                    } else {
-                        // 元数据区块添加失败时，释放块并返回错误
-                        metaBlock.allocated = false;
-                        metaFreeBlocks.add(metaBlock.blockId);
-                        System.err.println("Failed to add metadata page to meta block");
-                        return null;
-                    }
-                    // 4.3 计算新SSTable的键范围（论文3.C：SSTable键范围=所有KV页键范围的并集）
-                    String[] newSstKeyRangeParts = currentGroup.get(currentGroup.size()-(int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE)).second.split("\\|"); // 注意转义竖线（|在正则中需转义）
-                    String newSstMinKey = newSstKeyRangeParts[0].trim(); // 去除空格，确保键比较准确
-                    String newSstMaxKey = next.second.split("\\|")[0].trim();
-                    newSst.keyRange = new Pair<>(newSstMinKey, newSstMaxKey); // 赋值SSTable键范围
-                    newSst.metadataPagePpa = newMetaPage.ppa; // 关联MetaPage的Flash物理地址（PPA）
-                    try {
-                        savePhysicalBlockToFile(metaBlock);
-                        saveMetaPageToFile(metaBlock);
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        //  e.printStackTrace();
+            if (!needSplit) {
+                continue;
+            }
+            if (i != allKvPageEntries.size() - 1) {
+                Pair<Long, String> next = allKvPageEntries.get(i + 1);
+                String[] nextKeyParts = next.second.split("\\|", 2); // 限制拆分次数为2
+                String nextMinKey = nextKeyParts[0].trim();
+
+                // 最大键达到下一组最小键的页带入下一组（含恰好等于的页：下一组须持有覆盖其最小键的全部页，
+                // 本组迁往下一层而下一组留下时，边界键不会只剩旧版本）
+                List<Pair<Long, String>> sharedPages = new LinkedList<>();
+                for (Pair<Long, String> entry : currentGroup) {
+                    if (entry.second.split("\\|")[1].compareTo(nextMinKey) >= 0) {
+                        sharedPages.add(entry);
                     }
-                    newSSTables.add(newSst);
-                    currentGroup.clear();
-                    for (Pair<String ,String> entry:sharedPages){
-                        currentGroup.add(entry);
+                }
+                // 最小键取本组第一个新加入的页（前面是上一组带入的共享页），最大键取下一页的最小键
+                String[] newSstKeyRangeParts = currentGroup.get(currentGroup.size() - maxKvPagesPerSst).second.split("\\|"); // 注意转义竖线（|在正则中需转义）
+                String newSstMinKey = newSstKeyRangeParts[0].trim(); // 去除空格，确保键比较准确
+                outputs.add(new CompactionOutput(new ArrayList<>(currentGroup), newSstMinKey, nextMinKey));
+                currentGroup.clear();
+                currentGroup.addAll(sharedPages);
+            } else {
+                String newSstMinKey = currentGroup.get(0).second.split("\\|")[0].trim();
+                String newSstMaxKey = "";
+                for (Pair<Long, String> entry : currentGroup) {
+                    String keyRange = entry.second;
+                    String keyMax = (keyRange != null && keyRange.contains("|")) ? keyRange.split("\\|")[1].trim() : "";
+                    if (keyMax.compareTo(newSstMaxKey) > 0) {
+                        newSstMaxKey = keyMax;
                     }
-                    currentCount = 0;
                 }
-                else {
+                outputs.add(new CompactionOutput(new ArrayList<>(currentGroup), newSstMinKey, newSstMaxKey));
+                currentGroup.clear();
+            }
+            currentCount = 0;
+        }
+        return outputs;
+    }
 
-                    SSTable newSst = new SSTable(nextSstId++, targetLevel); // nextSstId为全局自增ID，确保唯一性
-                    PhysicalBlock metaBlock = allocateMetaBlock();
-                    String metaPpa = generatePPA(metaBlock.blockId); // 复用原有PPA生成逻辑
-                    newSst.metadataPagePpa=metaPpa;
-                    PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
-                    for ( Pair<String, String> kvEntry : currentGroup) {
-                        newMetaPage.data.add(kvEntry); // 将KV页条目加入新MetaPage
-                    }
-                    int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
-                    if (metaBlock.addPage(metaPageNo, newMetaPage)) {
-                        newSst.metadataPage = newMetaPage;
-                        stats.totalFlashWrites += Constants.PAGE_SIZE; // 统计元数据页写入
-                        metaBlock.sstables.add(newSst.sstId);
-                        try {
-                            savePhysicalBlockToFile(metaBlock); // 持久化元数据区块变更
-                        } catch (IOException e) {
-                            System.err.println("Failed to persist meta block after adding metadata page: " + e.getMessage());
-                        }
-                    } else {
-                        // 元数据区块添加失败时，释放块并返回错误
-                        metaBlock.allocated = false;
-                        metaFreeBlocks.add(metaBlock.blockId);
-                        System.err.println("Failed to add metadata page to meta block");
-                        return null;
-                    }
-                    String[] newSstKeyRangeParts = currentGroup.get(0).second.split("\\|"); // 注意转义竖线（|在正则中需转义）
-                    String newSstMinKey = newSstKeyRangeParts[0].trim();
-                    Collections.sort(currentGroup, new Comparator<Pair<String, String>>() {
-                        @Override
-                        public int compare(Pair<String, String> entry1, Pair<String, String> entry2) {
-                            String keyMax1 = extractKeyMax(entry1.second);
-                            String keyMax2 = extractKeyMax(entry2.second);
-                            return keyMax2.compareTo(keyMax1); // 降序
-                        }
-                        private String extractKeyMax(String keyRange) {
-                            return (keyRange != null && keyRange.contains("|")) ?
-                                    keyRange.split("\\|")[1].trim() : "";
-                        }
-                    });
-                    String[] KeyRangeParts = currentGroup.get(0).second.split("\\|");
-                    String newSstMaxKey = KeyRangeParts[1].trim();
-                    newSst.keyRange = new Pair<>(newSstMinKey, newSstMaxKey); // 赋值SSTable键范围
-                    newSst.metadataPagePpa = newMetaPage.ppa; // 关联MetaPage的Flash物理地址（PPA）
-                    try {
-                        savePhysicalBlockToFile(metaBlock);
-                        saveMetaPageToFile(metaBlock);
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        //  e.printStackTrace();
-                    }
-                    newSSTables.add(newSst);
-                    // 清空 currentGroup，继续（循环会结束）
-                    currentGroup.clear();
-                    currentCount = 0;
+    /**
+     * 把产出 SST 按顺序分成至多 compactionParallelism 个连续区间（按 KV 页数均分），在压缩线程池上并行处理；
+     * 各区间只读共享的页 key 表、只写各自独占的元数据块，调用方持有 lsmLock，全部完成后才把产出装入 lsmLevels；
+     * 任一区间持久化失败时等全部区间结束后抛出该异常
+     */
+    private void runSubCompactions(List<CompactionOutput> outputs, Map<Long, List<String>> pageKeys) throws IOException {
+        int parallelism = Math.min(compactionParallelism, outputs.size());
+        if (parallelism <= 1) {
+            buildCompactionOutputs(outputs, pageKeys);
+            return;
+        }
+        long totalPages = 0;
+        for (CompactionOutput output : outputs) {
+            totalPages += output.entries.size();
+        }
+        List<Callable<Void>> subCompactions = new ArrayList<>(parallelism);
+        int from = 0;
+        long pagesSoFar = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            pagesSoFar += outputs.get(i).entries.size();
+            boolean boundary = pagesSoFar * parallelism >= totalPages * (subCompactions.size() + 1);
+            if (boundary || i == outputs.size() - 1) {
+                List<CompactionOutput> range = outputs.subList(from, i + 1);
+                subCompactions.add(() -> {
+                    buildCompactionOutputs(range, pageKeys);
+                    return null;
+                });
+                from = i + 1;
+            }
+        }
+        for (Future<Void> result : compactionPool.invokeAll(subCompactions)) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for sub-compaction");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
                 }
+                throw new RuntimeException("Failed to run sub-compaction: " + e.getCause());
             }
         }
-        return newSSTables;
     }
 
-    private SSTable createSSTable(List<Pair<String, String>> kvEntries, int targetLevel, String nextMinKey, boolean isLast) {
+    /**
+     * 单个子压缩：为区间内每个产出 SST 构建布隆过滤器，并持久化其元数据块
+     */
+    private void buildCompactionOutputs(List<CompactionOutput> outputs, Map<Long, List<String>> pageKeys) throws IOException {
+        for (CompactionOutput output : outputs) {
+            output.sst.bloomFilter = buildBloomFilter(output.entries, pageKeys);
+            persistMetaBlock(output.metaBlock);
+        }
+    }
+
+    private SSTable createSSTable(List<Pair<Long, String>> kvEntries, int targetLevel, String nextMinKey, boolean isLast) {
         SSTable newSst = new SSTable(nextSstId++, targetLevel);
         PhysicalBlock metaBlock = allocateMetaBlock();
         if (metaBlock == null) {
             return null;
         }
 
-        String metaPpa = generatePPA(metaBlock.blockId);
+        long metaPpa = generatePPA(metaBlock.blockId);
         newSst.metadataPagePpa = metaPpa;
         PhysicalPage newMetaPage = new PhysicalPage(metaPpa);
 
         // 9. 添加后立即从kvEntries移除元素，减少内存占用
-        Iterator<Pair<String, String>> iterator = kvEntries.iterator();
+        Iterator<Pair<Long, String>> iterator = kvEntries.iterator();
         while (iterator.hasNext()) {
-            newMetaPage.data.add(iterator.next());
+            newMetaPage.metaEntries.add(iterator.next());
             iterator.remove(); // 移除已处理的元素，释放内存
         }
 
-        int metaPageNo = Integer.parseInt(metaPpa.split("_")[1]);
+        int metaPageNo = Ppa.pageNo(metaPpa);
         if (!metaBlock.addPage(metaPageNo, newMetaPage)) {
             metaBlock.allocated = false;
             metaFreeBlocks.add(metaBlock.blockId);
@@ -1428,7 +2444,8 @@ public class KVSSD6{
         }
 
         newSst.metadataPage = newMetaPage;
-        stats.totalFlashWrites += Constants.PAGE_SIZE;
+        newSst.bloomFilter = buildBloomFilter(newMetaPage.metaEntries, readCompactionPageKeys(newMetaPage.metaEntries));
+        totalFlashWrites.add(Constants.PAGE_SIZE);
         metaBlock.sstables.add(newSst.sstId);
 
         // 计算键范围
@@ -1474,34 +2491,56 @@ public class KVSSD6{
 
     // 同步修改runCompaction中的目标层级列表处理（若有类似Stream逻辑）
     private void newRunCompaction(int sourceLevel, List<SSTable> overlappingSsts) {
-        stats.compactionCount++;
+        compactionCount.increment();
+        long compactionStart = System.nanoTime();
         int targetLevel = sourceLevel + 1;
 
         // 1. 用for循环获取目标层级有效SSTable(ppa，key_min|key_max)
-        // List<Pair<String, String>> allKvPageEntries=new ArrayList<>();
+        // List<Pair<Long, String>> allKvPageEntries=new ArrayList<>();
 
         // for(SSTable sst:overlappingSsts){
-        //     List<Pair<String,String>> ppaAndRange=sst.metadataPage.data;
-        //     for(Pair<String,String> onePage:ppaAndRange){
+        //     List<Pair<Long, String>> ppaAndRange=sst.metadataPage.metaEntries;
+        //     for(Pair<Long, String> onePage:ppaAndRange){
         //         allKvPageEntries.add(onePage);
         //     }
         // }
         //TODO kventries去重
-        Map<String, Pair<String, String>> uniqueEntries = new LinkedHashMap<>();
+        Map<Long, Pair<Long, String>> uniqueEntries = new LinkedHashMap<>();
         for (SSTable sst : overlappingSsts) {
-            List<Pair<String, String>> ppaAndRange = sst.metadataPage.data;
-            for (Pair<String, String> onePage : ppaAndRange) {
-                String key = onePage.first; // 以键作为去重依据
+            List<Pair<Long, String>> ppaAndRange = sst.metadataPage.metaEntries;
+            for (Pair<Long, String> onePage : ppaAndRange) {
+                Long key = onePage.first; // 以KV页PPA作为去重依据
                 if (!uniqueEntries.containsKey(key)) {
                     uniqueEntries.put(key, onePage);
                 }
             }
         }
-        List<Pair<String, String>> allKvPageEntries = new ArrayList<>(uniqueEntries.values());
+        List<Pair<Long, String>> allKvPageEntries = new ArrayList<>(uniqueEntries.values());
+        Map<Long, List<String>> pageKeys = readCompactionPageKeys(allKvPageEntries);
+        dropShadowedPages(allKvPageEntries, pageKeys);
 
         // 步骤5：加入新SSTable并按键范围排序（后续逻辑不变）
         sortAllKvPageEntriesByMinKeyAsc(allKvPageEntries);
-        List<SSTable> newSsts = newnewSplitIntoNonOverlappingSsts(allKvPageEntries, targetLevel);
+        // 串行切分：分组规则（每组最多一块的页数，跨组重叠的页带入下一组）与原实现一致，保证产出不随并行度变化
+        List<CompactionOutput> outputs = planCompactionOutputs(allKvPageEntries);
+        List<SSTable> newSsts;
+        try {
+            newSsts = newnewSplitIntoNonOverlappingSsts(outputs, pageKeys, targetLevel);
+            // SST 描述与布隆过滤器先于加入 LSM 层级落盘：失败时产出尚未进入 pendingEdit，可整体撤销
+            for (SSTable sst : newSsts) {
+                saveSSTableToFile(sst);
+                saveBloomFilterToFile(sst);
+            }
+        } catch (IOException e) {
+            // 产出尚未对读路径和清单可见：撤销已认领的元数据页，原 SST 与 lsmLevels 保持不变
+            System.err.println("Failed to persist compaction outputs of level " + sourceLevel + ": " + e.getMessage());
+            abandonCompactionOutputs(outputs);
+            throw new RuntimeException("Failed to compact level " + sourceLevel + ": " + e.getMessage());
+        }
+        // 新 SST 沿用原 KV 页，须在原 SST 注销前登记引用，否则这些页会被误判为无引用而失效
+        for(SSTable sst:newSsts){
+            pageRefs.registerSst(sst);
+        }
 
         // 2. 标记原 SSTable 为无效（业务逻辑：原 SSTable 不再参与查询）
         for(SSTable sst:overlappingSsts){
@@ -1522,19 +2561,67 @@ public class KVSSD6{
 
         for(SSTable sst:newSsts){
             temp.add(sst);
+            pendingEdit.addSst(targetLevel, sst.sstId);
         }
         temp.sort(Comparator.comparing(s -> s.keyRange.first));
         lsmLevels.put(targetLevel, temp);
+        rebuildLevelIndex(targetLevel);
         // 5. 对合并后的所有SSTable按keyRange.first（keyMin）升序排序
 
+        compactionTimeMs.add((System.nanoTime() - compactionStart) / 1_000_000);
+    }
 
-        // 其余持久化等逻辑保持不变...
-        try {
-            for(SSTable sst:newSsts){
-                saveSSTableToFile(sst);
+    /**
+     * 撤销失败压缩的全部产出：归还各自的元数据页，可能已写出的 SST 描述文件在下次提交清单时删除
+     */
+    private void abandonCompactionOutputs(List<CompactionOutput> outputs) {
+        for (CompactionOutput output : outputs) {
+            if (output.sst == null) {
+                continue;
             }
-        } catch (IOException e) {
-            // System.err.printf("持久化新 SST[%d] 失败：%s%n", sst.sstId, e.getMessage());
+            releaseMetaPage(output.sst, output.metaBlock);
+            obsoleteSstFiles.add(output.sst.sstId);
+        }
+    }
+
+    /**
+     * 丢弃参与压缩的 KV 页中已被完全覆盖的旧页：页内每个 key 在本次压缩中都有写入序号更大的页时，
+     * 该页不再进入产出 SST（较新的页随产出保留，读路径按序号取最新版本，结果不变）。
+     * 被丢弃的页若也没有其他存活 SST 引用，随原 SST 注销而失效，GC 才有可回收的块。
+     * 同一序号的页来自同一次刷盘、键互不重叠；旧格式条目序号为 0，无法比较新旧，一律保留；读不出的页保留且不参与覆盖判断
+     */
+    private void dropShadowedPages(List<Pair<Long, String>> pageEntries, Map<Long, List<String>> pageKeys) {
+        List<Pair<Long, String>> bySeq = new ArrayList<>(pageEntries);
+        bySeq.sort(Comparator.comparingLong((Pair<Long, String> e) -> MetaPageIndex.entrySeq(e.second)).reversed());
+        Set<String> newerKeys = new HashSet<>();
+        Set<Long> dropped = new HashSet<>();
+        int i = 0;
+        while (i < bySeq.size()) {
+            long seq = MetaPageIndex.entrySeq(bySeq.get(i).second);
+            int end = i;
+            while (end < bySeq.size() && MetaPageIndex.entrySeq(bySeq.get(end).second) == seq) {
+                end++;
+            }
+            // 同序号的页只与更大序号的页比较，整组判断完再把本组的 key 并入
+            List<List<String>> groupKeys = new ArrayList<>();
+            for (int j = i; j < end; j++) {
+                List<String> keys = pageKeys.get(bySeq.get(j).first);
+                if (keys == null) {
+                    continue;
+                }
+                groupKeys.add(keys);
+                if (seq > 0 && !keys.isEmpty() && newerKeys.containsAll(keys)) {
+                    dropped.add(bySeq.get(j).first);
+                }
+            }
+            for (List<String> keys : groupKeys) {
+                newerKeys.addAll(keys);
+            }
+            i = end;
+        }
+        if (!dropped.isEmpty()) {
+            pageEntries.removeIf(entry -> dropped.contains(entry.first));
+            compactionPagesDropped.add(dropped.size());
         }
     }
 
@@ -1542,7 +2629,7 @@ public class KVSSD6{
      * L1+ 单个迁移 SSTable 到下一层（创建新 SSTable，删除原 SSTable）
      */
     private void runCompaction(int sourceLevel, SSTable victimSst) {
-        stats.compactionCount++;
+        compactionCount.increment();
         int targetLevel = sourceLevel + 1; // 目标层级 = 源层级 + 1
         List<SSTable> targetSsts = lsmLevels.computeIfAbsent(targetLevel, k -> new ArrayList<>());
 
@@ -1552,24 +2639,29 @@ public class KVSSD6{
         newSst.kvpairSize = victimSst.kvpairSize;      // 复制 KV 数量
         newSst.metadataPagePpa = victimSst.metadataPagePpa; // 复制元数据页地址
         newSst.metadataPage=victimSst.metadataPage;
+        newSst.bloomFilter = victimSst.bloomFilter;
         // （补充其他需复制的属性，确保新 SSTable 与原完全一致）
 
         // 2. 标记原 SSTable 为无效（业务逻辑：原 SSTable 不再参与查询）
+        pageRefs.registerSst(newSst); // 新 SST 复用原元数据页，须在原 SST 注销前登记，其 KV 页才不会失效
         markSSTInvalid(victimSst);
 
         // 3. 将新 SSTable 加入目标层级，并按键范围排序（L1+ 需保持有序，便于查询优化）
         targetSsts.remove(victimSst);
         targetSsts.add(newSst);
+        pendingEdit.addSst(targetLevel, newSst.sstId);
         targetSsts.sort(Comparator.comparing(s -> s.keyRange.first));
 
         // 4. 更新目标层级列表到 LSM 树
         lsmLevels.put(targetLevel, targetSsts);
+        rebuildLevelIndex(targetLevel);
 
         System.out.printf("层级[%d] SST[%d] 迁移到层级[%d]，新 SST ID：%d%n",
                 sourceLevel, victimSst.sstId, targetLevel, newSst.sstId);
 
         try {
             saveSSTableToFile(newSst);
+            saveBloomFilterToFile(newSst);
         } catch (IOException e) {
             System.err.printf("持久化新 SST[%d] 失败：%s%n", newSst.sstId, e.getMessage());
         }    // （可选）若需持久化新 SSTable 元数据，可在此补充保存逻辑
@@ -1611,8 +2703,8 @@ public class KVSSD6{
             markSSTInvalid(sst);
         }
 
-        // 4. 检查下一层级压缩
-        checkLevelCompaction(nextLevel);
+        // 4. 由后台压缩调度器检查下一层级
+        requestCompaction();
     }
 
     /**
@@ -1628,13 +2720,25 @@ public class KVSSD6{
             if (ssts.isEmpty()) {
                 lsmLevels.remove(sst.level);
             }
+            rebuildLevelIndex(sst.level);
+        }
+        pageRefs.unregisterSst(sst);
+
+        // 2. 元数据页条目指向的 KV 页若已无任何存活 SST 引用，则置为无效并计入 GC 受害块索引
+        if (sst.metadataPage != null) {
+            for (Pair<Long, String> entry : sst.metadataPage.metaEntries) {
+                if (!pageRefs.isReferenced(entry.first)) {
+                    invalidateDataPage(entry.first);
+                }
+            }
         }
 
         // 3. 更新页引用计数和有效性
         for (PhysicalPage page : sst.kvPages) {
             page.refCount--;
-            if (page.refCount <= 0) {
+            if (page.refCount <= 0 && page.valid) {
                 page.valid = false;
+                gcVictimIndex.pageInvalidated(Ppa.blockId(page.ppa));
             }
         }
         if (sst.metadataPage != null) {
@@ -1643,55 +2747,67 @@ public class KVSSD6{
                 sst.metadataPage.valid = false;
             }
         }
+        metaPageCache.invalidate(sst.metadataPagePpa);
 
         // 4. 持久化变更（物理块元数据、键范围树）并删除无效 SST 文件
         try {
-            // 找到 SST 关联的物理块并持久化
-            for (PhysicalBlock block : physicalBlocks.values()) {
-                if (block.sstables.contains(sst.sstId)) {
-                    block.sstables.remove(sst.sstId);
+            // 通过反向索引找到 SST 关联的物理块并持久化
+            for (long blockId : pageRefs.removeSstBlocks(sst.sstId)) {
+                PhysicalBlock block = physicalBlocks.get(blockId);
+                if (block != null && block.sstables.remove(sst.sstId)) {
                     savePhysicalBlockToFile(block);
                 }
             }
-            // 删除无效 SST 的文件
-            deleteSstFile(sst.sstId);
-            // 重写 LSM 层级文件
-            saveLsmLevelsToDisk();
+            // 记入未决变更；SST 文件在变更提交后再删除
+            pendingEdit.deleteSst(sst.sstId);
+            obsoleteSstFiles.add(sst.sstId);
         } catch (IOException e) {
             System.err.println("Failed to persist after marking SST invalid: " + e.getMessage());
         }
     }
+    /**
+     * 将数据区中 ppa 处的页置为无效（不存在或已无效时忽略）
+     */
+    private void invalidateDataPage(long ppa) {
+        PhysicalBlock block = physicalBlocks.get(Ppa.blockId(ppa));
+        if (block == null) {
+            return;
+        }
+        PhysicalPage page = block.pages.get(Ppa.pageNo(ppa));
+        if (page != null && page.ppa == ppa && page.valid) {
+            page.valid = false;
+            page.refCount = 0;
+            gcVictimIndex.pageInvalidated(block.blockId);
+        }
+    }
+
     /**
      * 计算空闲块占总块数的比例（百分比）
      */
     private double getFreeBlockRatio() {
-        // 加锁保证freeBlocks和totalBlocks的原子性读取
-        synchronized (freeBlocks) {
-            return (double) freeBlocks.size() / totalBlocks * 100;
-        }
+        return blockAllocator.freeRatio();
     }
     /**
-     * 工具方法：更新所有SST中旧页的引用为新页
+     * 工具方法：通过反向索引把引用旧页的SST（KV页/元数据页条目）改为引用新页
      */
-    private void updateSSTPageReference(String oldPpa, PhysicalPage newPage) {
-        for (List<SSTable> ssts : lsmLevels.values()) {
-            for (SSTable sst : ssts) {
+    private void updateSSTPageReference(long oldPpa, PhysicalPage newPage) {
+        for (PageReferenceIndex.Ref ref : pageRefs.remap(oldPpa, newPage.ppa)) {
+            SSTable sst = ref.sst;
+            if (ref.entry == null) {
                 // 更新KV页引用
                 for (int i = 0; i < sst.kvPages.size(); i++) {
-                    if (sst.kvPages.get(i).ppa.equals(oldPpa)) {
-                        sst.kvPages.set(i, newPage);
-                    }
-                }
-                // 更新元数据页中的KV页地址
-                if (sst.metadataPage != null) {
-                    for (Pair<String, String> metaEntry : sst.metadataPage.data) {
-                        if (metaEntry.first.equals(oldPpa)) {
-                            metaEntry.first = newPage.ppa;
-                            break;
-                        }
+                    if (sst.kvPages.get(i).ppa == oldPpa) {
+                        sst.kvPages.set(i, newPage);
                     }
                 }
+            } else {
+                // 更新元数据页中的KV页地址
+                ref.entry.first = newPage.ppa;
+                sst.metadataPage.dirty = true; // 元数据页内容变化，需重写
+                metaPageCache.invalidate(sst.metadataPagePpa);
+                dirtyMetaBlocks.add(Ppa.blockId(sst.metadataPagePpa));
             }
+            gcDirtySsts.add(sst);
         }
     }
 
@@ -1703,95 +2819,102 @@ public class KVSSD6{
             Files.createDirectories(Paths.get(Constants.SST_DIR));
             java.nio.file.Path sstPath = Paths.get(Constants.SST_DIR + "sst_" + sstId + ".sst");
             Files.deleteIfExists(sstPath);
+            Files.deleteIfExists(bloomFilterFile(sstId).toPath());
         } catch (IOException e) {
             System.err.println("Failed to delete SST file sst_" + sstId + ".sst: " + e.getMessage());
         }
     }
 
     /**
-     * 执行垃圾回收（改造：复用待回收块空间，不依赖allocateBlock）
+     * 执行垃圾回收：按受害块索引的策略选块，把有效页迁移到同层级空闲块后擦除（不依赖allocateBlock）
      */
-    private void runGarbageCollection() {
-        stats.gcCount++;
+    private int runGarbageCollection() {
+        gcCount.increment();
         List<PhysicalBlock> gcBlocks = new ArrayList<>();
+        int pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
 
-        // 1. 筛选需回收的块（无效页比例超阈值，且优先选同层级块）
-        for (PhysicalBlock block : physicalBlocks.values()) {
-            if (block.allocated && block.getInvalidRatio() >= Constants.GC_THRESHOLD) {
-                gcBlocks.add(block);
-                if (gcBlocks.size() >= 2) break; // 每次回收2个块（控制GC开销）
-            }
+        // 1. 从受害块索引选块（无效页比例不低于阈值，每次回收2个块控制GC开销）
+        int minInvalidPages = (int) Math.ceil(Constants.GC_THRESHOLD * pagesPerBlock);
+        for (long blockId : gcVictimIndex.selectVictims(2, minInvalidPages)) {
+            gcBlocks.add(physicalBlocks.get(blockId));
         }
         if (gcBlocks.isEmpty()) {
             System.out.println("No blocks need GC (invalid ratio < " + Constants.GC_THRESHOLD + ")");
-            return;
+            return 0;
         }
-        System.out.println("Start GC: process " + gcBlocks.size() + " blocks (invalid ratio >= " + Constants.GC_THRESHOLD + ")");
+        System.out.println("Start GC (" + gcVictimIndex.policy() + "): process " + gcBlocks.size()
+                + " blocks (invalid ratio >= " + Constants.GC_THRESHOLD + ")");
 
-        // 2. 迁移有效页（核心优化：优先复用待回收块的空闲空间）
+        // 2. 迁移有效页
+        List<PhysicalBlock> migratedBlocks = new ArrayList<>();
         for (PhysicalBlock oldBlock : gcBlocks) {
-            // 2.1 收集当前待回收块的有效页和空闲页位置
+            // 2.1 收集当前待回收块的有效页
             List<PhysicalPage> validPages = oldBlock.pages.stream()
                     .filter(page -> page != null && page.valid)
                     .collect(Collectors.toList());
-            List<Integer> freePageNosInOldBlock = new ArrayList<>(); // 待回收块内的空闲页编号
-            for (int i = 0; i < oldBlock.pages.size(); i++) {
-                if (oldBlock.pages.get(i) == null || !oldBlock.pages.get(i).valid) {
-                    freePageNosInOldBlock.add(i);
+
+            // 2.2 临时占用空闲块容纳有效页（优先同层级未写满的块；待回收块随后整块擦除，不能作为迁移目标）
+            List<PhysicalBlock> tempFreeBlocks = new ArrayList<>();
+            int freeSlots = 0;
+            while (freeSlots < validPages.size() && tempFreeBlocks.size() < 2) { // 最多临时用2个空闲块
+                PhysicalBlock freeBlock = blockAllocator.claimAtLevel(oldBlock.level); // 认领即临时占用，避免被其他线程分配
+                if (freeBlock == null) {
+                    freeBlock = blockAllocator.claimAny();
+                    if (freeBlock == null) {
+                        break;
+                    }
+                    if (freeBlock.usedPageCount() == 0) {
+                        freeBlock.level = oldBlock.level; // 空块归入待回收块的层级，归还后供该层分配
+                    }
                 }
+                tempFreeBlocks.add(freeBlock);
+                freeSlots += pagesPerBlock - freeBlock.usedPageCount();
             }
-
-            // 2.2 优先用待回收块的空闲页迁移有效页
-            Map<PhysicalPage, Integer> validPageToNewNo = new HashMap<>(); // 有效页→新页号映射
-            for (int i = 0; i < validPages.size() && i < freePageNosInOldBlock.size(); i++) {
-                validPageToNewNo.put(validPages.get(i), freePageNosInOldBlock.get(i));
+            if (freeSlots < validPages.size()) {
+                System.err.println("GC skipped block " + oldBlock.blockId + ": not enough free pages for "
+                        + validPages.size() + " valid pages");
+                for (PhysicalBlock tempBlock : tempFreeBlocks) {
+                    blockAllocator.release(tempBlock);
+                }
+                continue;
             }
 
-            // 2.3 若待回收块空间不足，从其他空闲块找空间（此时空闲块已提前释放）
-            List<PhysicalBlock> tempFreeBlocks = new ArrayList<>();
-            if (validPageToNewNo.size() < validPages.size()) {
-                Iterator<Long> freeIter = freeBlocks.iterator();
-                while (freeIter.hasNext() && tempFreeBlocks.size() < 2) { // 最多临时用2个空闲块
-                    long freeBlockId = freeIter.next();
-                    PhysicalBlock freeBlock = physicalBlocks.get(freeBlockId);
-                    if (freeBlock.level == oldBlock.level) { // 优先同层级空闲块
-                        tempFreeBlocks.add(freeBlock);
-                        freeIter.remove(); // 临时占用，避免被其他线程分配
+            // 2.3 先读入从检查点恢复、不驻留内容的页：任一页读不出时放弃迁移该块（不迁移任何页、不擦除），归还临时块
+            Map<PhysicalPage, List<Pair<String, String>>> loadedData = new HashMap<>();
+            boolean unreadable = false;
+            for (PhysicalPage validPage : validPages) {
+                if (validPage.data.isEmpty()) {
+                    List<Pair<String, String>> kvs = readPageKvs(validPage.ppa);
+                    if (kvs == null) {
+                        System.err.println("GC aborted block " + oldBlock.blockId + ": unreadable page "
+                                + Ppa.toString(validPage.ppa));
+                        unreadable = true;
+                        break;
                     }
+                    loadedData.put(validPage, kvs);
+                }
+            }
+            if (unreadable) {
+                for (PhysicalBlock tempBlock : tempFreeBlocks) {
+                    blockAllocator.release(tempBlock);
                 }
+                continue;
             }
 
             // 2.4 执行有效页迁移
             for (PhysicalPage validPage : validPages) {
-                PhysicalBlock targetBlock;
-                int targetPageNo;
-
-                // 情况1：复用待回收块的空闲页
-                if (validPageToNewNo.containsKey(validPage)) {
-                    targetBlock = oldBlock;
-                    targetPageNo = validPageToNewNo.get(validPage);
-                }
-                // 情况2：用临时空闲块的空闲页
-                else {
-                    // 找第一个有空闲页的临时块
-                    targetBlock = tempFreeBlocks.stream()
-                            .filter(b -> !b.isFull())
-                            .findFirst()
-                            .orElseThrow(() -> new RuntimeException("No temp free block for GC migration"));
-                    // 找临时块的第一个空闲页
-                    targetPageNo = -1;
-                    for (int i = 0; i < targetBlock.pages.size(); i++) {
-                        if (targetBlock.pages.get(i) == null) {
-                            targetPageNo = i;
-                            break;
-                        }
-                    }
-                }
+                // 找第一个有空闲页的临时块
+                PhysicalBlock targetBlock = tempFreeBlocks.stream()
+                        .filter(b -> !b.isFull())
+                        .findFirst()
+                        .orElseThrow(() -> new RuntimeException("No temp free block for GC migration"));
+                int targetPageNo = targetBlock.firstFreePage();
 
                 // 创建新页并迁移数据（复用目标块空间，无需allocateBlock）
-                String newPpa = targetBlock.blockId + "_" + targetPageNo;
+                long newPpa = Ppa.of(targetBlock.blockId, targetPageNo);
                 PhysicalPage newPage = new PhysicalPage(newPpa);
-                newPage.data = validPage.data;
+                newPage.data = loadedData.getOrDefault(validPage, validPage.data);
+                newPage.metaEntries = validPage.metaEntries;
                 newPage.keyRange = validPage.keyRange;
                 newPage.refCount = validPage.refCount;
 
@@ -1799,15 +2922,17 @@ public class KVSSD6{
                 if (targetBlock.addPage(targetPageNo, newPage)) {
                     // 更新所有关联SST的页引用（KV页+元数据页）
                     updateSSTPageReference(validPage.ppa, newPage);
-                    stats.totalFlashWrites += Constants.PAGE_SIZE;
-                    System.out.println("GC migrated page: " + validPage.ppa + " → " + newPpa);
+                    pageCache.invalidate(validPage.ppa);
+                    totalFlashWrites.add(Constants.PAGE_SIZE);
+                    gcPagesCopied.increment();
+                    System.out.println("GC migrated page: " + Ppa.toString(validPage.ppa) + " → " + Ppa.toString(newPpa));
                 }
             }
 
             // 2.5 归还临时占用的空闲块（迁移完成后释放）
             for (PhysicalBlock tempBlock : tempFreeBlocks) {
                 tempBlock.allocated = false;
-                freeBlocks.add(tempBlock.blockId);
+                blockAllocator.release(tempBlock);
                 try {
                     savePhysicalBlockToFile(tempBlock);
                 } catch (IOException e) {
@@ -1815,28 +2940,253 @@ public class KVSSD6{
                 }
             }
 
-            // 3. 擦除旧块（迁移完成后释放为空闲块）
-            eraseBlock(oldBlock);
+            migratedBlocks.add(oldBlock);
         }
 
-        // 4. GC后持久化所有变更
+        // 3. GC后持久化变更：临时块已各自落盘，这里只重写页引用被改写的 SSTable 和元数据区块
+        List<Long> remappedMetaPpas = new ArrayList<>();
         try {
-            for (PhysicalBlock block : physicalBlocks.values()) {
-                if (block.allocated) {
-                    savePhysicalBlockToFile(block);
+            for (SSTable sst : gcDirtySsts) {
+                remappedMetaPpas.add(sst.metadataPagePpa);
+                if (lsmLevels.getOrDefault(sst.level, Collections.emptyList()).contains(sst)) {
+                    saveSSTableToFile(sst);
                 }
             }
-            // 重新持久化所有受影响的SSTable
-            for (List<SSTable> ssts : lsmLevels.values()) {
-                for (SSTable sst : ssts) {
-                    saveSSTableToFile(sst);
+            gcDirtySsts.clear();
+            // 元数据页条目已指向新页地址，重写对应元数据区块文件（读路径从中加载页索引）
+            for (long metaBlockId : dirtyMetaBlocks) {
+                PhysicalBlock metaBlock = metaPhysicalBlocks.get(metaBlockId);
+                if (metaBlock != null) {
+                    saveMetaPageToFile(metaBlock);
                 }
             }
+            dirtyMetaBlocks.clear();
             //saveKeyRangeTreeToDisk();
+            // 追加一条空变更推进清单版本序号，使 GC 前写入的检查点失效（不提交进行中压缩的未决变更）；
+            // 迁移后的页须先落盘，旧块随后即被擦除
+            syncPersistedState();
+            manifest.commit(new VersionManifest.Edit(), nextSstId);
         } catch (IOException e) {
             System.err.println("Failed to persist after GC: " + e.getMessage());
         }
-        System.out.println("GC completed: free blocks now " + freeBlocks.size() + " (ratio " + String.format("%.1f", getFreeBlockRatio()) + "%)");
+
+        // 4. 发布新版本并等待旧版本的读取方退出后再擦除旧块：读取方可能仍按旧页地址读取待回收块；
+        //    新版本发布后再次使改写过的元数据页缓存失效，撤回读取方在此期间装入的旧索引
+        installVersion();
+        for (long metaPpa : remappedMetaPpas) {
+            metaPageCache.invalidate(metaPpa);
+        }
+        awaitRetiredVersions();
+        int reclaimed = 0;
+        for (PhysicalBlock oldBlock : migratedBlocks) {
+            eraseBlock(oldBlock);
+            gcBlocksReclaimed.increment();
+            reclaimed++;
+        }
+        System.out.println("GC completed: free blocks now " + blockAllocator.freeCount() + " (ratio " + String.format("%.1f", getFreeBlockRatio()) + "%)");
+        return reclaimed;
+    }
+
+    private void requestCompaction() {
+        synchronized (compactionSignal) {
+            compactionRequested = true;
+            compactionSignal.notifyAll();
+        }
+    }
+
+    private static ExecutorService newScanReadAheadExecutor() {
+        int threads = Math.max(1, Constants.SCAN_READ_AHEAD_THREADS);
+        AtomicInteger threadNo = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "kvssd-scan-readahead-" + threadNo.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 启动后台压缩线程
+     */
+    private void startCompactionScheduler() {
+        compactionThread = new Thread(this::runCompactionScheduler, "kvssd-compaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    /**
+     * 后台压缩调度：被唤醒后反复选出得分最高的层级压缩一次，直到所有层级都不超限；
+     * 每次压缩单独持有 lsmLock，压缩之间刷盘、GC 与读路径可以穿插执行，压缩完成后唤醒被限流的写入
+     */
+    private void runCompactionScheduler() {
+        while (true) {
+            synchronized (compactionSignal) {
+                while (!compactionRequested) {
+                    compactionIdle = true;
+                    compactionSignal.notifyAll(); // 唤醒等待压缩空闲的调用方
+                    try {
+                        compactionSignal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                compactionRequested = false;
+                compactionIdle = false;
+            }
+            while (true) {
+                synchronized (lsmLock) {
+                    if (closed) {
+                        return;
+                    }
+                    int level = pickCompactionLevel();
+                    if (level < 0) {
+                        break;
+                    }
+                    try {
+                        compactLevel(level);
+                    } catch (RuntimeException e) {
+                        System.err.println("Background compaction failed: " + e.getMessage());
+                        break;
+                    } finally {
+                        installVersion();
+                        updateCompactionDebt();
+                    }
+                }
+                synchronized (compactionSignal) {
+                    compactionSignal.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待后台压缩处理完所有已登记的请求
+     */
+    private void awaitCompactionIdle() {
+        synchronized (compactionSignal) {
+            while (compactionRequested || !compactionIdle) {
+                try {
+                    compactionSignal.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean writesStopped() {
+        return l0SstCount >= Constants.L0_STOP_WRITES_TRIGGER
+                || compactionDebt >= Constants.COMPACTION_DEBT_STOP_SSTS;
+    }
+
+    /**
+     * 写入限流：L0 SST 数或压缩债务超过减速阈值时每次写入延迟一小段时间，超过停止阈值时阻塞到压缩追上为止
+     */
+    private void throttleWrites() {
+        if (l0SstCount < Constants.L0_SLOWDOWN_WRITES_TRIGGER
+                && compactionDebt < Constants.COMPACTION_DEBT_SLOWDOWN_SSTS) {
+            return;
+        }
+        try {
+            if (writesStopped()) {
+                long start = System.nanoTime();
+                compactionWriteStops.increment();
+                synchronized (compactionSignal) {
+                    while (writesStopped()) {
+                        compactionRequested = true; // 确保调度器在处理债务（上次压缩失败时也会重试）
+                        compactionSignal.notifyAll();
+                        compactionSignal.wait(100);
+                    }
+                }
+                compactionWriteStopMs.add((System.nanoTime() - start) / 1_000_000);
+            } else {
+                compactionWriteSlowdowns.increment();
+                Thread.sleep(Constants.WRITE_SLOWDOWN_DELAY_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 前台 GC：分配方在空闲块低于硬下限或耗尽时同步回收，记录阻塞次数与时长
+     */
+    private void runForegroundGc() {
+        long start = System.nanoTime();
+        runGarbageCollection();
+        gcForegroundStalls.increment();
+        gcForegroundStallMs.add((System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void requestBackgroundGc() {
+        synchronized (gcSignal) {
+            gcRequested = true;
+            gcSignal.notifyAll();
+        }
+    }
+
+    /**
+     * 启动后台 GC 线程
+     */
+    private void startGarbageCollector() {
+        gcThread = new Thread(this::runGarbageCollector, "kvssd-gc");
+        gcThread.setDaemon(true);
+        gcThread.start();
+    }
+
+    /**
+     * 后台 GC：被唤醒后每轮持有 lsmLock 回收一批块，轮间释放锁并按 I/O 预算休眠（迁移页数 / 每秒页数预算），
+     * 使刷盘与压缩可以穿插执行；空闲块比例回到高水位或没有可回收块时停止。
+     */
+    private void runGarbageCollector() {
+        int minInvalidPages = (int) Math.ceil(Constants.GC_THRESHOLD * Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+        while (true) {
+            synchronized (gcSignal) {
+                while (!gcRequested) {
+                    try {
+                        gcSignal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                gcRequested = false;
+            }
+            while (getFreeBlockRatio() < Constants.GC_HIGH_WATERMARK) {
+                long copiedBefore;
+                long copied;
+                int reclaimed;
+                synchronized (lsmLock) {
+                    if (closed) {
+                        return;
+                    }
+                    if (gcVictimIndex.selectVictims(1, minInvalidPages).isEmpty()) {
+                        break;
+                    }
+                    copiedBefore = gcPagesCopied.sum();
+                    try {
+                        reclaimed = runGarbageCollection();
+                    } catch (RuntimeException e) {
+                        System.err.println("Background GC failed: " + e.getMessage());
+                        break;
+                    }
+                    gcBackgroundRuns.increment();
+                    copied = gcPagesCopied.sum() - copiedBefore;
+                }
+                if (reclaimed == 0) {
+                    break;
+                }
+                if (Constants.GC_IO_BUDGET_PAGES_PER_SEC > 0 && copied > 0) {
+                    try {
+                        Thread.sleep(copied * 1000 / Constants.GC_IO_BUDGET_PAGES_PER_SEC);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
     }
     /**
      * 擦除物理块（改造：擦除后持久化）
@@ -1849,17 +3199,22 @@ public class KVSSD6{
                 page.refCount = 0;
             }
         }
-        block.pages.clear();
-        block.pages = new ArrayList<>(Collections.nCopies((int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE), null));
+        block.clearPages();
+        gcVictimIndex.untrack(block.blockId);
+        pageCache.invalidateBlock(block.blockId, block.pages.size());
         block.level = -1;
+        for (long sstId : block.sstables) {
+            pageRefs.unlinkBlock(sstId, block.blockId);
+        }
         block.sstables.clear();
         block.allocated = false;
 
         // 加入空闲列表
-        freeBlocks.add(block.blockId);
+        blockAllocator.release(block);
 
-        // 持久化擦除后的状态
+        // 擦除设备块并持久化擦除后的状态
         try {
+            backend.eraseBlock(FlashBackend.Zone.DATA, block.blockId);
             savePhysicalBlockToFile(block);
         } catch (IOException e) {
             System.err.println("Failed to persist after erasing block: " + e.getMessage());
@@ -1873,9 +3228,7 @@ public class KVSSD6{
      */
     private void flushMemtableIfNeeded(boolean forceFlush) {
         synchronized (this) {
-            int currentSize = memtable.stream()
-                    .mapToInt(this::calculateKvSize)
-                    .sum();
+            long currentSize = memtable.sizeInBytes();
 
             // 触发条件：要么强制刷盘，要么大小超上限
             if (forceFlush || currentSize >= Constants.MAX_MEMTABLE_SIZE) {
@@ -1884,336 +3237,840 @@ public class KVSSD6{
                     return;
                 }
 
-                System.out.println("触发 Memtable 刷盘（当前大小：" + currentSize + "字节，上限：" + Constants.MAX_MEMTABLE_SIZE + "字节）");
-                // 转为不可变 Memtable 并清空当前 Memtable
-                immutableMemtables.add(new ArrayList<>(memtable));
-                memtable.clear();
+                System.out.println("触发 Memtable 刷盘（当前大小：" + currentSize + "字节，上限：" + Constants.MAX_MEMTABLE_SIZE + "字节）");
+                // 不可变 Memtable 积压达到上限时阻塞写入，等待后台线程消化
+                while (immutableMemtables.size() >= maxImmutableMemtables) {
+                    writeStallCount.increment();
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                // 转为不可变 Memtable 并换上新的 Memtable（前台只承担这一步），新 Memtable 写入新的 WAL 段
+                Memtable next = new Memtable();
+                try {
+                    next.walSegment = wal.rotate();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to rotate WAL: " + e.getMessage());
+                }
+                immutableMemtables.addLast(memtable);
+                memtable = next;
+
+                // 唤醒后台刷盘线程
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 启动后台刷盘线程：按先后顺序把不可变 Memtable 写成 L0 SSTable 并触发压缩检查
+     */
+    private void startFlusher() {
+        flusherThread = new Thread(this::runFlusher, "kvssd-flusher");
+        flusherThread.setDaemon(true);
+        flusherThread.start();
+    }
+
+    private void runFlusher() {
+        while (true) {
+            Memtable immMem;
+            synchronized (this) {
+                while (immutableMemtables.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                immMem = immutableMemtables.peekFirst();
+            }
+            boolean flushed = false;
+            synchronized (lsmLock) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    flushed = writeMemtableToSSTable(immMem, 0) != null;
+                    if (flushed) {
+                        // 清单已提交新 SST 后，该 Memtable 的 WAL 段不再需要
+                        commitVersionEdit();
+                        wal.release(immMem.walSegment);
+                        if (Constants.CHECKPOINT_INTERVAL_FLUSHES > 0
+                                && ++flushesSinceCheckpoint >= Constants.CHECKPOINT_INTERVAL_FLUSHES) {
+                            writeCheckpoint();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Background flush failed: " + e.getMessage());
+                }
+                if (flushed) {
+                    // 先发布含新 L0 SST 的版本再出队，读路径在不可变 Memtable 与 SST 之间不会出现空档；
+                    // 压缩交给后台调度器，在出队前登记请求，等待刷盘完成的调用方随后等待压缩空闲时不会错过本次请求
+                    installVersion();
+                    updateCompactionDebt();
+                    requestCompaction();
+                    immutableMemtables.pollFirst();
+                    synchronized (this) {
+                        notifyAll(); // 唤醒被限流的写入和等待刷盘完成的调用方
+                    }
+                } else {
+                    // SST 未写成（设备空间耗尽或持久化失败，写入已整体撤销）：Memtable 留在队首，读路径仍能读到这些写入，
+                    // WAL 段也不释放；释放 lsmLock 退避后重试，期间 GC 与压缩可以腾出空间，队列满时写入方被限流阻塞
+                    requestBackgroundGc();
+                    requestCompaction();
+                }
+            }
+            if (!flushed) {
+                flushRetryBackoffMs = flushRetryBackoffMs == 0 ? Constants.FLUSH_RETRY_BACKOFF_MS
+                        : Math.min(flushRetryBackoffMs * 2, Constants.FLUSH_RETRY_MAX_BACKOFF_MS);
+                flushRetries.increment();
+                System.err.println("Flush of immutable memtable failed, retrying in " + flushRetryBackoffMs + " ms");
+                try {
+                    Thread.sleep(flushRetryBackoffMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            flushRetryBackoffMs = 0;
+        }
+    }
+
+    /**
+     * 等待所有不可变 Memtable 刷盘完成
+     */
+    private void awaitImmutableFlushed() {
+        synchronized (this) {
+            while (!immutableMemtables.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 【修改】原有 checkMemtableFull 方法，复用 flushMemtableIfNeeded 避免代码重复
+     */
+    private void checkMemtableFull() {
+        // 仅按大小检查刷盘，不强制（调用统一刷盘方法）
+        flushMemtableIfNeeded(false);
+    }
+
+    // ==================== KV 操作接口（原有逻辑保留）====================
+    public void put(String key, String value) {
+        int currentKvSize = Memtable.kvSize(key, value); // 每次写入只编码一次
+        applyWrites(Collections.singletonList(new Pair<>(key, value)), currentKvSize);
+    }
+
+    /**
+     * 批量写入：整批作为一条 WAL 记录（崩溃恢复时要么全部重放、要么全部丢弃），只做一次限流、一次空间检查和一次组提交等待，
+     * 且整批写入同一个 Memtable（不会被刷盘拆到两个 SST 中），与其他写入方不交错。
+     * 并发的 get 可能看到已应用一部分的批次。
+     */
+    public void write(WriteBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        applyWrites(batch.entries(), batch.sizeInBytes());
+    }
+
+    /**
+     * 等价于把 map 中的所有 KV 放入一个 {@link WriteBatch} 后 {@link #write}
+     */
+    public void putAll(Map<String, String> entries) {
+        WriteBatch batch = new WriteBatch();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        write(batch);
+    }
+
+    private void applyWrites(List<Pair<String, String>> entries, long batchKvSize) {
+        throttleWrites();
+        long walTicket;
+        // 先检查 Memtable 剩余空间是否足够容纳本次写入，不足则先刷盘
+        synchronized (this) {
+            long currentMemSize = memtable.sizeInBytes();
+
+            // 若“当前大小 + 新KV大小”超出上限，先触发刷盘清空 Memtable（单批超过上限时整批写入新 Memtable，随后再刷盘）
+            if (currentMemSize + batchKvSize > Constants.MAX_MEMTABLE_SIZE) {
+                System.out.println("Memtable 剩余空间不足，先触发刷盘（预计超出："
+                        + (currentMemSize + batchKvSize - Constants.MAX_MEMTABLE_SIZE) + "字节）");
+                // 手动触发刷盘（复用 checkMemtableFull 的核心逻辑，但不依赖“当前大小 >= 上限”的判断）
+                flushMemtableIfNeeded(true); // 传 true 表示“强制刷盘”
+            }
+
+            // 先记入 WAL（在锁内取序号，保证日志顺序与 Memtable 写入顺序一致），再写入 Memtable（跳表按 key 覆盖旧值）
+            walTicket = wal.append(entries);
+            for (Pair<String, String> entry : entries) {
+                memtable.put(entry.first, entry.second);
+            }
+        }
+        // 锁外等待组提交完成
+        try {
+            wal.awaitDurable(walTicket);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append WAL: " + e.getMessage());
+        }
+        writeCount.add(entries.size());
+        userBytesWritten.add(batchKvSize);
+        checkMemtableFull();
+    }
+
+
+    public String get(String key) {
+
+        readCount.increment();
+        int flashAccess = 0;
+
+        // 1. 查活跃 Memtable
+        String memValue = memtable.get(key);
+        if (memValue != null) {
+            updateReadStats(flashAccess);
+            return memValue;
+        }
+
+        // 2. 查不可变 Memtable（从新到旧）
+        for (Iterator<Memtable> it = immutableMemtables.descendingIterator(); it.hasNext(); ) {
+            Memtable immMem = it.next();
+            String immValue = immMem.get(key);
+            if (immValue != null) {
+                updateReadStats(flashAccess);
+                return immValue;
+            }
+        }
+
+        // 3. 查 LSM 树（SSTable）：持有当前版本的引用即可，不与后台刷盘/压缩/GC 互斥
+        //    （须在查完不可变 Memtable 之后取版本：刷盘先发布含新 SST 的版本，再让 Memtable 出队）
+        Version version = acquireVersion();
+        try {
+            int maxLevel = version.maxLevel();
+            for (int i = 0; i <= maxLevel; i++) {
+                LevelIndex levelIndex = version.level(i);
+                if (levelIndex == null) {
+                    continue; // 跳过空层级
+                }
+
+                // 2. 在层级索引上二分查找键范围覆盖目标键的SSTable（共享重叠页可能使相邻两个SSTable同时覆盖）
+                boolean levelHasPotential = false; // 标记当前层级是否可能包含目标键
+                List<MetaPageIndex> pageIndexes = new ArrayList<>(2);
+                for (SSTable sst : levelIndex.findCandidates(key)) {
+                    // 2.3 目标键在当前SSTable的键范围内：开始查询该SSTable
+                    levelHasPotential = true;
+
+                    // 布隆过滤器判定 key 不存在：无需读取元数据页和数据页
+                    if (sst.bloomFilter != null && !sst.bloomFilter.mightContain(key)) {
+                        filterAvoidedReads.increment();
+                        continue;
+                    }
+
+                    // -------------------------- 核心修改1：优先从缓存取解码后的Meta Page，未命中才读【Meta Block元数据文件】 --------------------------
+                    MetaPageIndex pageIndex = metaPageCache.get(sst.metadataPagePpa);
+                    if (pageIndex != null) {
+                        metaCacheHits.increment();
+                    } else {
+                        metaCacheMisses.increment();
+                        flashAccess++; // 1. 访问SSTable的Meta Page（闪存访问：读取SSTable元数据，仅缓存未命中时计数）
+                        flashReads.increment();
+                        pageIndex = loadMetaPageIndex(sst);
+                        if (pageIndex == null) {
+                            continue;
+                        }
+                        metaPageCache.put(sst.metadataPagePpa, pageIndex);
+                        if (currentVersion != version) {
+                            // 读取期间有新版本发布（GC 可能已改写该元数据页并使缓存失效），撤回可能过期的缓存项
+                            metaPageCache.invalidate(sst.metadataPagePpa);
+                        }
+                    }
+                    pageIndexes.add(pageIndex);
+                }
+                if (pageIndexes.isEmpty()) {
+                    continue;
+                }
+
+                // -------------------------- 核心修改3：在页键范围上二分查找目标KV Page --------------------------
+                // 同层各候选SSTable中覆盖目标键的页按写入序号从新到旧排列，第一个包含目标键的页即为本层最新版本
+                long[] targetKvPagePpas = MetaPageIndex.findPages(pageIndexes, key); // 匹配到的目标KV Page PPA
+
+                // -------------------------- 核心修改4：解析目标KV Page PPA，定位【实际数据Block文件】 --------------------------
+                // 目标KV Page PPA 为打包编码：高位为数据块ID，低位为页编号
+                for (long targetKvPagePpa : targetKvPagePpas) {
+                    // 页读缓存命中：直接在缓存的页镜像上二分查找，无需访问闪存
+                    byte[] cachedPage = pageCache.get(targetKvPagePpa);
+                    if (cachedPage != null) {
+                        pageCacheHits.increment();
+                        String cachedValue = PageFormat.lookup(cachedPage, key);
+                        if (cachedValue != null) {
+                            updateReadStats(flashAccess);
+                            return cachedValue;
+                        }
+                        continue;
+                    }
+                    pageCacheMisses.increment();
+                    // -------------------------- 核心修改5：读取【实际数据页】，提取目标KV对 --------------------------
+                    byte[] page = readPageImage(targetKvPagePpa);
+                    if (page == null) {
+                        continue;
+                    }
+                    flashAccess++; // 2. 访问实际数据页（闪存访问：读取KV Page数据）
+                    flashReads.increment();
+                    String targetValue = lookupInPage(page, targetKvPagePpa, key);
+                    if (targetValue != null) {
+                        updateReadStats(flashAccess);
+                        return targetValue;
+                    }
+                }
+                // 4. 若当前层级已找到潜在匹配的 SSTable，但未找到键（可能被覆盖），仍需检查更低层级
+                // （注：LSM 树中同一键可能在多层级存在，需确认所有层级）
+            }
+        } finally {
+            version.release();
+        }
+        // 4. 未找到
+        updateReadStats(flashAccess);
+        return null;
+    }
+
+    /**
+     * 批量读取：key 排序去重后先查 Memtable，再在同一个版本上逐层解析全部未命中的 key。
+     * 同一批次内每个元数据页、每个数据页至多读取一次（落在同一 SST / 同一页的 key 共享读取结果）。
+     * 返回结果与输入顺序一一对应，不存在的 key 为 null。
+     */
+    public List<String> multiGet(List<String> keys) {
+        readCount.add(keys.size());
+        Map<String, String> values = new HashMap<>();
+        TreeSet<String> pending = new TreeSet<>(); // 尚未解析的 key（升序）
+
+        // 1. 查活跃 Memtable 与不可变 Memtable（从新到旧）
+        for (String key : new TreeSet<>(keys)) {
+            String value = memtable.get(key);
+            for (Iterator<Memtable> it = immutableMemtables.descendingIterator(); value == null && it.hasNext(); ) {
+                value = it.next().get(key);
+            }
+            if (value != null) {
+                values.put(key, value);
+            } else {
+                pending.add(key);
+            }
+        }
+
+        // 2. 逐层解析（与 get 相同：查完不可变 Memtable 之后再取版本）
+        Map<String, Integer> flashAccess = new HashMap<>(); // key → 由该 key 触发的闪存访问次数
+        if (!pending.isEmpty()) {
+            Map<Long, MetaPageIndex> batchMetaPages = new HashMap<>(); // 本批已取得的元数据页（null 表示读取失败）
+            Map<Long, byte[]> batchPages = new HashMap<>(); // 本批已取得的数据页（null 表示读取失败）
+            Version version = acquireVersion();
+            try {
+                int maxLevel = version.maxLevel();
+                for (int i = 0; i <= maxLevel && !pending.isEmpty(); i++) {
+                    LevelIndex levelIndex = version.level(i);
+                    if (levelIndex == null) {
+                        continue; // 跳过空层级
+                    }
+                    for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+                        String key = it.next();
+                        String value = multiGetInLevel(levelIndex, key, version, batchMetaPages, batchPages, flashAccess);
+                        if (value != null) {
+                            values.put(key, value);
+                            it.remove();
+                        }
+                    }
+                }
+            } finally {
+                version.release();
+            }
+        }
+
+        // 3. 按输入顺序返回；重复 key 只有第一次出现计入闪存访问
+        List<String> results = new ArrayList<>(keys.size());
+        Set<String> counted = new HashSet<>();
+        for (String key : keys) {
+            results.add(values.get(key));
+            updateReadStats(counted.add(key) ? flashAccess.getOrDefault(key, 0) : 0);
+        }
+        return results;
+    }
 
-                // 清空持久化的 Memtable 文件（原有逻辑保留）
-                try {
-                    new FileWriter(Constants.MEMTABLE_FILE, false).close();
-                } catch (IOException e) {
-                    System.err.println("Failed to clear persisted memtable: " + e.getMessage());
+    /**
+     * multiGet 在单个层级上查找一个 key：元数据页与数据页优先取本批次已读取的结果，其次查缓存，最后才读闪存
+     */
+    private String multiGetInLevel(LevelIndex levelIndex, String key, Version version,
+                                   Map<Long, MetaPageIndex> batchMetaPages, Map<Long, byte[]> batchPages,
+                                   Map<String, Integer> flashAccess) {
+        List<MetaPageIndex> pageIndexes = new ArrayList<>(2);
+        for (SSTable sst : levelIndex.findCandidates(key)) {
+            if (sst.bloomFilter != null && !sst.bloomFilter.mightContain(key)) {
+                filterAvoidedReads.increment();
+                continue;
+            }
+            MetaPageIndex pageIndex;
+            if (batchMetaPages.containsKey(sst.metadataPagePpa)) {
+                pageIndex = batchMetaPages.get(sst.metadataPagePpa);
+            } else {
+                pageIndex = metaPageCache.get(sst.metadataPagePpa);
+                if (pageIndex != null) {
+                    metaCacheHits.increment();
+                } else {
+                    metaCacheMisses.increment();
+                    flashAccess.merge(key, 1, Integer::sum);
+                    flashReads.increment();
+                    pageIndex = loadMetaPageIndex(sst);
+                    if (pageIndex != null) {
+                        metaPageCache.put(sst.metadataPagePpa, pageIndex);
+                        if (currentVersion != version) {
+                            metaPageCache.invalidate(sst.metadataPagePpa);
+                        }
+                    }
                 }
+                batchMetaPages.put(sst.metadataPagePpa, pageIndex);
+            }
+            if (pageIndex != null) {
+                pageIndexes.add(pageIndex);
+            }
+        }
+        if (pageIndexes.isEmpty()) {
+            return null;
+        }
 
-                // 刷盘所有不可变 Memtable（原有逻辑保留）
-                while (!immutableMemtables.isEmpty()) {
-                    List<Pair<String, String>> immMem = immutableMemtables.poll();
-                    writeMemtableToSSTable(immMem, 0);
-                    checkLevelCompaction(0);
+        // 与 get 相同：同层候选页按写入序号从新到旧查找
+        for (long targetKvPagePpa : MetaPageIndex.findPages(pageIndexes, key)) {
+            byte[] page;
+            if (batchPages.containsKey(targetKvPagePpa)) {
+                page = batchPages.get(targetKvPagePpa);
+            } else {
+                page = pageCache.get(targetKvPagePpa);
+                if (page != null) {
+                    pageCacheHits.increment();
+                } else {
+                    pageCacheMisses.increment();
+                    page = readPageFile(targetKvPagePpa);
+                    if (page != null) {
+                        flashAccess.merge(key, 1, Integer::sum);
+                    }
                 }
+                batchPages.put(targetKvPagePpa, page);
+            }
+            if (page == null) {
+                continue;
+            }
+            String value = PageFormat.lookup(page, key);
+            if (value != null) {
+                return value;
             }
         }
+        return null;
     }
 
     /**
-     * 【修改】原有 checkMemtableFull 方法，复用 flushMemtableIfNeeded 避免代码重复
+     * 范围扫描：返回 [startKey, endKey) 内按 key 升序的 KV（startKey/endKey 为 null 表示不设界，limit <= 0 表示不限条数）。
+     * 在活跃 Memtable、不可变 Memtable 与各层 SST 之间做多路归并，同一 key 取最新版本（与 get 的查找顺序一致）。
+     * KV 页在扫描走到时才读取，并顺序预读同一元数据页中的下一页。
+     * 迭代器持有一个版本的引用，提前停止迭代时须调用 close（推荐 try-with-resources）。
      */
-    private void checkMemtableFull() {
-        // 仅按大小检查刷盘，不强制（调用统一刷盘方法）
-        flushMemtableIfNeeded(false);
+    public ScanIterator scan(String startKey, String endKey, int limit) {
+        scanCount.increment();
+        List<ScanIterator.Source> sources = new ArrayList<>();
+        if (startKey != null && endKey != null && startKey.compareTo(endKey) >= 0) {
+            return new ScanIterator(sources, endKey, limit, returned -> { });
+        }
+        // 1. Memtable（活跃最新，不可变从新到旧）
+        int group = 0;
+        addMemtableScanSource(sources, memtable, startKey, endKey, group++);
+        for (Iterator<Memtable> it = immutableMemtables.descendingIterator(); it.hasNext(); ) {
+            addMemtableScanSource(sources, it.next(), startKey, endKey, group++);
+        }
+        // 2. 各层 SST（与 get 相同：取完不可变 Memtable 之后再取版本）
+        ScanContext context = new ScanContext(acquireVersion(), startKey, endKey);
+        for (Map.Entry<Integer, LevelIndex> level : context.version.levels().entrySet()) {
+            List<SSTable> ssts = level.getValue().overlapping(startKey, endKey);
+            long levelRank = (group + level.getKey()) * SCAN_GROUP_RANK;
+            for (SSTable sst : ssts) {
+                // 同层 SST 共用层级优先级：同一 key 上层内全部 SST 先展开，再按页写入序号决定新旧（与 get 一致）
+                sources.add(new SstScanSource(context, sst, levelRank));
+            }
+        }
+        return new ScanIterator(sources, endKey, limit, returned -> {
+            context.close();
+            scanEntries.add(returned);
+        });
     }
 
-    /**
-     * 【保留/统一】计算单个 KV 对的字节大小（key + value 的字节长度总和）
-     */
-    private int calculateKvSize(Pair<String, String> kv) {
-        return kv.first.getBytes(StandardCharsets.UTF_8).length
-                + kv.second.getBytes(StandardCharsets.UTF_8).length;
+    // 扫描来源优先级编码：来源组（Memtable/层级）<< 56 | (上限 - 页写入序号) << 16 | 页序号（序号相同时页最小键越大越优先）
+    private static final long SCAN_GROUP_RANK = 1L << 56;
+    private static final long SCAN_MAX_SEQ = (1L << 40) - 1;
+    private static final int SCAN_MAX_PAGE_SLOT = 0xFFFF;
+
+    private static long pageScanRank(long seq, int slot) {
+        return ((SCAN_MAX_SEQ - Math.min(seq, SCAN_MAX_SEQ)) << 16) + (SCAN_MAX_PAGE_SLOT - Math.min(slot, SCAN_MAX_PAGE_SLOT));
     }
-    // ==================== KV 操作接口（原有逻辑保留）====================
-    public void put(String key, String value) {
-        int currentKvSize = calculateKvSize(new Pair<>(key, value));
-        // 先检查 Memtable 剩余空间是否足够容纳当前 KV，不足则先刷盘
-        synchronized (memtable) {
-            int currentMemSize = memtable.stream()
-                    .mapToInt(this::calculateKvSize)
-                    .sum();
-
-            // 若“当前大小 + 新KV大小”超出上限，先触发刷盘清空 Memtable
-            if (currentMemSize + currentKvSize > Constants.MAX_MEMTABLE_SIZE) {
-                System.out.println("Memtable 剩余空间不足，先触发刷盘（预计超出："
-                        + (currentMemSize + currentKvSize - Constants.MAX_MEMTABLE_SIZE) + "字节）");
-                // 手动触发刷盘（复用 checkMemtableFull 的核心逻辑，但不依赖“当前大小 >= 上限”的判断）
-                flushMemtableIfNeeded(true); // 传 true 表示“强制刷盘”
-            }
 
-            // 3. 现在空间足够，写入 Memtable（原有逻辑保留，先删旧键避免重复）
-            memtable.removeIf(kv -> kv.first.equals(key));
-            memtable.add(new Pair<>(key, value));
+    private void addMemtableScanSource(List<ScanIterator.Source> sources, Memtable table,
+                                       String startKey, String endKey, int group) {
+        Iterator<Map.Entry<String, String>> entries = table.rangeIterator(startKey, endKey);
+        if (entries.hasNext()) {
+            sources.add(new MemtableScanSource(entries, group * SCAN_GROUP_RANK));
         }
+    }
 
+    /**
+     * 一次扫描的共享状态：所持版本与尚未完成的预读（关闭时先等预读结束再释放版本，避免预读在 GC 擦除块后写入页缓存）
+     */
+    private static final class ScanContext {
+        final Version version;
+        final String startKey;
+        final String endKey;
+        final List<CompletableFuture<byte[]>> readAheads = new ArrayList<>();
+
+        ScanContext(Version version, String startKey, String endKey) {
+            this.version = version;
+            this.startKey = startKey;
+            this.endKey = endKey;
+        }
 
-        synchronized (memtable) {
-            // 先删除旧键（避免重复）
-            memtable.removeIf(kv -> kv.first.equals(key));
-            memtable.add(new Pair<>(key, value));
+        void close() {
+            for (CompletableFuture<byte[]> readAhead : readAheads) {
+                readAhead.exceptionally(e -> null).join();
+            }
+            readAheads.clear();
+            version.release();
         }
-        stats.writeCount++;
-        checkMemtableFull();
-        // 更新写入放大
-        stats.writeAmplification = stats.totalFlashWrites > 0
-                ? (double) stats.totalFlashWrites / (stats.writeCount * (key.getBytes(StandardCharsets.UTF_8).length +
-                value.getBytes(StandardCharsets.UTF_8).length))
-                : 0;
     }
 
+    private static final class MemtableScanSource extends ScanIterator.Source {
+        private final Iterator<Map.Entry<String, String>> entries;
+        private Map.Entry<String, String> current;
 
-    public String get(String key) {
+        MemtableScanSource(Iterator<Map.Entry<String, String>> entries, long rank) {
+            super(rank);
+            this.entries = entries;
+            this.current = entries.next();
+        }
 
-        stats.readCount++;
-        int flashAccess = 0;
+        @Override
+        protected String key() {
+            return current.getKey();
+        }
 
-        // 1. 查活跃 Memtable
-        synchronized (memtable) {
-            for (Pair<String, String> kv : memtable) {
-                if (kv.first.equals(key)) {
-                    updateReadStats(flashAccess);
-                    return kv.second;
-                }
-            }
+        @Override
+        protected String value() {
+            return current.getValue();
         }
 
-        // 2. 查不可变 Memtable
-        for (List<Pair<String, String>> immMem : immutableMemtables) {
-            for (Pair<String, String> kv : immMem) {
-                if (kv.first.equals(key)) {
-                    updateReadStats(flashAccess);
-                    return kv.second;
-                }
-            }
+        @Override
+        protected boolean resolved() {
+            return true;
+        }
+
+        @Override
+        protected List<ScanIterator.Source> resolve() {
+            return Collections.singletonList(this);
         }
 
-        // 3. 查 LSM 树（SSTable）
-        for (int i=0;i<lsmLevels.size();i++) {
-            //  System.out.println("in level:"+i);
-            List<SSTable> levelSsts =lsmLevels.get(i);
-            if (levelSsts == null || levelSsts.isEmpty()) {
-                continue; // 跳过空层级
+        @Override
+        protected boolean advance() {
+            if (!entries.hasNext()) {
+                return false;
             }
+            current = entries.next();
+            return true;
+        }
+    }
 
-            // 2. 遍历当前层级的SSTable（已按键范围起始值升序排列，利用不重叠特性优化）
-            boolean levelHasPotential = false; // 标记当前层级是否可能包含目标键
-            for (SSTable sst : levelSsts) {
-                // System.out.println("level " + i + " 's  sstable!");
-                // 2.1 目标键 < 当前SSTable的起始键：后续SSTable起始键更大，直接跳出该层级
-                if (key.compareTo(sst.keyRange.first) < 0) {
-                    //  System.out.println("skip this level");
-                    break;
+    /**
+     * 未解析的 SST：下界为 max(startKey, SST 最小键)；解析时读取元数据页，展开为范围内各 KV 页的来源
+     */
+    private final class SstScanSource extends ScanIterator.Source {
+        private final ScanContext context;
+        private final SSTable sst;
+        private final String lowerBound;
+
+        SstScanSource(ScanContext context, SSTable sst, long rank) {
+            super(rank);
+            this.context = context;
+            this.sst = sst;
+            this.lowerBound = context.startKey != null && context.startKey.compareTo(sst.keyRange.first) > 0
+                    ? context.startKey : sst.keyRange.first;
+        }
+
+        @Override
+        protected String key() {
+            return lowerBound;
+        }
+
+        @Override
+        protected String value() {
+            throw new IllegalStateException("SST scan source is not resolved");
+        }
+
+        @Override
+        protected boolean resolved() {
+            return false;
+        }
+
+        @Override
+        protected List<ScanIterator.Source> resolve() {
+            MetaPageIndex pageIndex = metaPageCache.get(sst.metadataPagePpa);
+            if (pageIndex != null) {
+                metaCacheHits.increment();
+            } else {
+                metaCacheMisses.increment();
+                flashReads.increment();
+                pageIndex = loadMetaPageIndex(sst);
+                if (pageIndex == null) {
+                    return Collections.emptyList();
                 }
-                // 2.2 目标键 > 当前SSTable的结束键：继续检查下一个SSTable
-                if (key.compareTo(sst.keyRange.second) > 0) {
-                    // System.out.println("skip this sst"+sst.sstId);
-                    continue;
+                metaPageCache.put(sst.metadataPagePpa, pageIndex);
+                if (currentVersion != context.version) {
+                    metaPageCache.invalidate(sst.metadataPagePpa);
                 }
-
-                // System.out.println("真的开始读文件了");
-                // 2.3 目标键在当前SSTable的键范围内：开始查询该SSTable
-                //System.out.println("hit this sst:"+sst.sstId);
-                levelHasPotential = true;
-                flashAccess++; // 1. 访问SSTable的Meta Page（闪存访问：读取SSTable元数据）
-                stats.totalFlashReads++;
-
-                // -------------------------- 核心修改1：解析Meta Page PPA，定位【Meta Block元数据文件】 --------------------------
-                // Meta Page PPA格式："块ID_页偏移"（如"0_0" → 块ID=0，页偏移忽略）
-                //  System.out.println("sst中读出来meta pag ppa ："+sst.metadataPagePpa);
-                //  System.out.println("metappa:"+sst.metadataPagePpa);
-                String[] metaPpaParts = sst.metadataPagePpa.split("_");
-                if (metaPpaParts.length < 1) {
-                    System.err.println("Invalid Meta Page PPA: " + sst.metadataPagePpa + " (SST ID: " + sst.sstId + ")");
-                    continue;
+            }
+            List<ScanIterator.Source> pages = new ArrayList<>();
+            PageScanSource previous = null;
+            for (int i = 0; i < pageIndex.pageCount(); i++) {
+                if (context.endKey != null && pageIndex.minKeyAt(i).compareTo(context.endKey) >= 0) {
+                    break; // 页按最小键升序，之后的页都在范围之外
                 }
-                String metaBlockId = metaPpaParts[0]; // 提取块ID（决定Meta Block元数据文件名）
-                // 构造Meta Block元数据文件路径（如：Constants.META_BLOCK_META_DIR/0.txt）
-                // System.out.println("读出来meta文件 ："+Constants.META_BLOCK_META_DIR + metaBlockId + ".txt");
-                File metaBlockMetaFile = new File(Constants.META_BLOCK_META_DIR + metaBlockId + ".txt");
-                if (!metaBlockMetaFile.exists()) {
-                    System.err.println("Meta Block元数据文件不存在: " + metaBlockMetaFile.getAbsolutePath());
+                if (context.startKey != null && pageIndex.maxKeyAt(i).compareTo(context.startKey) < 0) {
                     continue;
                 }
-                //  System.out.println("read this mate file:"+Constants.META_BLOCK_META_DIR + metaBlockId + ".txt");
-                // -------------------------- 核心修改2：读取【Meta Block元数据文件】，解析KV Page映射关系 --------------------------
-                // 存储：KV Page PPA → 键范围（从Meta Block元数据文件中提取）
-                // KV Page PPA格式："数据块ID_页编号"（如"0_22" → 数据块ID=0，页编号=22）
-                Map<String, Pair<String, String>> kvPageRangeMap = new HashMap<>();
-                try (BufferedReader metaReader = new BufferedReader(
-                        new InputStreamReader(new FileInputStream(metaBlockMetaFile), StandardCharsets.UTF_8))) {
-                    String metaLine;
-                    // 解析文件中"KV Page映射行"（格式：0_22|userXXX||userYYY）
-                    while ((metaLine = metaReader.readLine()) != null) {
-                        metaLine = metaLine.trim();
-                        if (metaLine.isEmpty()) continue;
-
-                        // 仅处理KV Page映射行（特征：包含"|"，且格式为"数据块ID_页编号|起始键||结束键"）
-                        if (metaLine.contains("|")) {
-                            // 按"|"分割：第0段=KV Page PPA，第1段=起始键，第3段=结束键（兼容"||"分隔）
-                            String[] kvPageParts = metaLine.split("\\|");
-                            if (kvPageParts.length < 4) { // 确保格式正确（如：0_22|key1||key2 → 分割后长度=4）
-                                //           System.err.println("无效的KV Page映射格式: " + metaLine + " (文件: " + metaBlockMetaFile.getName() + ")");
-                                continue;
-                            }
-                            String kvPagePpa = kvPageParts[0].trim();       // KV Page PPA（如"0_22"）
-                            String pageKeyStart = kvPageParts[1].trim();    // 页起始键（如"user2435493937695570810"）
-                            String pageKeyEnd = kvPageParts[3].trim();      // 页结束键（如"user2502149056439609611"）
-
-                            // 过滤空键范围（避免无效数据）
-                            if (!pageKeyStart.isEmpty() && !pageKeyEnd.isEmpty()) {
-                                kvPageRangeMap.put(kvPagePpa, new Pair<>(pageKeyStart, pageKeyEnd));
-                            }
-                        }
-                    }
-                    //    System.out.println("meta文件中有"+kvPageRangeMap.size()+"个页");
-                } catch (IOException e) {
-                    System.err.println("读取Meta Block元数据文件失败: " + metaBlockMetaFile.getAbsolutePath() + " - " + e.getMessage());
-                    continue;
+                // 键范围重叠的页以写入序号较大者优先，序号相同时最小键较大者优先（与 findPages 的查找顺序一致）
+                String pageMin = pageIndex.minKeyAt(i).compareTo(sst.keyRange.first) > 0 ? pageIndex.minKeyAt(i) : sst.keyRange.first;
+                String pageMax = pageIndex.maxKeyAt(i).compareTo(sst.keyRange.second) < 0 ? pageIndex.maxKeyAt(i) : sst.keyRange.second;
+                PageScanSource page = new PageScanSource(context, sst.bloomFilter, pageIndex.ppaAt(i),
+                        pageMin, pageMax, rank + pageScanRank(pageIndex.seqAt(i), i));
+                if (previous != null) {
+                    previous.nextInSst = page;
                 }
+                previous = page;
+                pages.add(page);
+            }
+            return pages;
+        }
 
-                // -------------------------- 核心修改3：筛选目标KV Page，定位【实际数据Block文件】 --------------------------
-                List<String> targetKvPagePpas = new ArrayList<>(); // 匹配到的目标KV Page PPA
-                Pair<String, String> targetPageRange = null; // 目标KV Page的键范围
-                for (Map.Entry<String, Pair<String, String>> entry : kvPageRangeMap.entrySet()) {
-                    String kvPagePpa = entry.getKey();
-                    Pair<String, String> pageRange = entry.getValue();
+        @Override
+        protected boolean advance() {
+            throw new IllegalStateException("SST scan source is not resolved");
+        }
+    }
 
-                    if(key.compareTo(pageRange.first)>=0 && key.compareTo(pageRange.second)<=0){
-                        //  System.out.println("physical ppa:"+kvPagePpa+"hit!");
-                        // 3.3 目标键在当前Page键范围内：记录目标Page信息
-                        targetKvPagePpas.add(kvPagePpa);
-                        // targetPageRange = pageRange;
-                        //break;
-                    }
+    /**
+     * KV 页来源：解析时读取页（优先取预读结果与页缓存）、定位到起始 key，并预读同一元数据页中的下一页。
+     * 只返回元数据页登记的页键范围（与 SST 键范围的交集）内、且通过所属 SST 布隆过滤器的 key，
+     * 与 get 经 findCandidates/findPages/布隆过滤器能看到的内容一致
+     */
+    private final class PageScanSource extends ScanIterator.Source {
+        private final ScanContext context;
+        private final BloomFilter bloomFilter;
+        private final long ppa;
+        private final String lowerBound;
+        private final String maxKey;
+        private PageScanSource nextInSst;
+        private CompletableFuture<byte[]> readAhead;
+        private List<Pair<String, String>> entries; // 解析后为页内全部 KV（升序）
+        private int position;
+
+        PageScanSource(ScanContext context, BloomFilter bloomFilter, long ppa, String minKey, String maxKey, long rank) {
+            super(rank);
+            this.context = context;
+            this.bloomFilter = bloomFilter;
+            this.ppa = ppa;
+            this.lowerBound = context.startKey != null && context.startKey.compareTo(minKey) > 0
+                    ? context.startKey : minKey;
+            this.maxKey = maxKey;
+        }
 
-                }
+        @Override
+        protected String key() {
+            return entries == null ? lowerBound : entries.get(position).first;
+        }
 
-                // 无匹配的KV Page：跳过当前SSTable
-                if (targetKvPagePpas == null) {
-                    System.out.println("当前SSTable中无包含目标键的KV Page");
-                    continue;
-                }
+        @Override
+        protected String value() {
+            return entries.get(position).second;
+        }
 
-                // -------------------------- 核心修改4：解析目标KV Page PPA，定位【实际数据Block文件】 --------------------------
-                // 目标KV Page PPA格式："数据块ID_页编号"（如"0_22" → 数据块ID=0，页编号=22）
-                for(String targetKvPagePpa:targetKvPagePpas){
-                    String[] dataPpaParts = targetKvPagePpa.split("_");
-                    if (dataPpaParts.length < 2) {
-                        // System.err.println("无效的KV Page PPA: " + targetKvPagePpa + " (SST ID: " + sst.sstId + ")");
-                        // continue;
-                    }
-                    String dataBlockId = dataPpaParts[0]; // 数据块ID（决定实际数据文件名）
-                    int targetPageNo = Integer.parseInt(dataPpaParts[1]); // 目标页编号（如22）
-                    // 目标页文件路径：块目录/页编号.txt（如 ./block_meta/0/22.txt）
-                    File targetPageFile = new File(Constants.BLOCK_META_DIR + dataBlockId + "/" + targetPageNo + ".txt");
-                    if (!targetPageFile.exists()) {
-                        System.err.println("目标页文件不存在: " + targetPageFile.getAbsolutePath());
-                        continue;
-                    }
-                    // -------------------------- 核心修改5：读取【实际数据Block文件】，提取目标KV对 --------------------------
-                    flashAccess++; // 2. 访问实际数据Block文件（闪存访问：读取KV Page数据）
-                    stats.totalFlashReads++;
-                    // 调用工具方法读取目标页的KV对（需确保readKvFromDataBlock方法适配新的文件格式）
-                    String targetValue = readKvFromPageFile(targetPageFile, key);
-                    if (targetValue != null) {
-                        updateReadStats(flashAccess);
-                        return targetValue;
-                    }
+        @Override
+        protected boolean resolved() {
+            return entries != null;
+        }
+
+        @Override
+        protected List<ScanIterator.Source> resolve() {
+            byte[] page = readAhead != null ? readAhead.exceptionally(e -> null).join() : null;
+            if (page == null) {
+                page = pageCache.get(ppa);
+                if (page != null) {
+                    pageCacheHits.increment();
+                } else {
+                    pageCacheMisses.increment();
+                    page = readPageFile(ppa);
+                }
+            }
+            if (nextInSst != null && nextInSst.readAhead == null && pageCache.get(nextInSst.ppa) == null) {
+                long nextPpa = nextInSst.ppa;
+                nextInSst.readAhead = CompletableFuture.supplyAsync(() -> readPageFile(nextPpa), scanReadAheadExecutor);
+                context.readAheads.add(nextInSst.readAhead);
+                scanReadAheads.increment();
+            }
+            if (page == null) {
+                return Collections.emptyList();
+            }
+            entries = PageFormat.decode(page);
+            // 定位到第一个 >= 下界（startKey 与页最小键中较大者）的 KV
+            int lo = 0;
+            int hi = entries.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (entries.get(mid).first.compareTo(lowerBound) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
                 }
-                break;
             }
-            // 4. 若当前层级已找到潜在匹配的 SSTable，但未找到键（可能被覆盖），仍需检查更低层级
-            // （注：LSM 树中同一键可能在多层级存在，需确认所有层级）
+            position = lo;
+            return skipToVisible() ? Collections.singletonList(this) : Collections.emptyList();
+        }
+
+        @Override
+        protected boolean advance() {
+            position++;
+            return skipToVisible();
+        }
+
+        private boolean skipToVisible() {
+            while (position < entries.size() && bloomFilter != null
+                    && !bloomFilter.mightContain(entries.get(position).first)) {
+                position++;
+            }
+            return position < entries.size() && entries.get(position).first.compareTo(maxKey) <= 0;
         }
-        // 4. 未找到
-        updateReadStats(flashAccess);
-        return null;
     }
+
     /**
-     * 从单独的页文件（如0.txt）中读取目标键对应的value
+     * 读取一个数据页文件并放入页缓存（multiGet 与 scan 使用）；页格式在此处校验，失败返回 null
      */
-    private String readKvFromPageFile(File pageFile, String targetKey) {
-        boolean parsingKvPairs = false;
-        // try-with-resources 语法仍保留（自动关闭流，避免资源泄漏）
-        try (BufferedReader pageReader = new BufferedReader(
-                new InputStreamReader(new FileInputStream(pageFile), StandardCharsets.UTF_8))) {
+    private byte[] readPageFile(long ppa) {
+        byte[] page = readPageImage(ppa);
+        if (page == null) {
+            return null;
+        }
+        flashReads.increment();
+        try {
+            PageFormat.verify(page);
+            pageCache.put(ppa, page);
+            return page;
+        } catch (RuntimeException e) {
+            System.err.printf("处理页[%s]时发生未知错误，异常信息：%s%n", Ppa.toString(ppa), e.getMessage());
+        }
+        return null;
+    }
 
-            String line;
-            while ((line = pageReader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
+    /**
+     * 从设备后端读取数据页镜像；页不存在或读取失败时打印原因并返回 null
+     */
+    private byte[] readPageImage(long ppa) {
+        try {
+            byte[] page = backend.readPage(FlashBackend.Zone.DATA, ppa);
+            if (page == null) {
+                System.err.println("目标页不存在: " + Ppa.toString(ppa));
+            }
+            return page;
+        } catch (IOException e) {
+            System.err.printf("读取页[%s]失败，异常信息：%s%n", Ppa.toString(ppa), e.getMessage());
+            return null;
+        }
+    }
+    /**
+     * 读取并解析 SST 的【Meta Block元数据文件】中该 SST 元数据页的条目，构建按页键范围排序的索引
+     * （同一元数据区块中其他元数据页的条目属于其他 SST，不得混入）
+     */
+    private MetaPageIndex loadMetaPageIndex(SSTable sst) {
+        List<MetaPageIndex.Entry> entries = readMetaPageEntries(sst);
+        return entries == null ? null : new MetaPageIndex(entries);
+    }
 
-                // 标记：开始解析KV对
-                if (line.equals("KV_PAIRS_START")) {
-                    parsingKvPairs = true;
+    /**
+     * 按元数据区块镜像中的顺序读出 SST 元数据页的条目；镜像不存在或读取失败时返回 null
+     */
+    private List<MetaPageIndex.Entry> readMetaPageEntries(SSTable sst) {
+        if (sst.metadataPagePpa == Ppa.NULL) {
+            System.err.println("Invalid Meta Page PPA (SST ID: " + sst.sstId + ")");
+            return null;
+        }
+        long metaBlockId = Ppa.blockId(sst.metadataPagePpa); // 提取块ID（决定Meta Block元数据文件名）
+        // 镜像中KV Page PPA为明文"数据块ID_页编号"（如"0_22"），解析为打包编码
+        Map<Long, MetaPageIndex.Entry> kvPageRangeMap = new LinkedHashMap<>();
+        try {
+            byte[] image = backend.readMetaBlock(metaBlockId);
+            if (image == null) {
+                System.err.println("Meta Block元数据镜像不存在: " + metaBlockId);
+                return null;
+            }
+            BufferedReader metaReader = new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(image), StandardCharsets.UTF_8));
+            String metaLine;
+            boolean inOwnPage = false; // 当前行属于本 SST 的元数据页
+            // 解析文件中"KV Page映射行"（格式：0_22|userXXX||userYYY||写入序号，旧格式没有序号段）
+            while ((metaLine = metaReader.readLine()) != null) {
+                metaLine = metaLine.trim();
+                if (metaLine.isEmpty()) continue;
+
+                if (metaLine.startsWith("PPA=")) {
+                    inOwnPage = Ppa.parse(metaLine.substring("PPA=".length())) == sst.metadataPagePpa;
                     continue;
                 }
-                // 标记：结束解析KV对（跳出循环，避免无效读取）
-                if (line.equals("KV_PAIRS_END")) {
-                    parsingKvPairs = false;
-                    break;
-                }
-
-                // 仅在KV对解析阶段处理数据
-                if (parsingKvPairs) {
-                    // 1. 分割键值对（限制分割1次，避免value含"->"导致错误）
-                    String[] kvParts = line.split("->", 2);
-                    if (kvParts.length != 2) {
-                        System.err.printf("页文件[%s]存在无效KV格式：%s%n", pageFile.getName(), line);
-                        continue; // 跳过无效行，继续解析后续KV
+                // 仅处理KV Page映射行（特征：包含"|"，且格式为"数据块ID_页编号|起始键||结束键"）
+                if (inOwnPage && metaLine.contains("|")) {
+                    // 按"|"分割：第0段=KV Page PPA，第1段=起始键，第3段=结束键，第5段=写入序号（兼容"||"分隔）
+                    String[] kvPageParts = metaLine.split("\\|");
+                    if (kvPageParts.length < 4) { // 确保格式正确（如：0_22|key1||key2 → 分割后长度=4）
+                        continue;
                     }
-
-                    // 2. 还原保存时转义的分隔符（与 savePhysicalBlockToFile 逻辑对应）
-                    String key = kvParts[0].trim().replace("-#->", "->");
-                    String value = kvParts[1].trim().replace("-#->", "->");
-
-                    // 3. 匹配目标键，找到后直接返回（提前终止，减少无效遍历）
-                    if (key.equals(targetKey)) {
-                        return value;
+                    long kvPagePpa = Ppa.parse(kvPageParts[0]);     // KV Page PPA（明文如"0_22"）
+                    String pageKeyStart = kvPageParts[1].trim();    // 页起始键
+                    String pageKeyEnd = kvPageParts[3].trim();      // 页结束键
+                    long pageSeq = kvPageParts.length >= 6 ? MetaPageIndex.parseSeq(kvPageParts[5]) : 0;
+
+                    // 过滤空键范围（避免无效数据）
+                    if (!pageKeyStart.isEmpty() && !pageKeyEnd.isEmpty()) {
+                        kvPageRangeMap.put(kvPagePpa, new MetaPageIndex.Entry(kvPagePpa, pageKeyStart, pageKeyEnd, pageSeq));
                     }
                 }
             }
-
-        } catch (FileNotFoundException e) {
-            // 捕获“文件不存在”异常（更具体的异常类型，便于定位问题）
-            System.err.printf("目标页文件不存在：%s，异常信息：%s%n", pageFile.getAbsolutePath(), e.getMessage());
         } catch (IOException e) {
-            // 捕获所有其他IO异常（如读取出错、流关闭失败等）
-            System.err.printf("读取页文件[%s]失败，异常信息：%s%n", pageFile.getAbsolutePath(), e.getMessage());
-        } catch (Exception e) {
-            // 捕获非IO异常（如编码错误、数据格式异常等，增强鲁棒性）
-            System.err.printf("处理页文件[%s]时发生未知错误，异常信息：%s%n", pageFile.getAbsolutePath(), e.getMessage());
+            System.err.println("读取Meta Block元数据镜像失败: " + metaBlockId + " - " + e.getMessage());
+            return null;
         }
+        return new ArrayList<>(kvPageRangeMap.values());
+    }
 
-        // 以下情况均返回null：
-        // 1. 正常遍历完所有KV对，未找到目标键
-        // 2. 发生任何异常（文件不存在、读取出错等）
+    /**
+     * 在整页镜像上二分查找目标键对应的value，并把页镜像放入页读缓存
+     */
+    private String lookupInPage(byte[] page, long ppa, String targetKey) {
+        try {
+            String value = PageFormat.lookup(page, targetKey);
+            pageCache.put(ppa, page);
+            return value;
+        } catch (RuntimeException e) {
+            // 页格式异常（魔数/版本不符等）
+            System.err.printf("处理页[%s]时发生未知错误，异常信息：%s%n", Ppa.toString(ppa), e.getMessage());
+        }
+        // 未找到目标键或发生异常均返回null
         return null;
     }
+
     /**
      * 更新读取统计
      */
     private void updateReadStats(int flashAccess) {
-        if (flashAccess == 0) {
-            stats.read0Flash++;
-        } else if (flashAccess == 1) {
-            stats.read1Flash++;
-        } else if (flashAccess == 2) {
-            stats.read2Flash++;
-        } else if (flashAccess == 3) {
-            stats.read3Flash++;
-        } else if (flashAccess == 4) {
-            stats.read4Flash++;
-        } else if (flashAccess == 5) {
-            stats.read5Flash++;
-        } else if (flashAccess == 6) {
-            stats.read6Flash++;
-        } else if (flashAccess == 7) {
-            stats.read7Flash++;
-        } else if (flashAccess == 8) {
-            stats.read8Flash++;
-        }  else {
-            stats.readMoreFlash++;
-        }
+        readFlashHistogram[Math.min(flashAccess, readFlashHistogram.length - 1)].increment();
     }
 
     /**
@@ -2221,23 +4078,62 @@ public class KVSSD6{
      */
     public Stats getStats() {
         Stats copy = new Stats();
-        copy.writeCount = stats.writeCount;
-        copy.readCount = stats.readCount;
-        copy.gcCount = stats.gcCount;
-        copy.compactionCount = stats.compactionCount;
-        copy.writeAmplification = stats.writeAmplification;
-        copy.totalFlashWrites = stats.totalFlashWrites;
-        copy.totalFlashReads = stats.totalFlashReads;
-        copy.read0Flash = stats.read0Flash;
-        copy.read1Flash = stats.read1Flash;
-        copy.read2Flash = stats.read2Flash;
-        copy.read3Flash = stats.read3Flash;
-        copy.read4Flash = stats.read4Flash;
-        copy.read5Flash = stats.read5Flash;
-        copy.read6Flash = stats.read6Flash;
-        copy.read7Flash = stats.read7Flash;
-        copy.read8Flash = stats.read8Flash;
-        copy.readMoreFlash = stats.readMoreFlash;
+        copy.writeCount = writeCount.sum();
+        copy.readCount = readCount.sum();
+        copy.gcCount = gcCount.sum();
+        copy.compactionCount = compactionCount.sum();
+        copy.compactionTimeMs = compactionTimeMs.sum();
+        copy.compactionPagesDropped = compactionPagesDropped.sum();
+        copy.totalFlashWrites = totalFlashWrites.sum();
+        long userBytes = userBytesWritten.sum();
+        copy.writeAmplification = userBytes == 0 ? 0.0 : (double) copy.totalFlashWrites / userBytes;
+        copy.totalFlashReads = flashReads.sum();
+        copy.read0Flash = readFlashHistogram[0].intValue();
+        copy.read1Flash = readFlashHistogram[1].intValue();
+        copy.read2Flash = readFlashHistogram[2].intValue();
+        copy.read3Flash = readFlashHistogram[3].intValue();
+        copy.read4Flash = readFlashHistogram[4].intValue();
+        copy.read5Flash = readFlashHistogram[5].intValue();
+        copy.read6Flash = readFlashHistogram[6].intValue();
+        copy.read7Flash = readFlashHistogram[7].intValue();
+        copy.read8Flash = readFlashHistogram[8].intValue();
+        copy.readMoreFlash = readFlashHistogram[9].intValue();
+        copy.filterAvoidedReads = filterAvoidedReads.sum();
+        copy.scanCount = scanCount.sum();
+        copy.scanEntries = scanEntries.sum();
+        copy.scanReadAheads = scanReadAheads.sum();
+        copy.writeStallCount = writeStallCount.sum();
+        copy.compactionWriteSlowdowns = compactionWriteSlowdowns.sum();
+        copy.compactionWriteStops = compactionWriteStops.sum();
+        copy.compactionWriteStopMs = compactionWriteStopMs.sum();
+        copy.flushRetries = flushRetries.sum();
+        copy.metaCacheHits = metaCacheHits.sum();
+        copy.metaCacheMisses = metaCacheMisses.sum();
+        copy.pageCacheHits = pageCacheHits.sum();
+        copy.pageCacheMisses = pageCacheMisses.sum();
+        copy.gcPagesCopied = gcPagesCopied.sum();
+        copy.gcBackgroundRuns = gcBackgroundRuns.sum();
+        copy.gcForegroundStalls = gcForegroundStalls.sum();
+        copy.gcForegroundStallMs = gcForegroundStallMs.sum();
+        copy.gcBlocksReclaimed = gcBlocksReclaimed.sum();
+        copy.gcCopiedPerReclaimedBlock = copy.gcBlocksReclaimed == 0 ? 0.0
+                : (double) copy.gcPagesCopied / copy.gcBlocksReclaimed;
+        copy.openTimeMs = stats.openTimeMs;
+        copy.openedFromCheckpoint = stats.openedFromCheckpoint;
+        FlashBackend.Counters device = backend.counters();
+        copy.flashBackend = backend.kind().name();
+        copy.devicePageReads = device.pageReads();
+        copy.devicePagePrograms = device.pagePrograms();
+        copy.deviceBytesProgrammed = device.bytesProgrammed();
+        copy.deviceBlockErases = device.blockErases();
+        copy.deviceMetaSyncs = device.metaSyncs();
+        copy.deviceMetaBlockReads = device.metaBlockReads();
+        copy.deviceMetaBlockWrites = device.metaBlockWrites();
+        copy.deviceSyncs = device.syncs();
+        copy.walRecords = wal.records();
+        copy.walGroupCommits = wal.groupCommits();
+        long pageCacheLookups = copy.pageCacheHits + copy.pageCacheMisses;
+        copy.pageCacheHitRatio = pageCacheLookups == 0 ? 0.0 : (double) copy.pageCacheHits / pageCacheLookups;
         return copy;
     }
 
@@ -2246,50 +4142,102 @@ public class KVSSD6{
      */
     public void init() {
     }
-    private void saveMemtableToDisk() {
-        File dir = new File(Constants.PERSIST_DIR);
-        dir.mkdirs();
-        File file = new File(Constants.PERSIST_DIR + "memtable.data");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            for (Pair<String, String> kv : memtable) {
-                writer.write(kv.first + "|" + kv.second);
-                writer.newLine();
-            }
-            System.out.println("Memtable persisted to " + file.getAbsolutePath());
+    /**
+     * 清理（核心：强制刷盘所有内存数据）
+     */
+    public void cleanup() {
+        drainAndPersist(false);
+    }
+
+    /**
+     * 关闭：同 cleanup 等待积压的刷盘与压缩并落盘最终状态，再停止并等待刷盘、压缩、GC 线程，
+     * 关闭压缩与预读线程池、WAL、清单和设备；活跃 Memtable 留在 WAL 中，下次打开时重放。
+     * 关闭后只能调用 getStats，重复调用无副作用
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        drainAndPersist(true);
+        synchronized (lsmLock) {
+            closed = true; // 落盘失败时同样须阻止后台线程继续访问设备
+        }
+        // 后台线程此时只可能在等待信号、退避休眠或等待 lsmLock，中断不会打断设备 I/O
+        stopThread(flusherThread);
+        stopThread(compactionThread);
+        stopThread(gcThread);
+        shutdownExecutor(compactionPool);
+        shutdownExecutor(scanReadAheadExecutor);
+        try {
+            wal.close();
         } catch (IOException e) {
-            throw new RuntimeException("Failed to save memtable: " + e.getMessage());
+            System.err.println("Failed to close WAL: " + e.getMessage());
+        }
+        try {
+            manifest.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close manifest: " + e.getMessage());
+        }
+        try {
+            backend.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close flash backend: " + e.getMessage());
+        }
+    }
+
+    private static void stopThread(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * 清理（核心：强制刷盘所有内存数据）
+     * 不再接收新任务，等待已提交的任务（预读、子压缩）结束；超时后中断
      */
-    public void cleanup() {
+    private static void shutdownExecutor(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
         try {
-            // === 1. 先保存活跃 memtable 到单独的文件 ===
-            synchronized (memtable) {
-                if (!memtable.isEmpty()) {
-                    saveMemtableToDisk();
-                    // 转换为 immutable，准备刷到 SSTable
-                    //immutableMemtables.add(new ArrayList<>(memtable));
-                    memtable.clear();
-                }
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Executor did not terminate in 30 s, interrupting");
+                executor.shutdownNow();
             }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            // === 2. 刷 immutable memtables 成 SSTable ===
-            while (!immutableMemtables.isEmpty()) {
-                List<Pair<String, String>> immMem = immutableMemtables.poll();
-                writeMemtableToSSTable(immMem, 0);   // 正常 LSM Tree 写入
-                checkLevelCompaction(0);             // 层级合并
-            }
+    private void drainAndPersist(boolean closing) {
+        try {
+            // === 1. 活跃 memtable 保留在 WAL 中 ===
+            // 活跃 Memtable 的内容已在 WAL 中，确保落盘即可（下次启动时重放）
+            wal.sync();
+
+            // === 2. 等待后台线程把 immutable memtables 刷成 SSTable，并等待由此触发的压缩完成 ===
+            awaitImmutableFlushed();
+            awaitCompactionIdle();
 
             // === 3. 持久化最终状态（键范围树、物理块） ===
             // saveKeyRangeTreeToDisk();
-            saveLsmLevelsToDisk();
-            for (PhysicalBlock block : physicalBlocks.values()) {
-                savePhysicalBlockToFile(block);
+            synchronized (lsmLock) {
+                // 关闭时在同一次持锁内置位：检查点写出后后台线程不再改动设备状态
+                closed = closed || closing;
+                commitVersionEdit();
+                for (PhysicalBlock block : physicalBlocks.values()) {
+                    savePhysicalBlockToFile(block);
+                }
+                writeCheckpoint();
             }
-            saveLsmLevelsToDisk();
 
             System.out.println("KVSSD cleanup completed: memtable + SSTables persisted");
         } catch (Exception e) {
@@ -2303,7 +4251,15 @@ public class KVSSD6{
         public long writeCount; // 应用写入次数
         public long readCount; // 应用读取次数
         public long gcCount; // GC 次数
+        public long gcPagesCopied; // GC 迁移的有效页数
+        public long gcBlocksReclaimed; // GC 擦除回收的块数
+        public double gcCopiedPerReclaimedBlock; // 每回收一个块平均迁移的有效页数（比较受害块策略）
+        public long gcBackgroundRuns; // 后台 GC 执行轮数
+        public long gcForegroundStalls; // 前台操作因 GC 阻塞的次数（空闲块低于硬下限或耗尽）
+        public long gcForegroundStallMs; // 前台操作因 GC 阻塞的累计时长，毫秒
         public long compactionCount; // 压缩次数
+        public long compactionTimeMs; // 多 SST 合并压缩（newRunCompaction）累计耗时，毫秒
+        public long compactionPagesDropped; // 压缩时因 key 全部被更新版本覆盖而丢弃的旧 KV 页数
         public double writeAmplification;// 写入放大
         public long totalFlashWrites; // 闪存总写入字节
         public long totalFlashReads; // 闪存总读取次数
@@ -2317,13 +4273,48 @@ public class KVSSD6{
         public int read7Flash; // 7次闪存访问的读取
         public int read8Flash; // 8次闪存访问的读取
         public int readMoreFlash; // 8次以上闪存访问的读取
+        public long filterAvoidedReads; // 布隆过滤器排除、因而未访问闪存的 SSTable 查询次数
+        public long scanCount; // 范围扫描次数
+        public long scanEntries; // 范围扫描返回的 KV 条数
+        public long scanReadAheads; // 范围扫描顺序预读的 KV 页数
+        public long writeStallCount; // 因不可变 Memtable 积压而阻塞的写入次数
+        public long compactionWriteSlowdowns; // 因 L0/压缩债务超过减速阈值而延迟的写入次数
+        public long compactionWriteStops; // 因 L0/压缩债务超过停止阈值而阻塞的写入次数
+        public long compactionWriteStopMs; // 因压缩债务阻塞写入的累计时长，毫秒
+        public long flushRetries; // 刷盘失败（空间耗尽/持久化失败）后退避重试的次数
+        public long metaCacheHits; // 元数据页缓存命中次数
+        public long metaCacheMisses; // 元数据页缓存未命中次数（需读闪存）
+        public long pageCacheHits; // KV 页读缓存命中次数
+        public long pageCacheMisses; // KV 页读缓存未命中次数（需读闪存）
+        public double pageCacheHitRatio; // KV 页读缓存命中率
+        public long walRecords; // WAL 追加的记录数
+        public long walGroupCommits; // WAL 组提交（一次写入多条记录）次数
+        public long openTimeMs; // 打开（恢复元数据）耗时，毫秒
+        public boolean openedFromCheckpoint; // 是否从检查点恢复
+        public String flashBackend; // 闪存设备后端（FILE / MEMORY）
+        public long devicePageReads; // 后端数据页读取次数
+        public long devicePagePrograms; // 后端数据页编程次数
+        public long deviceBytesProgrammed; // 后端数据页编程字节数（页镜像编码后）
+        public long deviceBlockErases; // 后端块擦除次数
+        public long deviceMetaSyncs; // 后端块元数据同步次数
+        public long deviceMetaBlockReads; // 后端元数据区块镜像读取次数
+        public long deviceMetaBlockWrites; // 后端元数据区块镜像写入次数
+        public long deviceSyncs; // 后端强制落盘（fsync）次数
 
         public Stats() {
             // 默认初始化所有字段为 0
             this.writeCount = 0;
             this.readCount = 0;
             this.gcCount = 0;
+            this.gcPagesCopied = 0;
+            this.gcBlocksReclaimed = 0;
+            this.gcCopiedPerReclaimedBlock = 0.0;
+            this.gcBackgroundRuns = 0;
+            this.gcForegroundStalls = 0;
+            this.gcForegroundStallMs = 0;
             this.compactionCount = 0;
+            this.compactionTimeMs = 0;
+            this.compactionPagesDropped = 0;
             this.writeAmplification = 0.0;
             this.totalFlashWrites = 0;
             this.totalFlashReads = 0;
@@ -2337,6 +4328,25 @@ public class KVSSD6{
             this.read7Flash = 0;
             this.read8Flash = 0;
             this.readMoreFlash = 0;
+            this.filterAvoidedReads = 0;
+            this.scanCount = 0;
+            this.scanEntries = 0;
+            this.scanReadAheads = 0;
+            this.writeStallCount = 0;
+            this.compactionWriteSlowdowns = 0;
+            this.compactionWriteStops = 0;
+            this.compactionWriteStopMs = 0;
+            this.flushRetries = 0;
+            this.metaCacheHits = 0;
+            this.metaCacheMisses = 0;
+            this.pageCacheHits = 0;
+            this.pageCacheMisses = 0;
+            this.pageCacheHitRatio = 0.0;
+            this.walRecords = 0;
+            this.walGroupCommits = 0;
+            this.openTimeMs = 0;
+            this.openedFromCheckpoint = false;
+            this.flashBackend = "";
         }
     }
 
@@ -2344,18 +4354,22 @@ public class KVSSD6{
      * 物理页类（含持久化所需的元数据）
      */
     public static class PhysicalPage {
-        public String ppa;                  // 物理页地址
+        public long ppa;                    // 物理页地址（Ppa 打包编码）
         public boolean valid;               // 有效性
         public List<Pair<String, String>> data; // KV 数据
+        public List<Pair<Long, String>> metaEntries; // 元数据页条目：KV 页 PPA → 键范围 "min|max"
         public Pair<String, String> keyRange; // 键范围
         public int refCount;                // 引用计数
+        public boolean dirty;               // 页内容尚未落盘（新建、迁移或被修改）
 
-        public PhysicalPage(String ppa) {
+        public PhysicalPage(long ppa) {
             this.ppa = ppa;
             this.valid = true;
             this.data = new ArrayList<>();
+            this.metaEntries = new ArrayList<>();
             this.keyRange = new Pair<>("", "");
             this.refCount = 1;
+            this.dirty = true;
         }
 
         /**
@@ -2386,13 +4400,54 @@ public class KVSSD6{
         public Set<Long> sstables;         // 关联的 SST ID
         public boolean allocated;          // 分配状态
 
+        // 上次落盘时的快照（增量持久化用）：块头 + 每页元数据记录
+        private int persistedLevel = Integer.MIN_VALUE; // MIN_VALUE=块头从未落盘
+        private boolean persistedAllocated;
+        private Set<Long> persistedSstables = new HashSet<>();
+        private final byte[] persistedPageState;
+        private final int[] persistedRefCount;
+        // 已占用页位图与计数（写满判断与找空闲页无需遍历 pages）
+        private final long[] occupiedPages;
+        private int usedPages;
+
         public PhysicalBlock(long blockId) {
             this.blockId = blockId;
             this.level = -1;
             this.sstables = new HashSet<>();
             this.allocated = false;
             // 初始化页列表（4MB / 32KB = 128 个页）
-            this.pages = new ArrayList<>(Collections.nCopies((int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE), null));
+            int pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+            this.pages = new ArrayList<>(Collections.nCopies(pagesPerBlock, null));
+            this.persistedPageState = new byte[pagesPerBlock]; // 初始全为 PAGE_STATE_EMPTY
+            this.persistedRefCount = new int[pagesPerBlock];
+            this.occupiedPages = new long[(pagesPerBlock + 63) >>> 6];
+        }
+
+        /**
+         * 块头（层级/分配状态/关联SST）是否与上次落盘不同
+         */
+        public boolean isHeaderDirty() {
+            return persistedLevel != level
+                    || persistedAllocated != allocated
+                    || !persistedSstables.equals(sstables);
+        }
+
+        public void markHeaderPersisted() {
+            persistedLevel = level;
+            persistedAllocated = allocated;
+            persistedSstables = new HashSet<>(sstables);
+        }
+
+        /**
+         * 页元数据（状态/引用计数）是否与上次落盘不同
+         */
+        public boolean isPageMetaDirty(int pageNo, byte state, int refCount) {
+            return persistedPageState[pageNo] != state || persistedRefCount[pageNo] != refCount;
+        }
+
+        public void markPageMetaPersisted(int pageNo, byte state, int refCount) {
+            persistedPageState[pageNo] = state;
+            persistedRefCount[pageNo] = refCount;
         }
 
         /**
@@ -2410,7 +4465,38 @@ public class KVSSD6{
          * 判断块是否已满
          */
         public boolean isFull() {
-            return pages.stream().filter(Objects::nonNull).count() >= pages.size();
+            return usedPages >= pages.size();
+        }
+
+        public int usedPageCount() {
+            return usedPages;
+        }
+
+        /**
+         * 已写入但无效的页数（遍历页，仅在登记到 GC 受害块索引时调用）
+         */
+        public int invalidPageCount() {
+            int count = 0;
+            for (PhysicalPage page : pages) {
+                if (page != null && !page.valid) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * 第一个空闲页号，块已满时返回 -1
+         */
+        public int firstFreePage() {
+            for (int word = 0; word < occupiedPages.length; word++) {
+                long free = ~occupiedPages[word];
+                if (free != 0) {
+                    int pageNo = (word << 6) + Long.numberOfTrailingZeros(free);
+                    return pageNo < pages.size() ? pageNo : -1;
+                }
+            }
+            return -1;
         }
 
         /**
@@ -2420,9 +4506,33 @@ public class KVSSD6{
             if (pageNo < 0 || pageNo >= pages.size() || pages.get(pageNo) != null) {
                 return false;
             }
-            pages.set(pageNo, page);
+            setPage(pageNo, page);
             return true;
         }
+
+        /**
+         * 设置页槽位（null 表示清空），同步维护占用位图
+         */
+        public void setPage(int pageNo, PhysicalPage page) {
+            boolean wasOccupied = (occupiedPages[pageNo >>> 6] & (1L << pageNo)) != 0;
+            pages.set(pageNo, page);
+            if (page != null && !wasOccupied) {
+                occupiedPages[pageNo >>> 6] |= 1L << pageNo;
+                usedPages++;
+            } else if (page == null && wasOccupied) {
+                occupiedPages[pageNo >>> 6] &= ~(1L << pageNo);
+                usedPages--;
+            }
+        }
+
+        /**
+         * 擦除：清空全部页槽位
+         */
+        public void clearPages() {
+            pages = new ArrayList<>(Collections.nCopies(pages.size(), null));
+            Arrays.fill(occupiedPages, 0L);
+            usedPages = 0;
+        }
     }
 
     /**
@@ -2436,7 +4546,8 @@ public class KVSSD6{
         public Pair<String, String> keyRange; // 键范围
         public int pageCounter;            // 页来源层级计数器
         public int kvpairSize;            //
-        public String metadataPagePpa; // Meta Page指针（如"0_0"）
+        public long metadataPagePpa; // Meta Page指针（Ppa 打包编码）
+        public BloomFilter bloomFilter;    // 布隆过滤器（null=未建立，不做过滤）
 
         public SSTable(long sstId, int level) {
             this.sstId = sstId;
@@ -2444,6 +4555,7 @@ public class KVSSD6{
             this.kvPages = new ArrayList<>();
             this.keyRange = new Pair<>("", "");
             this.pageCounter = 1;
+            this.metadataPagePpa = Ppa.NULL;
         }
 
         /**
@@ -2491,12 +4603,13 @@ public class KVSSD6{
      * 测试方法（验证持久化）
      */
     public static void main(String[] args) {
-        KVSSD6 kvssd = new KVSSD6();
+        KVSSD6 kvssd = KVSSD6.open();
         String value=kvssd.get("user2719434334763201561");
         if(value!=null){
             System.out.println("Read success!");
         }else{
             System.out.println("Read fail!");
         }
+        kvssd.close();
     }
 }
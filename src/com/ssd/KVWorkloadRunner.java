@@ -2,21 +2,33 @@ package com.ssd;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class KVWorkloadRunner {
     public static void main(String[] args) {
-        // 1. 参数校验：确保传入 CSV 路径
-        if (args.length < 1) {
-            System.out.println("Usage: java KVWorkloadRunner <workload.csv>");
+        // 1. 参数校验：确保传入 CSV 路径（--threads N [--virtual] [--dispatch rr|key] 启用多客户端回放，--backend file|memory|image 选择设备后端）
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        MultiClientRunner.Options clientOptions = MultiClientRunner.Options.parse(positional);
+        if (positional.isEmpty()) {
+            System.out.println("Usage: java KVWorkloadRunner [--threads N] [--virtual] [--dispatch rr|key] [--backend file|memory|image] <workload.csv>");
             System.out.println("Example: java KVWorkloadRunner ycsb.csv");
+            System.out.println("Example: java KVWorkloadRunner --threads 8 --dispatch key ycsb.csv");
             return;
         }
-        String workloadFile = args[0];
+        String workloadFile = positional.get(0);
+        if (clientOptions.backend != null) {
+            Constants.FLASH_BACKEND = clientOptions.backend;
+        }
 
         // 2. 初始化模拟器和统计变量
-        KVSSD6 kvssd = new KVSSD6(); // 实例化 KVSSD5 模拟器
+        KVSSD6 kvssd = KVSSD6.open(); // 实例化 KVSSD5 模拟器
         long totalOps = 0;
         long readOps = 0, writeOps = 0;
+        long multiGetOps = 0; // multiGet 操作数（其读取的 key 数计入 readOps 与 totalOps）
+        long scanOps = 0, scanEntries = 0; // 范围扫描次数与返回的 KV 条数（每次扫描计为 1 个操作）
+        MultiClientRunner.Report clientReport = null; // 多客户端回放结果（单线程回放时为 null）
 
         System.out.println("=== Running workload: " + workloadFile + " ===");
         long startTime = System.nanoTime();
@@ -34,40 +46,69 @@ public class KVWorkloadRunner {
             }
             System.out.println("Skipped CSV header: " + line);
 
-            // 循环读取每一行数据
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue; // 跳过空行
+            if (clientOptions.threads > 1) {
+                // 多客户端回放：主线程分发，客户端线程执行并各自记录延迟
+                clientReport = MultiClientRunner.replay(kvssd, br, clientOptions, System.err::println);
+                totalOps = clientReport.totalOps();
+                readOps = clientReport.readOps;
+                writeOps = clientReport.writeOps;
+                multiGetOps = clientReport.multiGets;
+                scanOps = clientReport.scanOps;
+                scanEntries = clientReport.scanEntries;
+            } else {
+                // 循环读取每一行数据
+                while ((line = br.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue; // 跳过空行
 
-                // 分割 CSV 行：按逗号分割（最多3段：op, 明文字符串Key, 明文字符串Value）
-                // 注意：若Value包含逗号，需用引号包裹（标准CSV格式），此处按基础场景处理
-                String[] parts = line.split(",", 3);
-                if (parts.length < 2) { // 至少需要 "操作类型(op)" 和 "明文字符串Key"
-                    System.err.println("Skipped invalid line (格式错误): " + line);
-                    continue;
-                }
+                    // 分割 CSV 行：按逗号分割（最多3段：op, 明文字符串Key, 明文字符串Value）
+                    // 注意：若Value包含逗号，需用引号包裹（标准CSV格式），此处按基础场景处理
+                    String[] parts = line.split(",", 3);
+                    if (parts.length < 2) { // 至少需要 "操作类型(op)" 和 "明文字符串Key"
+                        System.err.println("Skipped invalid line (格式错误): " + line);
+                        continue;
+                    }
 
-                // 直接读取明文字符串（核心修改：移除 hex 和 Base64 解码）
-                String op = parts[0].trim();       // 操作类型（R/W）
-                String key = parts[1].trim();      // 明文字符串Key（无需解码）
-                String value = parts.length >= 3 ? parts[2].trim() : ""; // 明文字符串Value（无需解码）
+                    // 直接读取明文字符串（核心修改：移除 hex 和 Base64 解码）
+                    String op = parts[0].trim();       // 操作类型（R/W/M/S）
+                    String key = parts[1].trim();      // 明文字符串Key（无需解码）
+                    String value = parts.length >= 3 ? parts[2].trim() : ""; // 明文字符串Value（无需解码）
 
-                // 执行读/写操作
-                if ("W".equals(op)) { // 写操作：直接用明文字符串 Key/Value
-                    kvssd.put(key, value);
-                    writeOps++;
-                } else if ("R".equals(op)) { // 读操作：直接用明文字符串 Key
-                    kvssd.get(key);
-                    readOps++;
-                } else { // 未知操作类型，跳过
-                    System.err.println("Skipped unknown op (" + op + ") in line: " + line);
-                    continue;
-                }
+                    // 执行读/写操作
+                    if ("W".equals(op)) { // 写操作：直接用明文字符串 Key/Value
+                        kvssd.put(key, value);
+                        writeOps++;
+                    } else if ("R".equals(op)) { // 读操作：直接用明文字符串 Key
+                        kvssd.get(key);
+                        readOps++;
+                    } else if ("M".equals(op)) { // 批量读：key 字段为 ';' 分隔的多个 key
+                        List<String> keys = MultiClientRunner.parseMultiGetKeys(key);
+                        if (keys.isEmpty()) {
+                            System.err.println("Skipped invalid line (格式错误): " + line);
+                            continue;
+                        }
+                        kvssd.multiGet(keys);
+                        readOps += keys.size();
+                        multiGetOps++;
+                        totalOps += keys.size() - 1; // 按读取的 key 数计入操作数（下方再加 1）
+                    } else if ("S".equals(op)) { // 范围扫描：从 key 起至多 value 条
+                        Integer limit = MultiClientRunner.parseScanLimit(value);
+                        if (limit == null) {
+                            System.err.println("Skipped invalid line (格式错误): " + line);
+                            continue;
+                        }
+                        scanEntries += MultiClientRunner.runScan(kvssd, key, limit);
+                        scanOps++;
+                    } else { // 未知操作类型，跳过
+                        System.err.println("Skipped unknown op (" + op + ") in line: " + line);
+                        continue;
+                    }
 
-                // 进度打印（每10000次操作打印一次）
-                totalOps++;
-                if (totalOps % 10000 == 0) {
-                    System.out.println("Processed " + totalOps + " ops...");
+                    // 进度打印（每10000次操作打印一次）
+                    totalOps++;
+                    if (totalOps % 10000 == 0) {
+                        System.out.println("Processed " + totalOps + " ops...");
+                    }
                 }
             }
 
@@ -90,7 +131,7 @@ public class KVWorkloadRunner {
         double throughput = totalOps > 0 ? totalOps / seconds : 0.0; // 每秒操作数
 
         // 5. 清理资源并获取统计数据
-        kvssd.cleanup();
+        kvssd.close();
         KVSSD6.Stats stats = kvssd.getStats(); // 获取 KVSSD5 内部统计
         if (stats == null) {
             stats = new KVSSD6.Stats(); // 空指针防护：初始化空统计实例
@@ -103,19 +144,45 @@ public class KVWorkloadRunner {
         System.out.println("==================================================");
         // 基础操作统计
         System.out.printf("Total ops: %,d (Read=%d, Write=%d)%n", totalOps, readOps, writeOps);
+        if (multiGetOps > 0) {
+            System.out.printf("MultiGet ops: %,d%n", multiGetOps);
+        }
+        if (scanOps > 0) {
+            System.out.printf("Scan ops: %,d (%,d entries)%n", scanOps, scanEntries);
+        }
         System.out.printf("Elapsed time: %.2f s%n", seconds);
         System.out.printf("Throughput: %.2f ops/s%n", throughput);
         System.out.println("--------------------------------------------------");
+        if (clientReport != null) {
+            System.out.print(clientReport.format());
+            System.out.println("--------------------------------------------------");
+        }
         // KVSSD5 详细统计（所有字段）
         System.out.println("                 Detailed Stats (from KVSSD5)     ");
         System.out.println("--------------------------------------------------");
         System.out.printf("Application Write Count: %,d%n", stats.writeCount);
         System.out.printf("Application Read Count: %,d%n", stats.readCount);
         System.out.printf("GC Count: %,d%n", stats.gcCount);
-        System.out.printf("Compaction Count: %,d%n", stats.compactionCount);
+        System.out.printf("GC Reclaimed Blocks/Copied Pages: %,d / %,d (%.2f per block)%n",
+                stats.gcBlocksReclaimed, stats.gcPagesCopied, stats.gcCopiedPerReclaimedBlock);
+        System.out.printf("GC Background Runs: %,d, Foreground Stalls: %,d (%,d ms)%n",
+                stats.gcBackgroundRuns, stats.gcForegroundStalls, stats.gcForegroundStallMs);
+        System.out.printf("Compaction Count: %,d (%,d ms, parallelism %d)%n",
+                stats.compactionCount, stats.compactionTimeMs, Constants.COMPACTION_PARALLELISM);
+        System.out.printf("Compaction Write Slowdowns: %,d, Stops: %,d (%,d ms)%n",
+                stats.compactionWriteSlowdowns, stats.compactionWriteStops, stats.compactionWriteStopMs);
         System.out.printf("Write Amplification: %.2f%n", stats.writeAmplification);
         System.out.printf("Total Flash Writes (Bytes): %,d%n", stats.totalFlashWrites);
         System.out.printf("Total Flash Reads (Times): %,d%n", stats.totalFlashReads);
+        System.out.printf("Meta Page Cache Hits/Misses: %,d / %,d%n", stats.metaCacheHits, stats.metaCacheMisses);
+        System.out.printf("Page Cache Hits/Misses: %,d / %,d (hit ratio %.2f%%)%n",
+                stats.pageCacheHits, stats.pageCacheMisses, stats.pageCacheHitRatio * 100);
+        System.out.printf("WAL Records/Group Commits: %,d / %,d%n", stats.walRecords, stats.walGroupCommits);
+        System.out.printf("Open Time: %,d ms (%s)%n", stats.openTimeMs,
+                stats.openedFromCheckpoint ? "checkpoint" : "file scan");
+        System.out.printf("Device (%s) Page Reads/Programs: %,d / %,d (%,d bytes), Block Erases: %,d%n",
+                stats.flashBackend, stats.devicePageReads, stats.devicePagePrograms,
+                stats.deviceBytesProgrammed, stats.deviceBlockErases);
         System.out.println("--------------------------------------------------");
         System.out.println("Read Flash Access Distribution:");
         System.out.printf("  0 times flash access: %,d%n", stats.read0Flash);
@@ -128,6 +195,9 @@ public class KVWorkloadRunner {
         System.out.printf("  7 times flash access: %,d%n", stats.read7Flash);
         System.out.printf("  8 times flash access: %,d%n", stats.read8Flash);
         System.out.printf("  8+ times flash access: %,d%n", stats.readMoreFlash);
+        System.out.printf("  Filter-avoided SST reads: %,d%n", stats.filterAvoidedReads);
+        System.out.printf("Scans: %,d (%,d entries, %,d read-ahead pages)%n",
+                stats.scanCount, stats.scanEntries, stats.scanReadAheads);
         System.out.println("==================================================");
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.ssd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 单个 LSM 层级的不可变键范围索引：按 SSTable 最小键升序排列的 min/max 数组，层级变化时整体重建
+ * （共享重叠页使相邻 SSTable 的键范围可能在边界处重叠，因此维护最大键的前缀最大值以找出全部候选）
+ */
+public class LevelIndex {
+    private final KVSSD6.SSTable[] ssts;
+    private final String[] minKeys;
+    private final String[] maxKeys;
+    private final String[] prefixMaxKeys; // prefixMaxKeys[i] = max(maxKeys[0..i])
+
+    public LevelIndex(List<KVSSD6.SSTable> levelSsts) {
+        List<KVSSD6.SSTable> sorted = new ArrayList<>(levelSsts);
+        sorted.sort((a, b) -> a.keyRange.first.compareTo(b.keyRange.first));
+        int n = sorted.size();
+        ssts = sorted.toArray(new KVSSD6.SSTable[0]);
+        minKeys = new String[n];
+        maxKeys = new String[n];
+        prefixMaxKeys = new String[n];
+        for (int i = 0; i < n; i++) {
+            minKeys[i] = ssts[i].keyRange.first;
+            maxKeys[i] = ssts[i].keyRange.second;
+            prefixMaxKeys[i] = (i == 0 || maxKeys[i].compareTo(prefixMaxKeys[i - 1]) > 0)
+                    ? maxKeys[i] : prefixMaxKeys[i - 1];
+        }
+    }
+
+    /**
+     * 二分查找键范围覆盖 key 的 SSTable（按最小键升序返回，通常 0~1 个，边界处可能 2 个）
+     */
+    public List<KVSSD6.SSTable> findCandidates(String key) {
+        // 最后一个 minKey <= key 的位置
+        int lo = 0;
+        int hi = minKeys.length - 1;
+        int last = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minKeys[mid].compareTo(key) <= 0) {
+                last = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (last < 0) {
+            return Collections.emptyList();
+        }
+        List<KVSSD6.SSTable> result = new ArrayList<>(2);
+        // 向前回溯，直到前缀最大键已小于 key
+        for (int i = last; i >= 0 && prefixMaxKeys[i].compareTo(key) >= 0; i--) {
+            if (maxKeys[i].compareTo(key) >= 0) {
+                result.add(ssts[i]);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * 键范围与 [startKey, endKey) 相交的 SSTable（按最小键升序；null 表示不设界）
+     */
+    public List<KVSSD6.SSTable> overlapping(String startKey, String endKey) {
+        List<KVSSD6.SSTable> result = new ArrayList<>();
+        for (int i = 0; i < ssts.length; i++) {
+            if (endKey != null && minKeys[i].compareTo(endKey) >= 0) {
+                break;
+            }
+            if (startKey == null || maxKeys[i].compareTo(startKey) >= 0) {
+                result.add(ssts[i]);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return ssts.length;
+    }
+}
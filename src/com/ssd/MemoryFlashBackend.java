@@ -0,0 +1,139 @@
+package com.ssd;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 纯内存设备后端：数据页镜像存放在堆外（direct）缓冲区，块元数据同步只计数，不产生任何文件 I/O。
+ * 吞吐只反映 LSM / 共享页算法本身的开销，用于批量比较各 workload；进程退出后内容丢失。
+ * <p>
+ * 每块的页槽位在首次编程时创建，页缓冲区按页号复用（容量不足时重新分配），擦除只清空有效长度。
+ * 数据区与元数据区各用一张块表（块号独立编号）；数据区块号受设备容量限制，元数据区可随扩容增长。
+ * 块只有在没有读方持有引用它的版本后才会被擦除并重新编程，因此读方复制页镜像时不会与覆盖写交错。
+ */
+public class MemoryFlashBackend implements FlashBackend {
+    private final int pagesPerBlock = (int) (Constants.BLOCK_SIZE / Constants.PAGE_SIZE);
+    private final long totalBlocks;
+    // 块ID → 页缓冲区数组（下标为页号；limit 为页镜像长度，0 表示未编程或已擦除）
+    private final Map<Long, ByteBuffer[]> blocks = new ConcurrentHashMap<>();
+    private final Map<Long, ByteBuffer[]> metaZoneBlocks = new ConcurrentHashMap<>();
+    // 元数据区块镜像整体替换、读路径无锁读取，用不可变的数组发布
+    private final Map<Long, byte[]> metaBlocks = new ConcurrentHashMap<>();
+    private final Counters counters = new Counters();
+
+    public MemoryFlashBackend(long totalBlocks) {
+        this.totalBlocks = totalBlocks;
+    }
+
+    @Override
+    public Kind kind() {
+        return Kind.MEMORY;
+    }
+
+    @Override
+    public boolean persistent() {
+        return false;
+    }
+
+    @Override
+    public byte[] readPage(Zone zone, long ppa) {
+        ByteBuffer[] pages = blocksOf(zone).get(Ppa.blockId(ppa));
+        ByteBuffer page = pages == null ? null : pages[Ppa.pageNo(ppa)];
+        if (page == null || page.limit() == 0) {
+            return null;
+        }
+        counters.pageReads.increment();
+        ByteBuffer view = page.duplicate();
+        byte[] image = new byte[view.limit()];
+        view.position(0).get(image);
+        return image;
+    }
+
+    @Override
+    public void programPage(Zone zone, long ppa, byte[] image) {
+        long blockId = Ppa.blockId(ppa);
+        if (blockId < 0 || (zone == Zone.DATA && blockId >= totalBlocks)) {
+            throw new IllegalArgumentException("PPA out of device range: " + zone + " " + Ppa.toString(ppa));
+        }
+        ByteBuffer[] pages = blocksOf(zone).computeIfAbsent(blockId, id -> new ByteBuffer[pagesPerBlock]);
+        int pageNo = Ppa.pageNo(ppa);
+        ByteBuffer page = pages[pageNo];
+        if (page == null || page.capacity() < image.length) {
+            page = ByteBuffer.allocateDirect(Math.max(image.length, Constants.PAGE_SIZE));
+        }
+        page.clear();
+        page.put(image).flip();
+        pages[pageNo] = page;
+        counters.pagePrograms.increment();
+        counters.bytesProgrammed.add(image.length);
+    }
+
+    @Override
+    public void eraseBlock(Zone zone, long blockId) {
+        ByteBuffer[] pages = blocksOf(zone).get(blockId);
+        if (pages != null) {
+            for (ByteBuffer page : pages) {
+                if (page != null) {
+                    page.limit(0);
+                }
+            }
+        }
+        counters.blockErases.increment();
+    }
+
+    @Override
+    public void syncMeta(Zone zone, KVSSD6.PhysicalBlock block) {
+        // 没有持久化介质：直接把块头与页元数据记录标记为已同步，保持与文件后端相同的增量语义
+        if (block.isHeaderDirty()) {
+            block.markHeaderPersisted();
+        }
+        for (int pageNo = 0; pageNo < block.pages.size(); pageNo++) {
+            KVSSD6.PhysicalPage page = block.pages.get(pageNo);
+            byte state = PageFormat.pageState(page);
+            int refCount = page == null ? 0 : page.refCount;
+            if (block.isPageMetaDirty(pageNo, state, refCount)) {
+                block.markPageMetaPersisted(pageNo, state, refCount);
+            }
+        }
+        counters.metaSyncs.increment();
+    }
+
+    @Override
+    public byte[] readMetaBlock(long metaBlockId) {
+        byte[] image = metaBlocks.get(metaBlockId);
+        if (image != null) {
+            counters.metaBlockReads.increment();
+        }
+        return image;
+    }
+
+    @Override
+    public void writeMetaBlock(long metaBlockId, byte[] image) {
+        metaBlocks.put(metaBlockId, image);
+        counters.metaBlockWrites.increment();
+    }
+
+    @Override
+    public void sync() {
+        // 易失介质，无需落盘
+        counters.syncs.increment();
+    }
+
+    @Override
+    public void close() {
+        // 释放页缓冲区（易失介质，内容随之丢弃）
+        blocks.clear();
+        metaZoneBlocks.clear();
+        metaBlocks.clear();
+    }
+
+    @Override
+    public Counters counters() {
+        return counters;
+    }
+
+    private Map<Long, ByteBuffer[]> blocksOf(Zone zone) {
+        return zone == Zone.META ? metaZoneBlocks : blocks;
+    }
+}
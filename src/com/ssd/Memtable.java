@@ -0,0 +1,82 @@
+package com.ssd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有序 Memtable（基于跳表），增量维护字节大小，put/get 均为 O(log n)
+ */
+public class Memtable {
+    private final ConcurrentSkipListMap<String, String> table = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong(0); // 当前 key + value 的 UTF-8 字节总和
+    public volatile long walSegment = -1; // 记录本 Memtable 写入的 WAL 段号，写成 SSTable 后回收
+
+    /**
+     * 写入（覆盖旧值），返回旧值；大小计数只按差值更新
+     */
+    public String put(String key, String value) {
+        String old = table.put(key, value);
+        long delta = kvSize(key, value);
+        if (old != null) {
+            delta -= kvSize(key, old);
+        }
+        sizeInBytes.addAndGet(delta);
+        return old;
+    }
+
+    public String get(String key) {
+        return table.get(key);
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    /**
+     * [startKey, endKey) 内的 KV 按 key 升序迭代（弱一致：迭代期间的并发写入可能可见也可能不可见）；
+     * startKey/endKey 为 null 表示不设下界/上界
+     */
+    public Iterator<Map.Entry<String, String>> rangeIterator(String startKey, String endKey) {
+        NavigableMap<String, String> range = table;
+        if (startKey != null) {
+            range = range.tailMap(startKey, true);
+        }
+        if (endKey != null) {
+            range = range.headMap(endKey, false);
+        }
+        return range.entrySet().iterator();
+    }
+
+    /**
+     * 按 key 升序导出（跳表本身有序，刷盘时无需再排序）
+     */
+    public List<Pair<String, String>> toSortedList() {
+        List<Pair<String, String>> sorted = new ArrayList<>(table.size());
+        for (Map.Entry<String, String> entry : table.entrySet()) {
+            sorted.add(new Pair<>(entry.getKey(), entry.getValue()));
+        }
+        return sorted;
+    }
+
+    /**
+     * 计算单个 KV 对的字节大小（key + value 的字节长度总和）
+     */
+    public static int kvSize(String key, String value) {
+        return key.getBytes(StandardCharsets.UTF_8).length
+                + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ssd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 元数据页缓存：按 metadataPagePpa 缓存解码后的 MetaPageIndex，按估算字节数做 LRU 淘汰
+ */
+public class MetaPageCache {
+    private final long capacityBytes;
+    private final LinkedHashMap<Long, MetaPageIndex> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long usedBytes;
+
+    public MetaPageCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public synchronized MetaPageIndex get(long metaPpa) {
+        return entries.get(metaPpa);
+    }
+
+    public synchronized void put(long metaPpa, MetaPageIndex index) {
+        if (index.sizeInBytes() > capacityBytes) {
+            return; // 单个条目超过容量，不缓存
+        }
+        MetaPageIndex old = entries.put(metaPpa, index);
+        if (old != null) {
+            usedBytes -= old.sizeInBytes();
+        }
+        usedBytes += index.sizeInBytes();
+        // 超出容量时从最久未访问的条目开始淘汰
+        Iterator<Map.Entry<Long, MetaPageIndex>> it = entries.entrySet().iterator();
+        while (usedBytes > capacityBytes && it.hasNext()) {
+            Map.Entry<Long, MetaPageIndex> eldest = it.next();
+            usedBytes -= eldest.getValue().sizeInBytes();
+            it.remove();
+        }
+    }
+
+    /**
+     * 元数据页内容变化或 SST 失效时移除
+     */
+    public synchronized void invalidate(long metaPpa) {
+        MetaPageIndex old = entries.remove(metaPpa);
+        if (old != null) {
+            usedBytes -= old.sizeInBytes();
+        }
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
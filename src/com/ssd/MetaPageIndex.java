@@ -0,0 +1,220 @@
+package com.ssd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 解码后的元数据页：按页最小键升序排列的 KV 页键范围，页定位为二分查找
+ * （共享重叠页会导致相邻页键范围重叠，因此额外维护最大键的前缀最大值）。
+ * <p>
+ * 压缩只重组页引用、不改写 KV 页，同一 key 的新旧版本可能位于同一 SST（或同层相邻 SST）中键范围重叠的不同页；
+ * 每个条目带有页的写入序号（写入该页的刷盘 SST 的 ID，越大越新），覆盖 key 的页按写入序号从新到旧返回，
+ * 第一个包含 key 的页即为该层的最新版本。
+ */
+public class MetaPageIndex {
+    private static final int[] NO_SLOTS = new int[0];
+
+    private final long[] ppas;
+    private final String[] minKeys;
+    private final String[] maxKeys;
+    private final long[] seqs;
+    private final String[] prefixMaxKeys; // prefixMaxKeys[i] = max(maxKeys[0..i])
+    private final long sizeInBytes;
+
+    /**
+     * 元数据页条目：KV 页 PPA、页键范围与写入序号
+     */
+    public static final class Entry {
+        final long ppa;
+        final String minKey;
+        final String maxKey;
+        final long seq;
+
+        public Entry(long ppa, String minKey, String maxKey, long seq) {
+            this.ppa = ppa;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            this.seq = seq;
+        }
+    }
+
+    public MetaPageIndex(List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort((a, b) -> a.minKey.compareTo(b.minKey));
+        int n = sorted.size();
+        ppas = new long[n];
+        minKeys = new String[n];
+        maxKeys = new String[n];
+        seqs = new long[n];
+        prefixMaxKeys = new String[n];
+        long bytes = 64;
+        for (int i = 0; i < n; i++) {
+            Entry entry = sorted.get(i);
+            ppas[i] = entry.ppa;
+            minKeys[i] = entry.minKey;
+            maxKeys[i] = entry.maxKey;
+            seqs[i] = entry.seq;
+            prefixMaxKeys[i] = (i == 0 || maxKeys[i].compareTo(prefixMaxKeys[i - 1]) > 0)
+                    ? maxKeys[i] : prefixMaxKeys[i - 1];
+            // 估算占用：字符串按 2 字节/字符 + 对象头，数组槽位按引用/long 大小
+            bytes += 2L * (minKeys[i].length() + maxKeys[i].length()) + 2 * 40 + 5 * 8;
+        }
+        sizeInBytes = bytes;
+    }
+
+    /**
+     * 元数据页条目（PhysicalPage.metaEntries）的键范围串："min|max|写入序号"
+     */
+    public static String entryRange(String minKey, String maxKey, long seq) {
+        return minKey + "|" + maxKey + "|" + seq;
+    }
+
+    /**
+     * 键范围串中的写入序号；旧格式 "min|max" 没有序号，视为 0（最旧）
+     */
+    public static long entrySeq(String range) {
+        int first = range.indexOf('|');
+        int last = range.lastIndexOf('|');
+        return last <= first ? 0 : parseSeq(range.substring(last + 1));
+    }
+
+    /**
+     * 解析写入序号文本，无法解析时视为 0
+     */
+    public static long parseSeq(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 在同层的多个候选 SST 的元数据页上查找覆盖 key 的 KV 页，合并后按写入序号从新到旧返回（被多个 SST 共享的页只返回一次）
+     */
+    public static long[] findPages(List<MetaPageIndex> indexes, String key) {
+        if (indexes.size() == 1) {
+            return indexes.get(0).findPages(key);
+        }
+        long[] ppas = new long[4];
+        long[] seqs = new long[4];
+        int count = 0;
+        for (MetaPageIndex index : indexes) {
+            int[] slots = index.findSlots(key);
+            for (int slot : slots) {
+                long ppa = index.ppas[slot];
+                boolean seen = false;
+                for (int j = 0; j < count && !seen; j++) {
+                    seen = ppas[j] == ppa;
+                }
+                if (seen) {
+                    continue;
+                }
+                if (count == ppas.length) {
+                    ppas = Arrays.copyOf(ppas, count * 2);
+                    seqs = Arrays.copyOf(seqs, count * 2);
+                }
+                ppas[count] = ppa;
+                seqs[count] = index.seqs[slot];
+                count++;
+            }
+        }
+        sortBySeqDescending(ppas, seqs, count);
+        return count == ppas.length ? ppas : Arrays.copyOf(ppas, count);
+    }
+
+    /**
+     * 查找键范围覆盖 key 的所有 KV 页 PPA（按写入序号从新到旧，序号相同时按页最小键从大到小）
+     */
+    public long[] findPages(String key) {
+        int[] slots = findSlots(key);
+        long[] result = new long[slots.length];
+        long[] resultSeqs = new long[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            result[i] = ppas[slots[i]];
+            resultSeqs[i] = seqs[slots[i]];
+        }
+        sortBySeqDescending(result, resultSeqs, result.length);
+        return result;
+    }
+
+    /**
+     * 覆盖 key 的页的下标（按页最小键从大到小）
+     */
+    private int[] findSlots(String key) {
+        // 最后一个 minKey <= key 的位置
+        int lo = 0;
+        int hi = minKeys.length - 1;
+        int last = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minKeys[mid].compareTo(key) <= 0) {
+                last = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (last < 0) {
+            return NO_SLOTS;
+        }
+        int[] result = new int[2];
+        int count = 0;
+        // 向前回溯，直到前缀最大键已小于 key（更前面的页不可能覆盖 key）
+        for (int i = last; i >= 0 && prefixMaxKeys[i].compareTo(key) >= 0; i--) {
+            if (maxKeys[i].compareTo(key) >= 0) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = i;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * 按写入序号降序做稳定插入排序（候选页通常只有一两个）
+     */
+    private static void sortBySeqDescending(long[] ppas, long[] seqs, int count) {
+        for (int i = 1; i < count; i++) {
+            long ppa = ppas[i];
+            long seq = seqs[i];
+            int j = i - 1;
+            while (j >= 0 && seqs[j] < seq) {
+                ppas[j + 1] = ppas[j];
+                seqs[j + 1] = seqs[j];
+                j--;
+            }
+            ppas[j + 1] = ppa;
+            seqs[j + 1] = seq;
+        }
+    }
+
+    /**
+     * 第 i 个 KV 页（按页最小键升序）的 PPA 与键范围，供范围扫描按顺序遍历
+     */
+    public long ppaAt(int i) {
+        return ppas[i];
+    }
+
+    public String minKeyAt(int i) {
+        return minKeys[i];
+    }
+
+    public String maxKeyAt(int i) {
+        return maxKeys[i];
+    }
+
+    public long seqAt(int i) {
+        return seqs[i];
+    }
+
+    public int pageCount() {
+        return ppas.length;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+}
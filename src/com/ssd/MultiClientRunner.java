@@ -0,0 +1,475 @@
+package com.ssd;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * 多客户端回放：主线程读取 CSV trace 并分发给 N 个客户端线程，各线程对同一个 KVSSD6 实例执行操作并各自记录延迟。
+ * <ul>
+ *   <li>ROUND_ROBIN：第 i 条操作交给第 i % N 个线程</li>
+ *   <li>KEY_HASH：按 key 哈希分区，同一 key 的操作始终由同一线程按 trace 顺序执行</li>
+ * </ul>
+ * 客户端线程可选平台线程或虚拟线程（虚拟线程需 JDK 21+，经反射创建，更低版本的运行时退回平台线程）。
+ * 每个线程一个有界队列，分发快于执行时主线程阻塞等待。
+ * <p>
+ * trace 操作：W,key,value（写）、R,key（读）、M,key1;key2;...（multiGet，key 之间以 {@link #MULTI_GET_KEY_SEPARATOR} 分隔）、
+ * S,startKey,limit（从 startKey 起范围扫描至多 limit 条，见 {@link #parseScanLimit}）。
+ */
+public class MultiClientRunner {
+    public static final String MULTI_GET_KEY_SEPARATOR = ";";
+
+    public enum Dispatch {
+        ROUND_ROBIN, KEY_HASH
+    }
+
+    /**
+     * 命令行选项：--threads N、--virtual、--dispatch rr|key、--batch N（其余参数原样保留）
+     * <p>
+     * batchSize &gt; 1 时连续的写操作攒成 {@link WriteBatch} 一次写入，遇到读操作或攒满 batchSize 条时提交
+     * （读之前先提交，保证同一线程内读到自己之前的写）。
+     */
+    public static class Options {
+        public int threads = 1;
+        public boolean virtualThreads = false;
+        public Dispatch dispatch = Dispatch.ROUND_ROBIN;
+        public int batchSize = 1;
+        public FlashBackend.Kind backend = null; // null=沿用 Constants.FLASH_BACKEND
+
+        /**
+         * 从参数列表中取出本类识别的选项并返回；args 中只留下其余参数
+         */
+        public static Options parse(List<String> args) {
+            Options options = new Options();
+            Iterator<String> it = args.iterator();
+            while (it.hasNext()) {
+                String arg = it.next();
+                if ("--threads".equals(arg)) {
+                    it.remove();
+                    options.threads = Math.max(1, Integer.parseInt(requireValue(it, arg)));
+                    it.remove();
+                } else if ("--batch".equals(arg)) {
+                    it.remove();
+                    options.batchSize = Math.max(1, Integer.parseInt(requireValue(it, arg)));
+                    it.remove();
+                } else if ("--virtual".equals(arg)) {
+                    it.remove();
+                    options.virtualThreads = VIRTUAL_THREAD_BUILDER != null;
+                    if (!options.virtualThreads) {
+                        System.err.println("Virtual threads need JDK 21+ (running " + Runtime.version()
+                                + "), falling back to platform threads");
+                    }
+                } else if ("--dispatch".equals(arg)) {
+                    it.remove();
+                    String value = requireValue(it, arg);
+                    it.remove();
+                    if ("rr".equalsIgnoreCase(value) || "round-robin".equalsIgnoreCase(value)) {
+                        options.dispatch = Dispatch.ROUND_ROBIN;
+                    } else if ("key".equalsIgnoreCase(value) || "key-hash".equalsIgnoreCase(value)) {
+                        options.dispatch = Dispatch.KEY_HASH;
+                    } else {
+                        throw new IllegalArgumentException("Unknown dispatch mode: " + value + " (expected rr|key)");
+                    }
+                } else if ("--backend".equals(arg)) {
+                    it.remove();
+                    String value = requireValue(it, arg);
+                    it.remove();
+                    try {
+                        options.backend = FlashBackend.Kind.valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown backend: " + value + " (expected file|memory|image)");
+                    }
+                }
+            }
+            return options;
+        }
+
+        private static String requireValue(Iterator<String> it, String option) {
+            if (!it.hasNext()) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            return it.next();
+        }
+
+        public String describe() {
+            return threads + " " + (virtualThreads ? "virtual" : "platform") + " threads, "
+                    + (dispatch == Dispatch.ROUND_ROBIN ? "round-robin" : "key-hash") + " dispatch, write batch " + batchSize;
+        }
+    }
+
+    /**
+     * 单个客户端线程的统计
+     */
+    public static class ClientStats {
+        public final int clientId;
+        public long readOps;
+        public long writeOps;
+        public long errors;
+        public long writeBatches; // write(WriteBatch) 调用次数（batchSize 为 1 时为 0）
+        public long multiGets; // multiGet 调用次数（其读取的 key 数计入 readOps）
+        public long scanOps; // 范围扫描次数
+        public long scanEntries; // 范围扫描返回的 KV 条数
+        public long elapsedNanos;
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        ClientStats(int clientId) {
+            this.clientId = clientId;
+        }
+
+        public long totalOps() {
+            return readOps + writeOps + scanOps;
+        }
+
+        public double throughput() {
+            return elapsedNanos == 0 ? 0.0 : totalOps() / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * 汇总结果：总吞吐、合并延迟分布与各线程公平性（Jain 指数 = (Σx)² / (n·Σx²)，x 为各线程吞吐，1 表示完全均衡）
+     */
+    public static class Report {
+        public final Options options;
+        public final List<ClientStats> clients;
+        public final double elapsedSeconds;
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public long readOps;
+        public long writeOps;
+        public long errors;
+        public long writeBatches;
+        public long multiGets;
+        public long scanOps;
+        public long scanEntries;
+
+        Report(Options options, List<ClientStats> clients, double elapsedSeconds) {
+            this.options = options;
+            this.clients = clients;
+            this.elapsedSeconds = elapsedSeconds;
+            for (ClientStats client : clients) {
+                latency.merge(client.latency);
+                readOps += client.readOps;
+                writeOps += client.writeOps;
+                errors += client.errors;
+                writeBatches += client.writeBatches;
+                multiGets += client.multiGets;
+                scanOps += client.scanOps;
+                scanEntries += client.scanEntries;
+            }
+        }
+
+        public long totalOps() {
+            return readOps + writeOps + scanOps;
+        }
+
+        public double throughput() {
+            return elapsedSeconds > 0 ? totalOps() / elapsedSeconds : 0.0;
+        }
+
+        public double fairnessIndex() {
+            double sum = 0;
+            double sumSquares = 0;
+            for (ClientStats client : clients) {
+                double x = client.throughput();
+                sum += x;
+                sumSquares += x * x;
+            }
+            return sumSquares == 0 ? 1.0 : sum * sum / (clients.size() * sumSquares);
+        }
+
+        /**
+         * 多行文本报告（Runner 写入结果文件，KVWorkloadRunner 打印到控制台）
+         */
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Clients: %s%n", options.describe()));
+            sb.append(String.format("Total ops: %,d (Read=%d, Write=%d, Errors=%d)%n", totalOps(), readOps, writeOps, errors));
+            if (writeBatches > 0) {
+                sb.append(String.format("Write batches: %,d (%.1f writes per batch)%n", writeBatches, (double) writeOps / writeBatches));
+            }
+            if (multiGets > 0) {
+                sb.append(String.format("MultiGets: %,d%n", multiGets));
+            }
+            if (scanOps > 0) {
+                sb.append(String.format("Scans: %,d (%,d entries)%n", scanOps, scanEntries));
+            }
+            sb.append(String.format("Elapsed time: %.2f s%n", elapsedSeconds));
+            sb.append(String.format("Aggregate throughput: %.2f ops/s%n", throughput()));
+            sb.append(String.format("Latency (us): mean %.1f, p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                    latency.meanNanos() / 1e3, latency.percentileNanos(50) / 1e3, latency.percentileNanos(99) / 1e3,
+                    latency.percentileNanos(99.9) / 1e3, latency.maxNanos() / 1e3));
+            sb.append(String.format("Fairness (Jain index over per-thread throughput): %.3f%n", fairnessIndex()));
+            sb.append(String.format("Per-thread:%n"));
+            for (ClientStats client : clients) {
+                sb.append(String.format("  client-%d: ops %,d, %.2f ops/s, p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                        client.clientId, client.totalOps(), client.throughput(),
+                        client.latency.percentileNanos(50) / 1e3, client.latency.percentileNanos(99) / 1e3,
+                        client.latency.maxNanos() / 1e3));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * trace 中的一条操作
+     */
+    private static final class Op {
+        static final Op END = new Op(' ', null, null, null);
+        final char type;
+        final String key;
+        final String value;
+        final List<String> keys; // 仅 multiGet
+
+        Op(char type, String key, String value, List<String> keys) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * 解析范围扫描操作的条数字段（空或非正数表示不限），格式错误返回 null
+     */
+    public static Integer parseScanLimit(String limitField) {
+        if (limitField.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(limitField));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 从 startKey 起扫描至多 limit 条（limit 为 0 表示扫到末尾），返回实际读到的条数
+     */
+    public static int runScan(KVSSD6 kvssd, String startKey, int limit) {
+        int entries = 0;
+        try (ScanIterator it = kvssd.scan(startKey, null, limit)) {
+            while (it.hasNext()) {
+                it.next();
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 解析 multiGet 操作的 key 字段（以 {@link #MULTI_GET_KEY_SEPARATOR} 分隔，忽略空项）
+     */
+    public static List<String> parseMultiGetKeys(String keyField) {
+        List<String> keys = new ArrayList<>();
+        for (String key : keyField.split(MULTI_GET_KEY_SEPARATOR)) {
+            key = key.trim();
+            if (!key.isEmpty()) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static final int QUEUE_CAPACITY = 4096;
+    // Thread.ofVirtual()（JDK 21+）返回的构建器原型；更低版本的运行时为 null
+    private static final Object VIRTUAL_THREAD_BUILDER = lookupVirtualThreadBuilder();
+
+    private static Object lookupVirtualThreadBuilder() {
+        try {
+            return Thread.class.getMethod("ofVirtual").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 创建（未启动的）客户端线程：虚拟线程经反射调用 Thread.Builder.OfVirtual#unstarted，使本类在 JDK 17 上也能编译运行
+     */
+    private static Thread newClientThread(String name, Runnable task, boolean virtual) {
+        if (virtual && VIRTUAL_THREAD_BUILDER != null) {
+            try {
+                Thread thread = (Thread) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("unstarted", Runnable.class).invoke(VIRTUAL_THREAD_BUILDER, task);
+                thread.setName(name);
+                return thread;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Failed to create virtual thread, using platform thread: " + e.getMessage());
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * 回放 csvReader 中剩余的行（表头已由调用方跳过）；格式错误或未知操作的行交给 skipLog 并跳过（skipLog 只在调用线程上执行）
+     */
+    public static Report replay(KVSSD6 kvssd, BufferedReader csvReader, Options options,
+                                Consumer<String> skipLog) throws IOException {
+        int batchSize = options.batchSize;
+        int threads = options.threads;
+        List<BlockingQueue<Op>> queues = new ArrayList<>(threads);
+        List<ClientStats> clients = new ArrayList<>(threads);
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Op> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            ClientStats client = new ClientStats(i);
+            queues.add(queue);
+            clients.add(client);
+            Runnable task = () -> runClient(kvssd, queue, client, batchSize);
+            String name = "kv-client-" + i;
+            workers.add(newClientThread(name, task, options.virtualThreads));
+        }
+
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        long dispatched = 0;
+        try {
+            String line;
+            while ((line = csvReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split(",", 3);
+                if (parts.length < 2) {
+                    skipLog.accept("Skipped invalid line (format error): " + line);
+                    continue;
+                }
+                String opType = parts[0].trim();
+                String key = parts[1].trim();
+                String value = parts.length >= 3 ? parts[2].trim() : "";
+                char type;
+                List<String> keys = null;
+                if ("W".equalsIgnoreCase(opType)) {
+                    type = 'W';
+                } else if ("R".equalsIgnoreCase(opType)) {
+                    type = 'R';
+                } else if ("M".equalsIgnoreCase(opType)) {
+                    type = 'M';
+                    keys = parseMultiGetKeys(key);
+                    if (keys.isEmpty()) {
+                        skipLog.accept("Skipped invalid line (format error): " + line);
+                        continue;
+                    }
+                    key = keys.get(0); // 按第一个 key 分区
+                } else if ("S".equalsIgnoreCase(opType)) {
+                    type = 'S';
+                    if (parseScanLimit(value) == null) {
+                        skipLog.accept("Skipped invalid line (format error): " + line);
+                        continue;
+                    }
+                } else {
+                    skipLog.accept("Skipped unknown operation type (" + opType + "): " + line);
+                    continue;
+                }
+                int target = options.dispatch == Dispatch.KEY_HASH
+                        ? Math.floorMod(key.hashCode(), threads)
+                        : (int) (dispatched % threads);
+                queues.get(target).put(new Op(type, key, value, keys));
+                dispatched++;
+                if (dispatched % 10000 == 0) {
+                    System.out.println("Dispatched " + dispatched + " operations...");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while dispatching trace");
+        } finally {
+            for (BlockingQueue<Op> queue : queues) {
+                putUninterruptibly(queue, Op.END);
+            }
+            for (Thread worker : workers) {
+                joinUninterruptibly(worker);
+            }
+        }
+        return new Report(options, clients, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * 客户端线程主循环；单条操作各记一个延迟样本，一次 multiGet 或批量模式下一次 write(WriteBatch) 记一个样本
+     */
+    private static void runClient(KVSSD6 kvssd, BlockingQueue<Op> queue, ClientStats client, int batchSize) {
+        long start = System.nanoTime();
+        WriteBatch batch = new WriteBatch();
+        try {
+            while (true) {
+                Op op = queue.take();
+                if (op == Op.END) {
+                    break;
+                }
+                if (op.type == 'W' && batchSize > 1) {
+                    batch.put(op.key, op.value);
+                    if (batch.size() >= batchSize) {
+                        commitBatch(kvssd, batch, client);
+                    }
+                    continue;
+                }
+                commitBatch(kvssd, batch, client); // 读之前提交已攒的写
+                long opStart = System.nanoTime();
+                try {
+                    if (op.type == 'W') {
+                        kvssd.put(op.key, op.value);
+                        client.writeOps++;
+                    } else if (op.type == 'S') {
+                        client.scanEntries += runScan(kvssd, op.key, parseScanLimit(op.value));
+                        client.scanOps++;
+                    } else if (op.type == 'M') {
+                        kvssd.multiGet(op.keys);
+                        client.readOps += op.keys.size();
+                        client.multiGets++;
+                    } else {
+                        kvssd.get(op.key);
+                        client.readOps++;
+                    }
+                } catch (RuntimeException e) {
+                    client.errors++;
+                    System.err.println("client-" + client.clientId + " failed on key " + op.key + ": " + e.getMessage());
+                }
+                client.latency.record(System.nanoTime() - opStart);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitBatch(kvssd, batch, client);
+        client.elapsedNanos = System.nanoTime() - start;
+    }
+
+    private static void commitBatch(KVSSD6 kvssd, WriteBatch batch, ClientStats client) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long opStart = System.nanoTime();
+        try {
+            kvssd.write(batch);
+            client.writeOps += batch.size();
+            client.writeBatches++;
+        } catch (RuntimeException e) {
+            client.errors++;
+            System.err.println("client-" + client.clientId + " failed on write batch of " + batch.size() + ": " + e.getMessage());
+        }
+        client.latency.record(System.nanoTime() - opStart);
+        batch.clear();
+    }
+
+    private static void putUninterruptibly(BlockingQueue<Op> queue, Op op) {
+        while (true) {
+            try {
+                queue.put(op);
+                return;
+            } catch (InterruptedException e) {
+                // 结束标记必须送达，否则客户端线程无法退出
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException e) {
+                // 继续等待客户端线程处理完已分发的操作
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.ssd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * KV 页读缓存：按 PPA 缓存页文件内容（二进制页镜像，查找时直接二分），按字节数限制容量。
+ * <p>
+ * 分片以降低锁竞争；每个分片采用 2Q 策略抵抗扫描：
+ * <ul>
+ *   <li>A1in：首次访问的页进入的 FIFO 试用区（约占分片容量 1/4），其中的命中不提升</li>
+ *   <li>A1out：从 A1in 淘汰的页只保留 PPA（幽灵条目）</li>
+ *   <li>Am：在 A1out 中再次被访问的页才进入的 LRU 热区</li>
+ * </ul>
+ * 压缩/GC 一次性扫过的页只会在 A1in 中流转，不会冲掉 Am 中的热点页。
+ */
+public class PageCache {
+    private final Shard[] shards;
+    private final long capacityBytes;
+
+    public PageCache(long capacityBytes, int shardCount) {
+        this.capacityBytes = capacityBytes;
+        int n = Math.max(1, shardCount);
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(capacityBytes / n);
+        }
+    }
+
+    public byte[] get(long ppa) {
+        return shardFor(ppa).get(ppa);
+    }
+
+    public void put(long ppa, byte[] page) {
+        shardFor(ppa).put(ppa, page);
+    }
+
+    /**
+     * 页文件被重写、迁移或所在块被擦除时移除
+     */
+    public void invalidate(long ppa) {
+        shardFor(ppa).invalidate(ppa);
+    }
+
+    /**
+     * 移除一个块的所有页（块擦除）
+     */
+    public void invalidateBlock(long blockId, int pagesPerBlock) {
+        for (int pageNo = 0; pageNo < pagesPerBlock; pageNo++) {
+            invalidate(Ppa.of(blockId, pageNo));
+        }
+    }
+
+    public long usedBytes() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += shard.usedBytes();
+        }
+        return used;
+    }
+
+    public long capacityBytes() {
+        return capacityBytes;
+    }
+
+    private Shard shardFor(long ppa) {
+        int h = Long.hashCode(ppa * 0x9E3779B97F4A7C15L);
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    private static final class Shard {
+        private final long capacityBytes;
+        private final long a1inCapacityBytes;
+        private final int a1outCapacity;
+        private final LinkedHashMap<Long, byte[]> a1in = new LinkedHashMap<>(); // 插入顺序 FIFO
+        private final LinkedHashMap<Long, byte[]> am = new LinkedHashMap<>(64, 0.75f, true); // 访问顺序 LRU
+        private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+        private long a1inBytes;
+        private long amBytes;
+
+        Shard(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+            this.a1inCapacityBytes = capacityBytes / 4;
+            // 幽灵队列按页数限制：约为分片可容纳的页数的一半
+            this.a1outCapacity = (int) Math.max(16, capacityBytes / Constants.PAGE_SIZE / 2);
+        }
+
+        synchronized byte[] get(long ppa) {
+            byte[] page = am.get(ppa);
+            if (page != null) {
+                return page;
+            }
+            return a1in.get(ppa);
+        }
+
+        synchronized void put(long ppa, byte[] page) {
+            if (page.length > capacityBytes) {
+                return;
+            }
+            removeEntry(ppa);
+            if (a1out.remove(ppa)) {
+                // 近期被淘汰过又被访问：视为热点页，进入 Am
+                am.put(ppa, page);
+                amBytes += page.length;
+            } else {
+                a1in.put(ppa, page);
+                a1inBytes += page.length;
+            }
+            evict();
+        }
+
+        synchronized void invalidate(long ppa) {
+            removeEntry(ppa);
+            a1out.remove(ppa);
+        }
+
+        synchronized long usedBytes() {
+            return a1inBytes + amBytes;
+        }
+
+        private void removeEntry(long ppa) {
+            byte[] old = a1in.remove(ppa);
+            if (old != null) {
+                a1inBytes -= old.length;
+            }
+            old = am.remove(ppa);
+            if (old != null) {
+                amBytes -= old.length;
+            }
+        }
+
+        private void evict() {
+            while (a1inBytes + amBytes > capacityBytes) {
+                if (a1inBytes > a1inCapacityBytes || am.isEmpty()) {
+                    // 试用区超额：最早进入的页降级为幽灵条目
+                    Iterator<Map.Entry<Long, byte[]>> it = a1in.entrySet().iterator();
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                    Map.Entry<Long, byte[]> eldest = it.next();
+                    a1inBytes -= eldest.getValue().length;
+                    it.remove();
+                    a1out.add(eldest.getKey());
+                    if (a1out.size() > a1outCapacity) {
+                        Iterator<Long> ghost = a1out.iterator();
+                        ghost.next();
+                        ghost.remove();
+                    }
+                } else {
+                    // 热区淘汰最久未访问的页
+                    Iterator<Map.Entry<Long, byte[]>> it = am.entrySet().iterator();
+                    Map.Entry<Long, byte[]> eldest = it.next();
+                    amBytes -= eldest.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+}
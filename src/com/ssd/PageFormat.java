@@ -0,0 +1,187 @@
+package com.ssd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 物理页二进制格式（替代逐行解析的明文页文件）
+ * <pre>
+ * 头部（固定 20 字节）：
+ *   int   MAGIC
+ *   short VERSION
+ *   byte  VALID
+ *   byte  保留
+ *   int   REF_COUNT
+ *   int   KV_COUNT (n)
+ *   int   VALUE_AREA_OFFSET
+ * 偏移表：int[n] 键记录偏移，int[n] 值记录偏移（均为文件内绝对偏移）
+ * 键区：n 条 [short 长度][UTF-8 字节]，按 key 升序
+ * 值区：n 条 [int 长度][UTF-8 字节]
+ * </pre>
+ * 查找时整页一次读入缓冲区，在偏移表上二分查找。
+ */
+public final class PageFormat {
+    public static final int MAGIC = 0x4B565047; // "KVPG"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+
+    // 页元数据记录（pagemeta.bin 中每页一条，按页号原地更新）：byte 状态 + int 引用计数
+    // 页文件头部的 VALID/REF_COUNT 只是写入时的快照，以该记录为准
+    public static final int PAGE_META_RECORD_SIZE = 5;
+    public static final byte PAGE_STATE_EMPTY = 0;
+    public static final byte PAGE_STATE_VALID = 1;
+    public static final byte PAGE_STATE_INVALID = 2;
+
+    private PageFormat() {
+    }
+
+    /**
+     * 编码物理页（data 若未按 key 升序会先排序；元数据页的条目以 "块ID_页号" → 键范围 形式编码）
+     */
+    public static byte[] encode(KVSSD6.PhysicalPage page) {
+        List<Pair<String, String>> kvs = page.data;
+        if (kvs.isEmpty() && !page.metaEntries.isEmpty()) {
+            kvs = new ArrayList<>(page.metaEntries.size());
+            for (Pair<Long, String> entry : page.metaEntries) {
+                kvs.add(new Pair<>(Ppa.toString(entry.first), entry.second));
+            }
+        }
+        if (!isSorted(kvs)) {
+            kvs = new ArrayList<>(kvs);
+            kvs.sort((a, b) -> a.first.compareTo(b.first));
+        }
+        int n = kvs.size();
+        byte[][] keys = new byte[n][];
+        byte[][] values = new byte[n][];
+        int keyAreaSize = 0;
+        int valueAreaSize = 0;
+        for (int i = 0; i < n; i++) {
+            keys[i] = kvs.get(i).first.getBytes(StandardCharsets.UTF_8);
+            values[i] = kvs.get(i).second.getBytes(StandardCharsets.UTF_8);
+            if (keys[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("Key too long for page format: " + keys[i].length + " bytes");
+            }
+            keyAreaSize += 2 + keys[i].length;
+            valueAreaSize += 4 + values[i].length;
+        }
+        int keyAreaOffset = HEADER_SIZE + 8 * n;
+        int valueAreaOffset = keyAreaOffset + keyAreaSize;
+        ByteBuffer buf = ByteBuffer.allocate(valueAreaOffset + valueAreaSize);
+
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.put((byte) (page.valid ? 1 : 0));
+        buf.put((byte) 0);
+        buf.putInt(page.refCount);
+        buf.putInt(n);
+        buf.putInt(valueAreaOffset);
+
+        int keyPos = keyAreaOffset;
+        int valuePos = valueAreaOffset;
+        for (int i = 0; i < n; i++) {
+            buf.putInt(HEADER_SIZE + 4 * i, keyPos);
+            buf.putInt(HEADER_SIZE + 4 * (n + i), valuePos);
+            buf.putShort(keyPos, (short) keys[i].length);
+            buf.put(keyPos + 2, keys[i]);
+            keyPos += 2 + keys[i].length;
+            buf.putInt(valuePos, values[i].length);
+            buf.put(valuePos + 4, values[i]);
+            valuePos += 4 + values[i].length;
+        }
+        return buf.array();
+    }
+
+    /**
+     * 在编码后的页中二分查找 key，未找到返回 null
+     */
+    public static String lookup(byte[] page, String key) {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        checkHeader(buf);
+        int n = buf.getInt(12);
+        int lo = 0;
+        int hi = n - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = keyAt(buf, n, mid).compareTo(key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return valueAt(buf, n, mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解码全部 KV 对（按 key 升序）
+     */
+    public static List<Pair<String, String>> decode(byte[] page) {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        checkHeader(buf);
+        int n = buf.getInt(12);
+        List<Pair<String, String>> kvs = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            kvs.add(new Pair<>(keyAt(buf, n, i), valueAt(buf, n, i)));
+        }
+        return kvs;
+    }
+
+    /**
+     * 页元数据记录中的状态值
+     */
+    public static byte pageState(KVSSD6.PhysicalPage page) {
+        if (page == null) {
+            return PAGE_STATE_EMPTY;
+        }
+        return page.valid ? PAGE_STATE_VALID : PAGE_STATE_INVALID;
+    }
+
+    /**
+     * 校验页头（魔数/版本），不符时抛出与 lookup/decode 相同的异常
+     */
+    public static void verify(byte[] page) {
+        checkHeader(ByteBuffer.wrap(page));
+    }
+
+    public static boolean isValid(byte[] page) {
+        return page[6] != 0;
+    }
+
+    public static int refCount(byte[] page) {
+        return ByteBuffer.wrap(page).getInt(8);
+    }
+
+    private static void checkHeader(ByteBuffer buf) {
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IllegalStateException("Not a binary page (bad magic)");
+        }
+        if (buf.getShort(4) != VERSION) {
+            throw new IllegalStateException("Unsupported page format version: " + buf.getShort(4));
+        }
+    }
+
+    private static String keyAt(ByteBuffer buf, int n, int i) {
+        int off = buf.getInt(HEADER_SIZE + 4 * i);
+        int len = buf.getShort(off) & 0xFFFF;
+        return new String(buf.array(), off + 2, len, StandardCharsets.UTF_8);
+    }
+
+    private static String valueAt(ByteBuffer buf, int n, int i) {
+        int off = buf.getInt(HEADER_SIZE + 4 * (n + i));
+        int len = buf.getInt(off);
+        return new String(buf.array(), off + 4, len, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isSorted(List<Pair<String, String>> kvs) {
+        for (int i = 1; i < kvs.size(); i++) {
+            if (kvs.get(i - 1).first.compareTo(kvs.get(i).first) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
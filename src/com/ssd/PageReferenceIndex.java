@@ -0,0 +1,126 @@
+package com.ssd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 页引用反向索引，使 GC 迁移与 SST 失效只触及实际引用者，而不必扫描全部层级/物理块：
+ * <ul>
+ *   <li>KV 页 PPA → 引用它的 SST 及其元数据页条目（共享重叠页可被多个 SST 引用）</li>
+ *   <li>SST ID → 在 {@code PhysicalBlock.sstables} 中登记了该 SST 的数据块 ID</li>
+ * </ul>
+ * 非线程安全，调用方需持有 lsmLock。
+ */
+public class PageReferenceIndex {
+
+    /**
+     * 单条引用：entry 非空表示元数据页条目，否则表示 sst.kvPages 中的页
+     */
+    public static final class Ref {
+        public final KVSSD6.SSTable sst;
+        public final Pair<Long, String> entry;
+
+        Ref(KVSSD6.SSTable sst, Pair<Long, String> entry) {
+            this.sst = sst;
+            this.entry = entry;
+        }
+    }
+
+    private final Map<Long, List<Ref>> pageRefs = new HashMap<>();
+    private final Map<Long, Set<Long>> sstBlocks = new HashMap<>();
+
+    /**
+     * 登记 SST 对其元数据页条目和 KV 页的引用（SST 加入 LSM 层级时调用）
+     */
+    public void registerSst(KVSSD6.SSTable sst) {
+        if (sst.metadataPage != null) {
+            for (Pair<Long, String> entry : sst.metadataPage.metaEntries) {
+                addRef(entry.first, new Ref(sst, entry));
+            }
+        }
+        for (KVSSD6.PhysicalPage page : sst.kvPages) {
+            addRef(page.ppa, new Ref(sst, null));
+        }
+    }
+
+    /**
+     * 移除 SST 的全部页引用（SST 失效时调用）
+     */
+    public void unregisterSst(KVSSD6.SSTable sst) {
+        if (sst.metadataPage != null) {
+            for (Pair<Long, String> entry : sst.metadataPage.metaEntries) {
+                removeRef(entry.first, sst);
+            }
+        }
+        for (KVSSD6.PhysicalPage page : sst.kvPages) {
+            removeRef(page.ppa, sst);
+        }
+    }
+
+    /**
+     * GC 迁移：取出旧 PPA 的全部引用并改挂到新 PPA 下，返回这些引用供调用方改写
+     */
+    public List<Ref> remap(long oldPpa, long newPpa) {
+        List<Ref> refs = pageRefs.remove(oldPpa);
+        if (refs == null) {
+            return Collections.emptyList();
+        }
+        pageRefs.computeIfAbsent(newPpa, k -> new ArrayList<>(refs.size())).addAll(refs);
+        return refs;
+    }
+
+    /**
+     * 是否仍有存活 SST 引用该 KV 页
+     */
+    public boolean isReferenced(long ppa) {
+        return pageRefs.containsKey(ppa);
+    }
+
+    public void linkBlock(long sstId, long blockId) {
+        sstBlocks.computeIfAbsent(sstId, k -> new HashSet<>(2)).add(blockId);
+    }
+
+    public void unlinkBlock(long sstId, long blockId) {
+        Set<Long> blocks = sstBlocks.get(sstId);
+        if (blocks != null) {
+            blocks.remove(blockId);
+            if (blocks.isEmpty()) {
+                sstBlocks.remove(sstId);
+            }
+        }
+    }
+
+    /**
+     * 移除并返回登记了该 SST 的数据块 ID
+     */
+    public Set<Long> removeSstBlocks(long sstId) {
+        Set<Long> blocks = sstBlocks.remove(sstId);
+        return blocks == null ? Collections.emptySet() : blocks;
+    }
+
+    private void addRef(long ppa, Ref ref) {
+        pageRefs.computeIfAbsent(ppa, k -> new ArrayList<>(2)).add(ref);
+    }
+
+    private void removeRef(long ppa, KVSSD6.SSTable sst) {
+        List<Ref> refs = pageRefs.get(ppa);
+        if (refs == null) {
+            return;
+        }
+        Iterator<Ref> it = refs.iterator();
+        while (it.hasNext()) {
+            if (it.next().sst == sst) {
+                it.remove();
+            }
+        }
+        if (refs.isEmpty()) {
+            pageRefs.remove(ppa);
+        }
+    }
+}
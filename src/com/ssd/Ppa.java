@@ -0,0 +1,52 @@
+package com.ssd;
+
+/**
+ * 物理页地址（PPA）的 long 打包编码：高位为块 ID，低 24 位为块内页号。
+ * 内存中的 PPA 一律使用该编码；落盘的明文文件仍使用 "块ID_页号" 形式（见 {@link #toString(long)} / {@link #parse(String)}）。
+ */
+public final class Ppa {
+    public static final int PAGE_BITS = 24;
+    public static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+    public static final long MAX_BLOCK_ID = Long.MAX_VALUE >>> PAGE_BITS;
+    public static final long NULL = -1L; // 未分配/未知的地址
+
+    private Ppa() {
+    }
+
+    public static long of(long blockId, int pageNo) {
+        if (blockId < 0 || blockId > MAX_BLOCK_ID || pageNo < 0 || pageNo > PAGE_MASK) {
+            throw new IllegalArgumentException("PPA out of range: block=" + blockId + ", page=" + pageNo);
+        }
+        return (blockId << PAGE_BITS) | pageNo;
+    }
+
+    public static long blockId(long ppa) {
+        return ppa >>> PAGE_BITS;
+    }
+
+    public static int pageNo(long ppa) {
+        return (int) (ppa & PAGE_MASK);
+    }
+
+    /**
+     * 明文形式 "块ID_页号"（如 "0_22"），用于落盘文件与日志
+     */
+    public static String toString(long ppa) {
+        return ppa == NULL ? "" : blockId(ppa) + "_" + pageNo(ppa);
+    }
+
+    /**
+     * 解析明文形式 "块ID_页号"，空串返回 {@link #NULL}
+     */
+    public static long parse(String text) {
+        String s = text.trim();
+        if (s.isEmpty()) {
+            return NULL;
+        }
+        int sep = s.indexOf('_');
+        if (sep <= 0) {
+            throw new IllegalArgumentException("Invalid PPA: " + text);
+        }
+        return of(Long.parseLong(s.substring(0, sep)), Integer.parseInt(s.substring(sep + 1)));
+    }
+}
@@ -1,7 +1,10 @@
 package com.ssd;
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 // 导入Constants类（确保包路径正确，如com.myproject.config.Constants）
 import com.ssd.Constants;
@@ -16,11 +19,21 @@ public class Runner {
 
     public static void main(String[] args) {
         // 1. 参数校验：确保传入至少1个CSV workload路径
-        if (args.length < 1) {
-            System.out.println("Usage: java KVWorkloadRunner <workload1.csv> [workload2.csv] ... [workloadN.csv]");
-            System.out.println("Example: java KVWorkloadRunner csv/dedup.csv csv/var.csv csv/ycsb.csv");
+        // --threads N [--virtual] [--dispatch rr|key]：N>1 时由 N 个客户端线程并发回放；--batch N：连续写入按 N 条一批提交
+        // --backend file|memory|image：闪存设备后端（memory 不落盘，只计数，用于快速批量比较各 workload 的算法开销）
+        List<String> workloadFiles = new ArrayList<>(Arrays.asList(args));
+        MultiClientRunner.Options clientOptions = MultiClientRunner.Options.parse(workloadFiles);
+        if (workloadFiles.isEmpty()) {
+            System.out.println("Usage: java Runner [--threads N] [--virtual] [--dispatch rr|key] [--batch N] [--backend file|memory|image] <workload1.csv> [workload2.csv] ... [workloadN.csv]");
+            System.out.println("Example: java Runner csv/dedup.csv csv/var.csv csv/ycsb.csv");
+            System.out.println("Example: java Runner --threads 8 --virtual --dispatch key csv/ycsb.csv");
+            System.out.println("Example: java Runner --batch 64 csv/rtdata.csv");
+            System.out.println("Example: java Runner --backend memory csv/*.csv");
             return;
         }
+        if (clientOptions.backend != null) {
+            Constants.FLASH_BACKEND = clientOptions.backend;
+        }
 
         // 2. 初始化结果目录（不存在则自动创建）
         File resultDir = new File(RESULT_DIR);
@@ -34,13 +47,13 @@ public class Runner {
         }
 
         // 3. 批量处理每个CSV workload（循环遍历所有传入文件）
-        for (String workloadFile : args) {
+        for (String workloadFile : workloadFiles) {
             System.out.println("\n==================================================");
             System.out.println("Starting workload: " + workloadFile);
             System.out.println("==================================================");
 
             // 运行单个workload并生成独立结果文件
-            runSingleWorkload(workloadFile, resultDir);
+            runSingleWorkload(workloadFile, resultDir, clientOptions);
         }
 
         // 4. 所有workload运行完成提示
@@ -51,8 +64,9 @@ public class Runner {
      * 运行单个CSV workload，动态设置Constants.PERSIST_DIR，生成独立结果文件
      * @param workloadFile CSV workload文件路径（相对/绝对路径均可）
      * @param resultDir 结果文件存储目录
+     * @param clientOptions 客户端线程配置（threads 为 1 时按原方式在当前线程顺序回放）
      */
-    private static void runSingleWorkload(String workloadFile, File resultDir) {
+    private static void runSingleWorkload(String workloadFile, File resultDir, MultiClientRunner.Options clientOptions) {
         // 步骤1：提取workload名称（如"csv/dedup.csv" → "dedup"，用于拼接存储目录和结果文件名）
         String workloadName = extractWorkloadName(workloadFile);
         // 步骤2：动态生成当前workload的存储目录（格式：BASE_PERSIST_DIR + 名称 + "_data/"）
@@ -74,11 +88,14 @@ public class Runner {
         }
 
         // 步骤5：初始化KVSSD模拟器和统计变量
-        KVSSD6 kvssd = new KVSSD6(); // KVSSD6会自动读取Constants.PERSIST_DIR
+        KVSSD6 kvssd = KVSSD6.open(); // KVSSD6会自动读取Constants.PERSIST_DIR
         long totalOps = 0;
         long readOps = 0, writeOps = 0;
+        long multiGetOps = 0; // multiGet 操作数（其读取的 key 数计入 readOps 与 totalOps）
+        long scanOps = 0, scanEntries = 0; // 范围扫描次数与返回的 KV 条数（每次扫描计为 1 个操作）
         long startTime = System.nanoTime(); // 记录开始时间（用于计算吞吐量）
         BufferedWriter resultWriter = null; // 结果文件写入流
+        MultiClientRunner.Report clientReport = null; // 多客户端回放结果（单线程回放时为 null）
 
         try {
             // 步骤6：创建当前workload的结果文件（文件名：时间戳_名称_result.txt）
@@ -96,6 +113,10 @@ public class Runner {
             resultWriter.newLine();
             resultWriter.write("Execution Start Time: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
             resultWriter.newLine();
+            resultWriter.write("Clients: " + clientOptions.describe());
+            resultWriter.newLine();
+            resultWriter.write("Flash Backend: " + Constants.FLASH_BACKEND);
+            resultWriter.newLine();
 
             // 步骤8：读取CSV文件并处理操作（跳过表头，处理每一行KV操作）
             BufferedReader csvReader = new BufferedReader(new FileReader(workloadFile));
@@ -114,49 +135,110 @@ public class Runner {
             resultWriter.newLine();
             resultWriter.newLine();
 
-            // 循环处理CSV每一行操作
-            while ((csvLine = csvReader.readLine()) != null) {
-                csvLine = csvLine.trim();
-                if (csvLine.isEmpty()) continue; // 跳过空行
-
-                // 分割CSV行（最多分割3段：op, key_str, value_str，避免Value含逗号导致分割错误）
-                String[] csvParts = csvLine.split(",", 3);
-                if (csvParts.length < 2) { // 至少需要"操作类型"和"Key"
-                    String skipMsg = "Skipped invalid line (format error): " + csvLine;
+            if (clientOptions.threads > 1) {
+                // 多客户端回放：主线程分发，客户端线程执行并各自记录延迟
+                BufferedWriter skipWriter = resultWriter;
+                clientReport = MultiClientRunner.replay(kvssd, csvReader, clientOptions, skipMsg -> {
                     System.err.println(skipMsg);
-                    resultWriter.write(skipMsg);
-                    resultWriter.newLine();
-                    continue;
-                }
+                    try {
+                        skipWriter.write(skipMsg);
+                        skipWriter.newLine();
+                    } catch (IOException e) {
+                        System.err.println("Error writing result file: " + e.getMessage());
+                    }
+                });
+                totalOps = clientReport.totalOps();
+                readOps = clientReport.readOps;
+                writeOps = clientReport.writeOps;
+                multiGetOps = clientReport.multiGets;
+                scanOps = clientReport.scanOps;
+                scanEntries = clientReport.scanEntries;
+            } else {
+                // 循环处理CSV每一行操作（batchSize > 1 时连续写入攒成 WriteBatch，读之前先提交）
+                int batchSize = clientOptions.batchSize;
+                WriteBatch writeBatch = new WriteBatch();
+                while ((csvLine = csvReader.readLine()) != null) {
+                    csvLine = csvLine.trim();
+                    if (csvLine.isEmpty()) continue; // 跳过空行
 
-                // 提取操作类型、Key、Value（均为明文字符串，无需解码）
-                String opType = csvParts[0].trim();
-                String key = csvParts[1].trim();
-                String value = csvParts.length >= 3 ? csvParts[2].trim() : "";
+                    // 分割CSV行（最多分割3段：op, key_str, value_str，避免Value含逗号导致分割错误）
+                    String[] csvParts = csvLine.split(",", 3);
+                    if (csvParts.length < 2) { // 至少需要"操作类型"和"Key"
+                        String skipMsg = "Skipped invalid line (format error): " + csvLine;
+                        System.err.println(skipMsg);
+                        resultWriter.write(skipMsg);
+                        resultWriter.newLine();
+                        continue;
+                    }
 
-                // 执行对应的读/写操作
-                if ("W".equalsIgnoreCase(opType)) { // 写操作（忽略大小写，兼容"W"/"w"）
-                    kvssd.put(key, value);
-                    writeOps++;
-                } else if ("R".equalsIgnoreCase(opType)) { // 读操作（忽略大小写）
-                    kvssd.get(key);
-                    readOps++;
-                } else { // 未知操作类型，跳过
-                    String skipMsg = "Skipped unknown operation type (" + opType + "): " + csvLine;
-                    System.err.println(skipMsg);
-                    resultWriter.write(skipMsg);
-                    resultWriter.newLine();
-                    continue;
-                }
+                    // 提取操作类型、Key、Value（均为明文字符串，无需解码）
+                    String opType = csvParts[0].trim();
+                    String key = csvParts[1].trim();
+                    String value = csvParts.length >= 3 ? csvParts[2].trim() : "";
 
-                // 统计总操作数，并每10000次操作打印进度
-                totalOps++;
-                if (totalOps % 10000 == 0) {
-                    String progressMsg = "Processed " + totalOps + " operations...";
-                    System.out.println(progressMsg);
-                    resultWriter.write(progressMsg);
-                    resultWriter.newLine();
+                    // 执行对应的读/写操作
+                    if ("W".equalsIgnoreCase(opType)) { // 写操作（忽略大小写，兼容"W"/"w"）
+                        if (batchSize > 1) {
+                            writeBatch.put(key, value);
+                            if (writeBatch.size() >= batchSize) {
+                                kvssd.write(writeBatch);
+                                writeBatch.clear();
+                            }
+                        } else {
+                            kvssd.put(key, value);
+                        }
+                        writeOps++;
+                    } else if ("R".equalsIgnoreCase(opType)) { // 读操作（忽略大小写）
+                        kvssd.write(writeBatch); // 先提交已攒的写（空批次直接返回）
+                        writeBatch.clear();
+                        kvssd.get(key);
+                        readOps++;
+                    } else if ("M".equalsIgnoreCase(opType)) { // 批量读：key 字段为 ';' 分隔的多个 key
+                        List<String> keys = MultiClientRunner.parseMultiGetKeys(key);
+                        if (keys.isEmpty()) {
+                            String skipMsg = "Skipped invalid line (format error): " + csvLine;
+                            System.err.println(skipMsg);
+                            resultWriter.write(skipMsg);
+                            resultWriter.newLine();
+                            continue;
+                        }
+                        kvssd.write(writeBatch);
+                        writeBatch.clear();
+                        kvssd.multiGet(keys);
+                        readOps += keys.size();
+                        multiGetOps++;
+                        totalOps += keys.size() - 1; // 按读取的 key 数计入操作数（下方再加 1）
+                    } else if ("S".equalsIgnoreCase(opType)) { // 范围扫描：从 key 起至多 value 条
+                        Integer limit = MultiClientRunner.parseScanLimit(value);
+                        if (limit == null) {
+                            String skipMsg = "Skipped invalid line (format error): " + csvLine;
+                            System.err.println(skipMsg);
+                            resultWriter.write(skipMsg);
+                            resultWriter.newLine();
+                            continue;
+                        }
+                        kvssd.write(writeBatch);
+                        writeBatch.clear();
+                        scanEntries += MultiClientRunner.runScan(kvssd, key, limit);
+                        scanOps++;
+                    } else { // 未知操作类型，跳过
+                        String skipMsg = "Skipped unknown operation type (" + opType + "): " + csvLine;
+                        System.err.println(skipMsg);
+                        resultWriter.write(skipMsg);
+                        resultWriter.newLine();
+                        continue;
+                    }
+
+                    // 统计总操作数，并每10000次操作打印进度
+                    totalOps++;
+                    if (totalOps % 10000 == 0) {
+                        String progressMsg = "Processed " + totalOps + " operations...";
+                        System.out.println(progressMsg);
+                        resultWriter.write(progressMsg);
+                        resultWriter.newLine();
+                    }
                 }
+                kvssd.write(writeBatch); // 提交最后一批
             }
             csvReader.close(); // 关闭CSV读取流
 
@@ -166,7 +248,7 @@ public class Runner {
             double throughput = totalOps > 0 ? totalOps / elapsedSeconds : 0.0; // 每秒操作数
 
             // 步骤10：清理KVSSD资源并获取内部统计数据
-            kvssd.cleanup();
+            kvssd.close();
             KVSSD6.Stats kvssdStats = kvssd.getStats();
             // 空指针防护：若获取不到统计数据，初始化空实例
             if (kvssdStats == null) {
@@ -187,6 +269,12 @@ public class Runner {
             resultWriter.write(System.lineSeparator());
 // 总操作数（格式化千位分隔）
             resultWriter.write(String.format("Total Operations: %,d (Read: %d, Write: %d)%n", totalOps, readOps, writeOps));
+            if (multiGetOps > 0) {
+                resultWriter.write(String.format("MultiGet Operations: %,d%n", multiGetOps));
+            }
+            if (scanOps > 0) {
+                resultWriter.write(String.format("Scan Operations: %,d (%,d entries)%n", scanOps, scanEntries));
+            }
 // 耗时（保留2位小数）
             resultWriter.write(String.format("Elapsed Time: %.2f seconds%n", elapsedSeconds));
 // 吞吐量（保留2位小数）
@@ -208,7 +296,40 @@ public class Runner {
             resultWriter.write(String.format("  7 times: %,d%n", kvssdStats.read7Flash));
             resultWriter.write(String.format("  8 times: %,d%n", kvssdStats.read8Flash));
             resultWriter.write(String.format("  8+ times: %,d%n", kvssdStats.readMoreFlash));
+            resultWriter.write(String.format("  Filter-avoided SST reads: %,d%n", kvssdStats.filterAvoidedReads));
+            resultWriter.write(String.format("Scans: %,d (%,d entries, %,d read-ahead pages)%n",
+                    kvssdStats.scanCount, kvssdStats.scanEntries, kvssdStats.scanReadAheads));
+            resultWriter.write(String.format("Meta Page Cache Hits/Misses: %,d / %,d%n",
+                    kvssdStats.metaCacheHits, kvssdStats.metaCacheMisses));
+            resultWriter.write(String.format("Page Cache Hits/Misses: %,d / %,d (hit ratio %.2f%%)%n",
+                    kvssdStats.pageCacheHits, kvssdStats.pageCacheMisses, kvssdStats.pageCacheHitRatio * 100));
+            resultWriter.write(String.format("WAL Records/Group Commits: %,d / %,d%n",
+                    kvssdStats.walRecords, kvssdStats.walGroupCommits));
+            resultWriter.write(String.format("GC Count: %,d, Reclaimed Blocks: %,d, Copied Pages: %,d (%.2f per block)%n",
+                    kvssdStats.gcCount, kvssdStats.gcBlocksReclaimed, kvssdStats.gcPagesCopied,
+                    kvssdStats.gcCopiedPerReclaimedBlock));
+            resultWriter.write(String.format("GC Background Runs: %,d, Foreground Stalls: %,d (%,d ms)%n",
+                    kvssdStats.gcBackgroundRuns, kvssdStats.gcForegroundStalls, kvssdStats.gcForegroundStallMs));
+            resultWriter.write(String.format("Compactions: %,d (%,d ms, parallelism %d), Shadowed Pages Dropped: %,d%n",
+                    kvssdStats.compactionCount, kvssdStats.compactionTimeMs, Constants.COMPACTION_PARALLELISM,
+                    kvssdStats.compactionPagesDropped));
+            resultWriter.write(String.format("Compaction Write Slowdowns: %,d, Stops: %,d (%,d ms)%n",
+                    kvssdStats.compactionWriteSlowdowns, kvssdStats.compactionWriteStops, kvssdStats.compactionWriteStopMs));
+            resultWriter.write(String.format("Open Time: %,d ms (%s)%n", kvssdStats.openTimeMs,
+                    kvssdStats.openedFromCheckpoint ? "checkpoint" : "file scan"));
+            resultWriter.write(String.format("Device (%s) Page Reads/Programs: %,d / %,d (%,d bytes), Block Erases: %,d%n",
+                    kvssdStats.flashBackend, kvssdStats.devicePageReads, kvssdStats.devicePagePrograms,
+                    kvssdStats.deviceBytesProgrammed, kvssdStats.deviceBlockErases));
+            resultWriter.write(String.format("Device Meta Syncs: %,d, Meta Block Reads/Writes: %,d / %,d, Fsyncs: %,d%n",
+                    kvssdStats.deviceMetaSyncs, kvssdStats.deviceMetaBlockReads, kvssdStats.deviceMetaBlockWrites,
+                    kvssdStats.deviceSyncs));
             resultWriter.newLine();
+            if (clientReport != null) {
+                resultWriter.write("--------------------------------------------------");
+                resultWriter.write(System.lineSeparator());
+                resultWriter.write(clientReport.format());
+                resultWriter.newLine();
+            }
 
             // 步骤12：控制台打印当前workload完成信息
             System.out.println("==================================================");
@@ -238,6 +359,8 @@ public class Runner {
                     System.err.println("Error closing result writer: " + e.getMessage());
                 }
             }
+            // 出错时同样停止后台线程并释放文件句柄（已关闭时无操作），下一个 workload 才不会与之并存
+            kvssd.close();
             // 可选：清理空存储目录（若当前workload无数据写入）
             if (persistDirFile.exists() && persistDirFile.listFiles().length == 0) {
                 if (persistDirFile.delete()) {
@@ -0,0 +1,134 @@
+package com.ssd;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * 范围扫描的多路归并迭代器：各数据来源（Memtable、不可变 Memtable、各层 SST 的 KV 页）按 (key, 优先级) 放入小根堆，
+ * 同一 key 只返回优先级最高（最新）来源的值。
+ * <p>
+ * 来源可以是“未解析”的：此时 {@link Source#key()} 只是其首个 key 的下界（如 SST/页的最小键），
+ * 到达堆顶时才 {@link Source#resolve()} 读取数据（SST 展开为各 KV 页，KV 页读取并定位到起始 key），
+ * 因此扫描只读取实际走到的页。
+ * <p>
+ * 迭代结束（耗尽、越过结束键或达到 limit）时自动 {@link #close()}；提前放弃时调用方须自行 close，
+ * 否则扫描持有的版本不会释放，GC 无法擦除该版本引用的块。
+ */
+public class ScanIterator implements Iterator<Pair<String, String>>, AutoCloseable {
+
+    /**
+     * 归并来源。rank 越小优先级越高（越新），同一 key 以 rank 最小者为准
+     */
+    public abstract static class Source {
+        final long rank;
+
+        protected Source(long rank) {
+            this.rank = rank;
+        }
+
+        /**
+         * 当前 key；未解析时为首个 key 的下界
+         */
+        protected abstract String key();
+
+        protected abstract String value();
+
+        protected abstract boolean resolved();
+
+        /**
+         * 解析来源，返回取代自身放回堆中的来源（为空表示范围内没有数据，可包含自身或展开后的子来源）
+         */
+        protected abstract List<Source> resolve();
+
+        /**
+         * 移到下一个 key，没有更多数据时返回 false
+         */
+        protected abstract boolean advance();
+    }
+
+    private static final Comparator<Source> ORDER = Comparator
+            .comparing(Source::key)
+            .thenComparingLong(source -> source.rank);
+
+    private final PriorityQueue<Source> heap = new PriorityQueue<>(ORDER);
+    private final String endKey; // 不含；null 表示不设上界
+    private final int limit; // <= 0 表示不限
+    private final IntConsumer onClose; // 参数为已返回的条数
+    private String lastKey;
+    private Pair<String, String> next;
+    private int returned;
+    private boolean closed;
+
+    public ScanIterator(List<Source> sources, String endKey, int limit, IntConsumer onClose) {
+        this.endKey = endKey;
+        this.limit = limit;
+        this.onClose = onClose;
+        heap.addAll(sources);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+        while (!heap.isEmpty()) {
+            Source top = heap.poll();
+            if (!top.resolved()) {
+                heap.addAll(top.resolve());
+                continue;
+            }
+            String key = top.key();
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                // 已由更高优先级的来源返回过的 key（旧版本），跳过
+                if (top.advance()) {
+                    heap.add(top);
+                }
+                continue;
+            }
+            if (endKey != null && key.compareTo(endKey) >= 0) {
+                break; // 堆顶已越过结束键，其余来源只会更大
+            }
+            next = new Pair<>(key, top.value());
+            lastKey = key;
+            if (top.advance()) {
+                heap.add(top);
+            }
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public Pair<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Pair<String, String> result = next;
+        next = null;
+        returned++;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        heap.clear();
+        onClose.accept(returned);
+    }
+}
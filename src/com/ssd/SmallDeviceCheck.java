@@ -0,0 +1,79 @@
+package com.ssd;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 小容量设备自检：在只有十几个数据块的设备上写入只增不改的 key（每个 key 只有一个版本，核对结果不受压缩后新旧页共存的影响），
+ * 刷盘与压缩产生的元数据区块号会与数据区块号重叠并超出数据区块数，最后逐个核对全部 key 必须都能读到写入的值。
+ * 用于检查数据区与元数据区的地址空间是否互相独立（元数据页不得覆盖同号数据块的页，擦除数据块不得波及元数据页）。
+ * 在临时目录中运行（通过 kvssd.persistDir 指定），不会触碰默认的 PERSIST_DIR。
+ */
+public class SmallDeviceCheck {
+    public static void main(String[] args) throws IOException {
+        String backend = args.length > 0 ? args[0].toUpperCase() : "MEMORY";
+        int capacityMb = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+        if (capacityMb < 8 || keys < 1) {
+            System.out.println("Usage: java SmallDeviceCheck [file|memory|image] [capacityMB] [keys]");
+            System.out.println("Example: java SmallDeviceCheck memory 64 30000");
+            return;
+        }
+        // 须在首次访问 Constants 之前设置持久化目录
+        Path dir = Files.createTempDirectory("kvssd-small-device");
+        System.setProperty("kvssd.persistDir", dir.toString());
+        Constants.FLASH_BACKEND = FlashBackend.Kind.valueOf(backend);
+
+        long totalBlocks = capacityMb * 1024L * 1024 / Constants.BLOCK_SIZE;
+        KVSSD6 kvssd = KVSSD6.open(capacityMb * 1024L * 1024);
+        String padding = "x".repeat(900);
+        for (int i = 0; i < keys; i++) {
+            kvssd.put(key(i), value(i, padding));
+        }
+        kvssd.cleanup(); // 等待刷盘与压缩完成，全部 key 都已写入 SST
+
+        long missing = 0, wrong = 0;
+        for (int i = 0; i < keys; i++) {
+            String value = kvssd.get(key(i));
+            if (value == null) {
+                missing++;
+            } else if (!value.equals(value(i, padding))) {
+                wrong++;
+            }
+        }
+        kvssd.close();
+        KVSSD6.Stats stats = kvssd.getStats();
+        boolean passed = missing == 0 && wrong == 0;
+
+        System.out.println("\n==================================================");
+        System.out.println("              Small Device Check Result           ");
+        System.out.println("==================================================");
+        System.out.printf("Backend: %s, Capacity: %d MB (%d data blocks), Keys: %,d%n",
+                stats.flashBackend, capacityMb, totalBlocks, keys);
+        System.out.printf("Missing: %,d, Wrong: %,d%n", missing, wrong);
+        System.out.printf("Compactions: %,d, Meta block writes: %,d%n",
+                stats.compactionCount, stats.deviceMetaBlockWrites);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        deleteDirectory(dir);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static String key(int i) {
+        return String.format("key%08d", i);
+    }
+
+    private static String value(int i, String padding) {
+        return key(i) + "#" + padding;
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            System.err.println("Failed to remove " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ssd;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LSM 层级结构的不可变快照：各层键范围索引在发布后不再修改，读路径持有快照期间无需任何锁。
+ * <p>
+ * 引用计数：引擎持有当前版本的 1 个引用，每个读取方 {@link #tryRetain()} 后在结束时 {@link #release()}。
+ * 新版本发布后引擎释放旧版本的引用；旧版本计数归零即表示再无读取方可能访问其引用的物理页，
+ * 擦除/复用这些页的一方在 {@link #awaitReleased()} 之后才能动手。
+ */
+public class Version {
+    private final long sequence;
+    private final Map<Integer, LevelIndex> levels;
+    private final int maxLevel;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    public Version(long sequence, Map<Integer, LevelIndex> levelIndexes) {
+        this.sequence = sequence;
+        TreeMap<Integer, LevelIndex> sorted = new TreeMap<>(levelIndexes);
+        this.levels = Collections.unmodifiableMap(sorted);
+        this.maxLevel = sorted.isEmpty() ? -1 : sorted.lastKey();
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    /**
+     * 层级 → 键范围索引（层级升序，空层级不出现）
+     */
+    public Map<Integer, LevelIndex> levels() {
+        return levels;
+    }
+
+    public LevelIndex level(int level) {
+        return levels.get(level);
+    }
+
+    public int maxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * 增加一个引用；版本已被废弃（计数已归零）时返回 false，调用方应改取新的当前版本
+     */
+    public boolean tryRetain() {
+        while (true) {
+            int current = refs.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    public boolean isReleased() {
+        return refs.get() <= 0;
+    }
+
+    /**
+     * 等待所有引用释放（引擎的引用须已先释放）
+     */
+    public synchronized void awaitReleased() throws InterruptedException {
+        while (refs.get() > 0) {
+            wait();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.ssd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * 追加写的版本清单（manifest），替代整体重写 lsm_levels.data。
+ * <pre>
+ * 记录：int 负载长度 | int CRC32C(负载) | 负载
+ * 负载：byte 类型 | long 版本序号 | long nextSstId | int 新增数 | (int 层级, long SST ID) * 新增数 | int 删除数 | long SST ID * 删除数
+ * 类型：EDIT=在当前版本上增删；SNAPSHOT=完整版本（新增列表即全部 SST，删除数为 0）
+ * </pre>
+ * 每次刷盘或压缩提交一条 EDIT（写入并 fsync 后才算提交）；累计 EDIT 数达到阈值后把当前版本写成只含一条 SNAPSHOT
+ * 的新清单文件并原子替换。打开时依次应用全部完整记录，遇到不完整或校验失败的残尾即停止并截断，恢复到最后一次提交的版本。
+ * <p>
+ * 非线程安全，调用方需持有 lsmLock。
+ */
+public class VersionManifest {
+
+    private static final byte RECORD_EDIT = 1;
+    private static final byte RECORD_SNAPSHOT = 2;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * 一次版本变更：新增的 SST（含所在层级）和删除的 SST
+     */
+    public static final class Edit {
+        private final Map<Long, Integer> added = new LinkedHashMap<>();
+        private final LinkedHashSet<Long> deleted = new LinkedHashSet<>();
+
+        public void addSst(int level, long sstId) {
+            added.put(sstId, level);
+        }
+
+        /**
+         * 同一次变更中新增后又删除的 SST 直接抵消
+         */
+        public void deleteSst(long sstId) {
+            if (added.remove(sstId) == null) {
+                deleted.add(sstId);
+            }
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    private final File file;
+    private final int snapshotInterval;
+    // 当前已提交版本：层级 -> SST ID（按新增顺序）
+    private final TreeMap<Integer, LinkedHashSet<Long>> levels = new TreeMap<>();
+    private FileChannel channel;
+    private long lastSequence;
+    private long nextSstId = 1;
+    private int editsSinceSnapshot;
+    private long edits;
+
+    public VersionManifest(File file, int snapshotInterval) throws IOException {
+        this.file = file;
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(file.getParentFile().toPath());
+        long validLength = file.exists() ? recover() : 0;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            // 截掉崩溃时写了一半的记录，后续追加从最后一条完整记录之后开始
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+    }
+
+    /**
+     * 清单中是否已有记录（无记录时调用方可从旧版层级文件迁移）
+     */
+    public boolean isEmpty() {
+        return lastSequence == 0;
+    }
+
+    /**
+     * 最后一次提交的版本序号（0 表示尚无记录）
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    public long nextSstId() {
+        return nextSstId;
+    }
+
+    public long edits() {
+        return edits;
+    }
+
+    /**
+     * 当前已提交版本的层级清单（层级升序，层内按新增顺序）
+     */
+    public Map<Integer, List<Long>> levels() {
+        Map<Integer, List<Long>> copy = new TreeMap<>();
+        for (Map.Entry<Integer, LinkedHashSet<Long>> entry : levels.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * 追加并 fsync 一条变更记录，返回其版本序号；空变更也会写入（用于推进版本序号，使旧检查点失效）
+     */
+    public long commit(Edit edit, long nextSstId) throws IOException {
+        List<Map.Entry<Long, Integer>> added = new ArrayList<>(edit.added.entrySet());
+        long sequence = lastSequence + 1;
+        writeFully(channel, encode(RECORD_EDIT, sequence, nextSstId, added, new ArrayList<>(edit.deleted)));
+        channel.force(false);
+        apply(RECORD_EDIT, sequence, nextSstId, added, edit.deleted);
+        edits++;
+        if (snapshotInterval > 0 && ++editsSinceSnapshot >= snapshotInterval) {
+            writeSnapshot();
+        }
+        return sequence;
+    }
+
+    /**
+     * 以完整版本替换清单内容（从旧版层级文件迁移时使用），返回其版本序号
+     */
+    public long reset(Map<Integer, List<Long>> newLevels, long nextSstId) throws IOException {
+        levels.clear();
+        for (Map.Entry<Integer, List<Long>> entry : newLevels.entrySet()) {
+            levels.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+        }
+        this.nextSstId = nextSstId;
+        lastSequence++;
+        writeSnapshot();
+        return lastSequence;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 把当前版本写成单条 SNAPSHOT 记录的新清单文件（临时文件 fsync 后原子改名），版本序号保持不变
+     */
+    private void writeSnapshot() throws IOException {
+        List<Map.Entry<Long, Integer>> all = new ArrayList<>();
+        for (Map.Entry<Integer, LinkedHashSet<Long>> entry : levels.entrySet()) {
+            for (long sstId : entry.getValue()) {
+                all.add(Map.entry(sstId, entry.getKey()));
+            }
+        }
+        byte[] record = encode(RECORD_SNAPSHOT, lastSequence, nextSstId, all, Collections.emptyList());
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel tmp = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(tmp, record);
+            tmp.force(true);
+        }
+        channel.close();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        editsSinceSnapshot = 0;
+    }
+
+    /**
+     * 依次应用清单中的完整记录，返回最后一条完整记录之后的偏移
+     */
+    private long recover() throws IOException {
+        long offset = 0;
+        long fileLength = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] body;
+                int crc;
+                try {
+                    crc = in.readInt();
+                    if (length < 1 || length > fileLength) {
+                        throw new IOException("bad record length " + length);
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (IOException e) {
+                    System.err.println("Manifest: torn record at offset " + offset + ", recovered to sequence " + lastSequence);
+                    break;
+                }
+                if (crc != checksum(body)) {
+                    System.err.println("Manifest: checksum mismatch at offset " + offset + ", recovered to sequence " + lastSequence);
+                    break;
+                }
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = payload.readByte();
+                long sequence = payload.readLong();
+                long recordNextSstId = payload.readLong();
+                int addedCount = payload.readInt();
+                List<Map.Entry<Long, Integer>> added = new ArrayList<>(addedCount);
+                for (int i = 0; i < addedCount; i++) {
+                    int level = payload.readInt();
+                    added.add(Map.entry(payload.readLong(), level));
+                }
+                int deletedCount = payload.readInt();
+                List<Long> deleted = new ArrayList<>(deletedCount);
+                for (int i = 0; i < deletedCount; i++) {
+                    deleted.add(payload.readLong());
+                }
+                apply(type, sequence, recordNextSstId, added, deleted);
+                if (type == RECORD_EDIT) {
+                    editsSinceSnapshot++;
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return offset;
+    }
+
+    private void apply(byte type, long sequence, long recordNextSstId,
+                       List<Map.Entry<Long, Integer>> added, Iterable<Long> deleted) {
+        if (type == RECORD_SNAPSHOT) {
+            levels.clear();
+        }
+        for (long sstId : deleted) {
+            for (LinkedHashSet<Long> ids : levels.values()) {
+                if (ids.remove(sstId)) {
+                    break;
+                }
+            }
+        }
+        levels.values().removeIf(LinkedHashSet::isEmpty);
+        for (Map.Entry<Long, Integer> entry : added) {
+            levels.computeIfAbsent(entry.getValue(), k -> new LinkedHashSet<>()).add(entry.getKey());
+        }
+        lastSequence = sequence;
+        nextSstId = Math.max(nextSstId, recordNextSstId);
+    }
+
+    private static byte[] encode(byte type, long sequence, long nextSstId,
+                                 List<Map.Entry<Long, Integer>> added, List<Long> deleted) {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64 + added.size() * 12 + deleted.size() * 8);
+        try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+            payload.writeByte(type);
+            payload.writeLong(sequence);
+            payload.writeLong(nextSstId);
+            payload.writeInt(added.size());
+            for (Map.Entry<Long, Integer> entry : added) {
+                payload.writeInt(entry.getValue());
+                payload.writeLong(entry.getKey());
+            }
+            payload.writeInt(deleted.size());
+            for (long sstId : deleted) {
+                payload.writeLong(sstId);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 内存流不会抛出
+        }
+        byte[] body = payloadBytes.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+        record.putInt(body.length);
+        record.putInt(checksum(body));
+        record.put(body);
+        return record.array();
+    }
+
+    private static void writeFully(FileChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
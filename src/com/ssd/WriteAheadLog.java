@@ -0,0 +1,406 @@
+package com.ssd;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * 追加写的预写日志（WAL），替代整体重写 memtable.data。
+ * <pre>
+ * 段文件：wal/<段号>.log，每个 Memtable 对应一个段；Memtable 写成 SSTable 后其段即可回收
+ * 记录：int 负载长度 | int CRC32C(段号+负载) | long 段号 | 负载
+ * 负载：int 条数，随后每条 [int key长度][key UTF-8][int value长度][value UTF-8]
+ * </pre>
+ * 组提交：写入方先在持有 KVSSD6 锁时 {@link #append} 拿到序号（保证日志顺序与 Memtable 写入顺序一致），
+ * 释放锁后调用 {@link #awaitDurable}；第一个等待者成为 leader，把积攒的全部记录一次写入（按策略 fsync），
+ * 其余等待者随之返回。
+ * <p>
+ * 回收的段文件改名为 *.recycle 后复用（不截断），重放时遇到段号不符或校验失败的记录即停止。
+ */
+public class WriteAheadLog {
+
+    /**
+     * 同步策略：NONE=只写入操作系统缓存；PER_BATCH=每次组提交 fsync；INTERVAL=后台线程按固定间隔 fsync
+     */
+    public enum SyncPolicy {
+        NONE, PER_BATCH, INTERVAL
+    }
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String RECYCLE_SUFFIX = ".recycle";
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final File dir;
+    private final SyncPolicy syncPolicy;
+    private final int recycleLimit;
+    private final List<Long> recoveredSegments;
+    private final Deque<File> recycledFiles = new ArrayDeque<>();
+    private Thread syncer;         // INTERVAL 策略的后台 fsync 线程
+
+    private FileChannel channel;
+    private long currentSegment;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    private long appendedTicket;   // 已加入 pending 的最大序号
+    private long writtenTicket;    // 已写入日志文件的最大序号
+    private boolean writing;       // 是否有 leader 正在写文件
+    private boolean unsynced;      // INTERVAL 策略下是否有未 fsync 的写入
+    private IOException failure;   // 写入失败后日志不可再用
+    private long records;
+    private long groupCommits;
+    private boolean closed;
+
+    public WriteAheadLog(File dir, SyncPolicy syncPolicy, long syncIntervalMs, int recycleLimit) throws IOException {
+        this.dir = dir;
+        this.syncPolicy = syncPolicy;
+        this.recycleLimit = recycleLimit;
+        Files.createDirectories(dir.toPath());
+
+        List<Long> segments = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(LOG_SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } else if (name.endsWith(RECYCLE_SUFFIX)) {
+                    recycledFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        this.recoveredSegments = Collections.unmodifiableList(segments);
+        this.currentSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        this.channel = openSegment(currentSegment);
+
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = new Thread(() -> runSyncer(syncIntervalMs), "kvssd-wal-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /**
+     * 启动时目录中已存在的段（按段号升序），需由调用方逐个重放
+     */
+    public List<Long> recoveredSegments() {
+        return recoveredSegments;
+    }
+
+    public synchronized long currentSegment() {
+        return currentSegment;
+    }
+
+    /**
+     * 追加一条记录（可包含多条 KV），返回用于 {@link #awaitDurable} 的序号
+     */
+    public synchronized long append(List<Pair<String, String>> entries) {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+            payload.writeInt(entries.size());
+            for (Pair<String, String> kv : entries) {
+                byte[] key = kv.first.getBytes(StandardCharsets.UTF_8);
+                byte[] value = kv.second.getBytes(StandardCharsets.UTF_8);
+                payload.writeInt(key.length);
+                payload.write(key);
+                payload.writeInt(value.length);
+                payload.write(value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 内存流不会抛出
+        }
+        byte[] body = payloadBytes.toByteArray();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(body.length);
+        header.putInt(checksum(currentSegment, body));
+        header.putLong(currentSegment);
+        pending.write(header.array(), 0, RECORD_HEADER_SIZE);
+        pending.write(body, 0, body.length);
+        records++;
+        return ++appendedTicket;
+    }
+
+    /**
+     * 等待序号 ticket 之前的记录全部写入日志（PER_BATCH 策略下同时完成 fsync）
+     */
+    public void awaitDurable(long ticket) throws IOException {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            FileChannel target;
+            synchronized (this) {
+                while (writing && writtenTicket < ticket && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for WAL commit");
+                    }
+                }
+                if (failure != null) {
+                    throw new IOException("WAL is unusable after an earlier write failure", failure);
+                }
+                if (writtenTicket >= ticket) {
+                    return;
+                }
+                // 成为 leader：取走目前积攒的全部记录
+                writing = true;
+                batch = pending.toByteArray();
+                pending.reset();
+                upTo = appendedTicket;
+                target = channel;
+            }
+            IOException error = null;
+            try {
+                writeFully(target, batch);
+                if (syncPolicy == SyncPolicy.PER_BATCH) {
+                    target.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                writing = false;
+                if (error == null) {
+                    writtenTicket = upTo;
+                    unsynced = syncPolicy == SyncPolicy.INTERVAL;
+                    groupCommits++;
+                } else {
+                    failure = error;
+                }
+                notifyAll();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * 切换到新段（Memtable 转为不可变时调用），返回新段号；旧段中积攒的记录会先写完并 fsync
+     */
+    public synchronized long rotate() throws IOException {
+        drainPending();
+        if (syncPolicy != SyncPolicy.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+        currentSegment++;
+        channel = openSegment(currentSegment);
+        return currentSegment;
+    }
+
+    /**
+     * 把积攒的记录写入并 fsync（关闭前或需要确保持久时调用）
+     */
+    public synchronized void sync() throws IOException {
+        drainPending();
+        channel.force(false);
+        unsynced = false;
+    }
+
+    /**
+     * 关闭：停止并等待后台 fsync 线程，把积攒的记录写入并 fsync 后关闭当前段；重复调用无副作用
+     */
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.interrupt();
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping WAL syncer");
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                drainPending();
+                if (syncPolicy != SyncPolicy.NONE) {
+                    channel.force(false);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 段对应的 Memtable 已写成 SSTable：回收段文件（保留至多 recycleLimit 个以复用，其余删除）
+     */
+    public synchronized void release(long segment) {
+        if (segment == currentSegment) {
+            return;
+        }
+        File file = segmentFile(segment);
+        try {
+            if (recycledFiles.size() < recycleLimit) {
+                File recycled = new File(dir, segment + RECYCLE_SUFFIX);
+                Files.move(file.toPath(), recycled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                recycledFiles.add(recycled);
+            } else {
+                Files.deleteIfExists(file.toPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to recycle WAL segment " + segment + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 重放一个段：按写入顺序回调每条 KV，遇到不完整或校验失败的记录（崩溃时的残尾）即停止，返回重放的条数
+     */
+    public int replay(long segment, BiConsumer<String, String> consumer) throws IOException {
+        File file = segmentFile(segment);
+        int applied = 0;
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] body;
+                int crc;
+                long recordSegment;
+                try {
+                    crc = in.readInt();
+                    recordSegment = in.readLong();
+                    if (length < 4 || length > file.length()) {
+                        throw new IOException("bad record length " + length);
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (IOException e) {
+                    System.err.println("WAL segment " + segment + ": torn record at offset " + offset + ", stop replay");
+                    break;
+                }
+                if (recordSegment != segment || crc != checksum(segment, body)) {
+                    // 段号不符：复用段文件中的旧内容；校验失败：写入不完整
+                    if (recordSegment == segment) {
+                        System.err.println("WAL segment " + segment + ": checksum mismatch at offset " + offset + ", stop replay");
+                    }
+                    break;
+                }
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(body));
+                int count = payload.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte[] key = new byte[payload.readInt()];
+                    payload.readFully(key);
+                    byte[] value = new byte[payload.readInt()];
+                    payload.readFully(value);
+                    consumer.accept(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+                    applied++;
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return applied;
+    }
+
+    public synchronized long records() {
+        return records;
+    }
+
+    public synchronized long groupCommits() {
+        return groupCommits;
+    }
+
+    private void drainPending() throws IOException {
+        while (writing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while draining WAL");
+            }
+        }
+        if (failure != null) {
+            throw new IOException("WAL is unusable after an earlier write failure", failure);
+        }
+        if (pending.size() > 0) {
+            writeFully(channel, pending.toByteArray());
+            pending.reset();
+            groupCommits++;
+        }
+        writtenTicket = appendedTicket;
+        notifyAll();
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        File file = segmentFile(segment);
+        File recycled = recycledFiles.poll();
+        if (recycled != null) {
+            // 复用旧段文件：改名后从头覆盖写，残留的旧记录因段号不符不会被重放
+            Files.move(recycled.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, segment + LOG_SUFFIX);
+    }
+
+    private void runSyncer(long intervalMs) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            FileChannel target;
+            synchronized (this) {
+                if (!unsynced) {
+                    continue;
+                }
+                unsynced = false;
+                target = channel;
+            }
+            try {
+                target.force(false);
+            } catch (IOException e) {
+                // 段已在 rotate 中关闭（关闭前已 fsync）
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+    }
+
+    private static int checksum(long segment, byte[] body) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer seg = ByteBuffer.allocate(8);
+        seg.putLong(segment);
+        crc.update(seg.array());
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
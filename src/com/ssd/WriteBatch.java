@@ -0,0 +1,51 @@
+package com.ssd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量写入：按加入顺序收集多条 put，由 {@link KVSSD6#write(WriteBatch)} 一次性原子应用。
+ * 同一批内重复的 key 以最后一次为准；KV 字节大小在加入时计算一次，应用时不再重新编码。
+ * 非线程安全：每个写入方各自构建自己的批次。
+ */
+public class WriteBatch {
+    private final List<Pair<String, String>> entries = new ArrayList<>();
+    private long sizeInBytes; // 批内 key + value 的 UTF-8 字节总和
+
+    public WriteBatch put(String key, String value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("WriteBatch key/value must not be null");
+        }
+        entries.add(new Pair<>(key, value));
+        sizeInBytes += Memtable.kvSize(key, value);
+        return this;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * 按加入顺序的只读视图
+     */
+    public List<Pair<String, String>> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * 清空以便复用（已交给 write 的批次在其返回后才可清空）
+     */
+    public void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+}